@@ -39,6 +39,20 @@ public class Body extends GrammarObject {
     return rules;
   }
 
+  /**
+   * Returns a copy of this body with its rules moved to a different place in the rules document.
+   *
+   * @see Rule#move(int, int, int)
+   */
+  Body move(int row, int rowDelta, int colDelta) {
+    final Body res = new Body();
+    res.resources.addAll(resources);
+    for (Rule rule : rules) {
+      res.rules.add(rule.move(row, rowDelta, colDelta));
+    }
+    return res;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -10,9 +10,11 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import au.csiro.redmatch.importer.RedcapCsvImporter;
 import au.csiro.redmatch.importer.RedcapJsonImporter;
@@ -31,14 +33,20 @@ import au.csiro.redmatch.validation.FhirPackageNotFoundException;
 import au.csiro.redmatch.validation.RedmatchGrammarValidator;
 import au.csiro.redmatch.validation.ValidationResult;
 import com.google.gson.Gson;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
 import org.antlr.v4.runtime.DiagnosticErrorListener;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.apache.commons.logging.Log;
@@ -94,6 +102,16 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    * Url for a FHIR resource. Used to identify "any" references.
    */
   private final static String RESOURCE_URL = "http://hl7.org/fhir/StructureDefinition/Resource";
+
+  /**
+   * The maximum number of schemas kept in memory in incremental mode.
+   */
+  private static final int MAX_CACHED_SCHEMAS = 16;
+
+  /**
+   * The maximum number of documents whose compiled rules are kept in memory in incremental mode.
+   */
+  private static final int MAX_CACHED_DOCUMENTS = 16;
   
   /**
    * Pattern to validate FHIR ids.
@@ -115,26 +133,6 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    */
   private final Pattern redmatchVariablePattern = Pattern.compile("[$][{][a-zA-Z0-9_]+[}]");
   
-  /**
-   * Stores the path information for the leaf node - used to validate each value assignment.
-   */
-  private CodeInfo lastInfo = null;
-
-  /**
-   * A map to keep any aliases defined in the document.
-   */
-  private final Map<String, String> aliases = new HashMap<>();
-
-  /**
-   * The schema of the source data.
-   */
-  private au.csiro.redmatch.model.Schema schema;
-
-  /**
-   * Diagnostic messages produced by the compilation process.
-   */
-  private final List<Diagnostic> diagnostics = new ArrayList<>();
-
   /**
    * Reference to the only Gson instance, in case the schema is in JSON format.
    */
@@ -146,30 +144,46 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
   private final TerminologyService terminologyService;
 
   /**
-   * The base folder where the input files are contained. Can be null if the compiler is used in a server environment.
+   * The default FHIR package to use if one is not specified in the rules.
    */
-  private File baseFolder;
+  private final VersionedFhirPackage defaultFhirPackage;
 
   /**
-   * Validator for FHIR attribute expressions.
+   * The pool used to compile the rules of a document in parallel. Null if the rules are compiled sequentially.
    */
-  private RedmatchGrammarValidator validator;
+  private final ForkJoinPool pool;
 
   /**
-   * The default FHIR package to use if one is not specified in the rules.
+   * Indicates if the pool was created by this compiler, in which case it is stopped by {@link #shutdown()}.
    */
-  private final VersionedFhirPackage defaultFhirPackage;
+  private final boolean ownsPool;
+
+  /**
+   * Indicates if the results of previous compilations are reused. See {@link #setIncremental(boolean)}.
+   */
+  private volatile boolean incremental = false;
 
   /**
-   * A set with all the names and ids, e.g., Patient&lt;p&gt;, found so far.
+   * Schemas loaded in previous compilations, keyed by the absolute path of the schema file. Only used in incremental
+   * mode.
    */
-  private final Set<String> existingResources = new HashSet<>();
+  private final Map<String, CachedSchema> schemaCache = new LinkedHashMap<String, CachedSchema>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedSchema> eldest) {
+      return size() > MAX_CACHED_SCHEMAS;
+    }
+  };
 
   /**
-   * The rules do not impose an order so we need to keep track of potential reference to non-existent resources and
-   * check when all rules have been processed. The context is needed to show the error in the right place.
+   * The top level rules compiled in the last compilation of each document, keyed by the id of the document. Only used
+   * in incremental mode.
    */
-  private final List<Pair<String, ReferenceContext>> referencesToCheck = new ArrayList<>();
+  private final Map<String, RuleCache> ruleCaches = new LinkedHashMap<String, RuleCache>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, RuleCache> eldest) {
+      return size() > MAX_CACHED_DOCUMENTS;
+    }
+  };
 
   /**
    * An object to report progress. Can be null.
@@ -188,7 +202,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
   }
 
   /**
-   * Constructor.
+   * Constructor. The rules of a document are compiled in parallel in the common pool.
    *
    * @param gson The only GSON instance.
    * @param terminologyService The only terminology service instance.
@@ -197,18 +211,113 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    */
   public RedmatchCompiler(Gson gson, TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage,
                           ProgressReporter progressReporter) {
+    this(gson, terminologyService, defaultFhirPackage, progressReporter,
+      ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.commonPool() : null, false);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param gson The only GSON instance.
+   * @param terminologyService The only terminology service instance.
+   * @param defaultFhirPackage The default FHIR package to use if no package is specified in the rules.
+   * @param progressReporter An object to report progress. Can be null.
+   * @param parallelism The number of threads used to compile the rules of a document. If 1, the rules are compiled
+   *                    in the calling thread. Otherwise, the compiler creates its own pool, which is stopped by
+   *                    {@link #shutdown()}.
+   */
+  public RedmatchCompiler(Gson gson, TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage,
+                          ProgressReporter progressReporter, int parallelism) {
+    this(gson, terminologyService, defaultFhirPackage, progressReporter,
+      checkParallelism(parallelism) > 1 ? new ForkJoinPool(parallelism) : null, true);
+  }
+
+  private RedmatchCompiler(Gson gson, TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage,
+                           ProgressReporter progressReporter, ForkJoinPool pool, boolean ownsPool) {
     this.gson = gson;
     this.terminologyService = terminologyService;
     this.defaultFhirPackage = defaultFhirPackage;
     this.progressReporter = progressReporter;
+    this.pool = pool;
+    this.ownsPool = ownsPool;
+  }
+
+  private static int checkParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
+    return parallelism;
   }
 
   public VersionedFhirPackage getDefaultFhirPackage() {
     return defaultFhirPackage;
   }
 
+  public boolean isIncremental() {
+    return incremental;
+  }
+
   /**
-   * Compiles a Redmatch document.
+   * Sets whether the results of previous compilations are reused, which is useful when the same document is compiled
+   * after every edit. In incremental mode, the schema is only loaded again if its file changes and the top level rules
+   * whose text has not changed are not compiled again, as long as the schema, the FHIR package and the aliases are
+   * the same. Their diagnostics are moved to where the rules are now. Defaults to false.
+   *
+   * @param incremental True to enable incremental compilation.
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    if (!incremental) {
+      synchronized (schemaCache) {
+        schemaCache.clear();
+      }
+      synchronized (ruleCaches) {
+        ruleCaches.clear();
+      }
+    }
+  }
+
+  /**
+   * Stops the threads used to compile rules in parallel, if the compiler created them. The compiler should not be used
+   * after calling this method.
+   */
+  public void shutdown() {
+    if (pool != null && ownsPool) {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Parses a document in two stages. First, the document is parsed using SLL prediction, which is much faster and
+   * works for almost every document, and the parser gives up at the first syntax error. Only if this fails is the
+   * document parsed again using full LL prediction, which reports and recovers from syntax errors. The tokens are
+   * reused, so lexer errors are only reported once. All parser instances share the same DFA and prediction context
+   * cache, so predictions computed in one compilation speed up the following ones.
+   *
+   * @param parser The parser.
+   * @param errorListener The listener that reports syntax errors.
+   * @return The parse tree.
+   */
+  private DocumentContext parse(RedmatchGrammar parser, ANTLRErrorListener errorListener) {
+    parser.removeErrorListeners();
+    parser.setErrorHandler(new BailErrorStrategy());
+    parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+    try {
+      return parser.document();
+    } catch (ParseCancellationException e) {
+      log.debug("SLL parsing failed, trying again with full LL prediction");
+    }
+
+    parser.reset();
+    parser.addErrorListener(errorListener);
+    parser.setErrorHandler(new DefaultErrorStrategy());
+    parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+    return parser.document();
+  }
+
+  /**
+   * Compiles a Redmatch document. This method can be called concurrently, the state of each compilation is kept
+   * separately.
    *
    * @param baseFolder The base folder where the input files are contained.
    * @param document The Redmatch document.
@@ -217,9 +326,23 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    * @throws CompilationException If something goes wrong with the compilation.
    */
   public Document compile(File baseFolder, String document) throws CompilationException {
-    clear();
+    return compile(baseFolder, document, null);
+  }
 
-    this.baseFolder = baseFolder;
+  /**
+   * Compiles a Redmatch document. This method can be called concurrently, the state of each compilation is kept
+   * separately. In incremental mode, the rules compiled in the previous compilation of the document with the same id
+   * are reused.
+   *
+   * @param baseFolder The base folder where the input files are contained.
+   * @param document The Redmatch document.
+   * @param documentId An id for the document, e.g., its URI. Can be null.
+   *
+   * @return A Document object or null if there is an unrecoverable compilation problem.
+   * @throws CompilationException If something goes wrong with the compilation.
+   */
+  public Document compile(File baseFolder, String document, String documentId) throws CompilationException {
+    final CompilationContext c = new CompilationContext(baseFolder, documentId);
     if (baseFolder != null) {
       log.info("Running compilation from base folder: " + baseFolder.getAbsolutePath());
     } else {
@@ -238,47 +361,45 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       @Override
       public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
                               int charPositionInLine, String msg, RecognitionException e) {
-        addError(offendingSymbol != null ? offendingSymbol.toString() : "", line, charPositionInLine, msg, SRC_LEXER,
+        addError(c, offendingSymbol != null ? offendingSymbol.toString() : "", line, charPositionInLine, msg, SRC_LEXER,
           CODE_LEXER.toString());
       }
     });
 
-    parser.removeErrorListeners();
-    parser.addErrorListener(new DiagnosticErrorListener() {
+    final ANTLRErrorListener parserErrorListener = new DiagnosticErrorListener() {
       @Override
       public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
                               int charPositionInLine, String msg, RecognitionException e) {
-        addError(offendingSymbol != null ? offendingSymbol.toString() : "", line, charPositionInLine, msg, SRC_PARSER,
-          CODE_PARSER.toString());
+        addError(c, offendingSymbol != null ? offendingSymbol.toString() : "", line, charPositionInLine, msg,
+          SRC_PARSER, CODE_PARSER.toString());
       }
-    });
+    };
 
     if (Thread.interrupted()) {
       throw new CompilationException("The compilation was interrupted");
     }
-    final DocumentContext docCtx = parser.document();
+    final DocumentContext docCtx = parse(parser, parserErrorListener);
 
     // We need to check if the EOF token was matched. If not, then there is a problem.
     final Token finalToken = lexer.getToken();
     if (finalToken.getType() != Token.EOF) {
-      addError(finalToken.getText(), finalToken.getLine(), finalToken.getCharPositionInLine(),
+      addError(c, finalToken.getText(), finalToken.getLine(), finalToken.getCharPositionInLine(),
         "Unexpected token '" + finalToken.getText() + "'.", SRC_COMPILER, CODE_PARSER.toString());
     }
 
-    String tree = docCtx.toStringTree(parser);
     if (log.isDebugEnabled()) {
-      printPrettyLispTree(tree);
+      printPrettyLispTree(docCtx.toStringTree(parser));
     }
 
     try {
       if (Thread.interrupted()) {
         throw new CompilationException("The compilation was interrupted");
       }
-      Document doc = (Document) docCtx.accept(this);
-      doc.setDiagnostics(new ArrayList<>(this.diagnostics));
+      Document doc = visitDocumentInternal(c, docCtx);
+      doc.setDiagnostics(new ArrayList<>(c.diagnostics));
 
       // Validate the resulting FHIR graph if there are no errors
-      if (this.diagnostics.stream().noneMatch(d -> d.getSeverity().equals(DiagnosticSeverity.Error))) {
+      if (c.diagnostics.stream().noneMatch(d -> d.getSeverity().equals(DiagnosticSeverity.Error))) {
         if (Thread.interrupted()) {
           throw new CompilationException("The compilation was interrupted");
         }
@@ -303,46 +424,51 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    * @return A Document object or null if there is an unrecoverable compilation problem.
    * @throws CompilationException If something goes wrong with the compilation.
    */
-  public synchronized Document compile(String document) throws CompilationException {
+  public Document compile(String document) throws CompilationException {
     return this.compile(null, document);
   }
   
   /**
-   * Entry point for visitor. This is the only method that should be called.
+   * Entry point for visitor. This is the only method that should be called. Compiles the document with no base folder.
    *
    * @throws CompilationException If something goes wrong with the compilation.
    */
   @Override
   public GrammarObject visitDocument(DocumentContext ctx) throws CompilationException {
+    return visitDocumentInternal(new CompilationContext(null, null), ctx);
+  }
+
+  private Document visitDocumentInternal(CompilationContext c, DocumentContext ctx) throws CompilationException {
     final Document res = new Document();
     
     // If parsing produced errors then do not continue
-    if (!diagnostics.isEmpty()) {
-      res.setDiagnostics(this.diagnostics);
+    if (!c.diagnostics.isEmpty()) {
+      res.setDiagnostics(c.diagnostics);
       return res;
     }
 
     // Load schema
-    Schema sc = (Schema) visitSchemaInternal(ctx.schema());
+    Schema sc = (Schema) visitSchemaInternal(c, ctx.schema());
     if (sc == null) {
-      this.diagnostics.add(getDiagnosticFromContext(ctx, "Invalid schema definition", DiagnosticSeverity.Error,
+      c.diagnostics.add(getDiagnosticFromContext(ctx, "Invalid schema definition", DiagnosticSeverity.Error,
         CODE_INVALID_SCHEMA.toString()));
       return res;
     } else if (!sc.isValid()) {
-      this.diagnostics.add(getDiagnosticFromContext(ctx, "Schema could not be loaded from " + sc.getSchemaLocation(),
+      c.diagnostics.add(getDiagnosticFromContext(ctx, "Schema could not be loaded from " + sc.getSchemaLocation(),
         DiagnosticSeverity.Error, CODE_UNABLE_TO_LOAD_SCHEMA.toString()));
       return res;
     }
 
     if (sc.getSchemaType().equals("REDCAP")) {
-      au.csiro.redmatch.model.Schema s = loadRedcapSchema(sc.getSchema());
+      au.csiro.redmatch.model.Schema s = incremental ? loadRedcapSchemaCached(sc.getSchema())
+        : loadRedcapSchema(sc.getSchema());
       if (s == null) {
-        this.diagnostics.add(getDiagnosticFromContext(ctx, "Unknown REDCap schema type.", DiagnosticSeverity.Error,
+        c.diagnostics.add(getDiagnosticFromContext(ctx, "Unknown REDCap schema type.", DiagnosticSeverity.Error,
           CODE_UNKNOWN_REDCAP_SCHEMA_TYPE.toString()));
         return res;
       }
-      this.schema = s;
-      res.setSchema(this.schema);
+      c.schema = s;
+      res.setSchema(c.schema);
     } else {
       return res;
     }
@@ -357,7 +483,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         }
       }
       if (hashCount != 1) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(
             ctx,
             "Invalid target definition " + target + ". Expected format is PACKAGE_NAME#PACKAGE_VERSION.",
@@ -370,7 +496,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         if (parts.length == 2) {
           res.setFhirPackage(new VersionedFhirPackage(parts[0], parts[1]));
         } else {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(
               ctx,
               "Invalid target definition " + target + ". Expected format is PACKAGE_NAME#PACKAGE_VERSION.",
@@ -382,16 +508,12 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       }
     }
     VersionedFhirPackage fhirPackage = res.getFhirPackage();
+    // If a FHIR package was set then create a validator using that package, otherwise use the standard FHIR package
+    VersionedFhirPackage validatorPackage = fhirPackage != null ? fhirPackage : defaultFhirPackage;
     try {
-      if (fhirPackage != null) {
-        // If a FHIR package was set then create a validator using that package
-        this.validator = new RedmatchGrammarValidator(terminologyService, fhirPackage, progressReporter);
-      } else {
-        // Otherwise, use the standard FHIR package
-        this.validator = new RedmatchGrammarValidator(terminologyService, defaultFhirPackage, progressReporter);
-      }
+      c.validator = new RedmatchGrammarValidator(terminologyService, validatorPackage, progressReporter);
     } catch (FhirPackageNotFoundException e) {
-      this.diagnostics.add(getDiagnosticFromContext(ctx,
+      c.diagnostics.add(getDiagnosticFromContext(ctx,
         String.format("FHIR package %s does not exist.", e.getFhirPackage()), DiagnosticSeverity.Error,
         CODE_COMPILER_ERROR.toString()
         )
@@ -413,47 +535,63 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         String key = alias.ALIAS().getText();
         String val = removeEnds(alias.STRING().getText());
         log.debug("Found alias " + key + " with value " + val);
-        this.aliases.put(key, val);
+        c.aliases.put(key, val);
       }
     }
 
-    // Process rules
+    // Process rules, in parallel if possible, and reusing the ones that have not changed if running incrementally
+    final RuleCache cache;
+    if (incremental) {
+      List<Object> context = Arrays.asList(c.schema, validatorPackage,
+        terminologyService.ontoIndexCheck(validatorPackage), new HashMap<>(c.aliases));
+      RuleCache previous;
+      synchronized (ruleCaches) {
+        previous = ruleCaches.get(c.documentId);
+      }
+      if (previous != null && context.equals(previous.context)) {
+        cache = previous;
+      } else {
+        log.debug("Compilation context changed, discarding cached rules");
+        cache = new RuleCache(context, Collections.emptyMap());
+      }
+    } else {
+      cache = null;
+    }
+    final Map<String, CachedRule> compiledRules = new ConcurrentHashMap<>();
+    final List<Visit<List<Rule>>> visits = new ArrayList<>();
     for (FcRuleContext rule : ctx.rules().fcRule()) {
-      final Variables var = new Variables();
-      try {
-        GrammarObject go = visitFcRuleInternal(rule, var);
-        if (go instanceof Rule) {
-          res.getRules().add((Rule) go);
-        } else if (go instanceof RuleList) {
-          RuleList rl = (RuleList) go;
-          res.getRules().addAll(rl.getRules());
-        } else {
-          this.diagnostics.add(
-            getDiagnosticFromContext(
-              ctx,
-              "Unexpected type " + go.getClass().getCanonicalName() + ". Expected Rule or RuleList.",
-              DiagnosticSeverity.Error,
-              CODE_COMPILER_ERROR.toString()
-            )
-          );
-        }
-      } catch (IOException e) {
-        throw new CompilationException("There was a problem compiling the rules: " + e.getLocalizedMessage(), e);
+      if (cache != null) {
+        visits.add(rc -> visitTopLevelRuleCached(rc, ctx, rule, cache, compiledRules));
+      } else {
+        visits.add(rc -> visitTopLevelRule(rc, ctx, rule));
+      }
+    }
+    try {
+      for (List<Rule> rules : visitInParallel(c, visits)) {
+        res.getRules().addAll(rules);
+      }
+    } catch (IOException e) {
+      throw new CompilationException("There was a problem compiling the rules: " + e.getLocalizedMessage(), e);
+    }
+    if (cache != null) {
+      // Only keep the rules in this version of the document
+      synchronized (ruleCaches) {
+        ruleCaches.put(c.documentId, new RuleCache(cache.context, compiledRules));
       }
     }
 
     // Before we process mappings, we need to find the fields that need a mapping. This will let us generate compilation
     // errors if a required mapping is missing and also warnings if a mapping that is not needed is present.
-    Set<String> fieldsThatNeedMapping = getFieldsThatNeedMapping(res.getRules());
+    Set<String> fieldsThatNeedMapping = getFieldsThatNeedMapping(c, res.getRules());
 
     // Process mappings
     MappingsContext mappingsCtx = ctx.mappings();
     if (mappingsCtx != null) {
       for (MappingContext mappingCtx : mappingsCtx.mapping()) {
         String fieldId = mappingCtx.ID().getText();
-        Field f = this.schema.getField(fieldId);
+        Field f = c.schema.getField(fieldId);
         if (f == null) {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(
               mappingCtx,
               "Mapped field " + fieldId + " does not exist.",
@@ -470,7 +608,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           String fieldLabel = removeEnds(mappingCtx.STRING().getText());
           LabeledField labeledField = new LabeledField(f);
           if(!fieldLabel.equals(StringUtils.escape(f.getLabel()))) {
-            this.diagnostics.add(
+            c.diagnostics.add(
               getDiagnosticFromContext(
                 mappingCtx,
                 "Label of mapped field " + fieldId + " in rules does not match schema (label in rules: '" + fieldLabel
@@ -483,11 +621,11 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           }
         }
 
-        ConceptLiteralValue clv = processMapTarget(mappingCtx);
+        ConceptLiteralValue clv = processMapTarget(c, mappingCtx);
         Mapping m = new Mapping(fieldId, clv.getSystem(), clv.getCode(), clv.getDisplay());
         res.getMappings().put(fieldId, m);
         if (!fieldsThatNeedMapping.remove(fieldId)) {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(
               mappingCtx,
               "Mapping for field " + fieldId + " is not needed.",
@@ -501,9 +639,9 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
 
     for (String fieldId : fieldsThatNeedMapping) {
-      LabeledField labeledField = new LabeledField(schema.getField(fieldId));
+      LabeledField labeledField = new LabeledField(c.schema.getField(fieldId));
       if (mappingsCtx != null) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(
             mappingsCtx,
             "Mapping for field " + fieldId + " is required but was not found.",
@@ -513,7 +651,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           )
         );
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(
             ctx,
             "Mapping for field " + fieldId + " is required but was not found.",
@@ -526,10 +664,10 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
 
     // Check any reference targets that might be missing
-    for (Pair<String, ReferenceContext> referenceToCheck : referencesToCheck) {
-      if (!existingResources.contains(referenceToCheck.getValue0())) {
-        this.diagnostics.add(
-          getDiagnosticFromContext(
+    for (Pair<String, Range> referenceToCheck : c.referencesToCheck) {
+      if (!c.existingResources.contains(referenceToCheck.getValue0())) {
+        c.diagnostics.add(
+          getDiagnostic(
             referenceToCheck.getValue1(),
             "Resource " + referenceToCheck.getValue0() + " is not defined in the rules.",
             DiagnosticSeverity.Error,
@@ -543,13 +681,189 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return res;
   }
 
+  /**
+   * Compiles a top level rule.
+   *
+   * @param c The compilation context.
+   * @param docCtx The document context, used to report unexpected errors.
+   * @param ctx The rule context.
+   * @return The compiled rules. There can be more than one if the rule has a repeats clause.
+   * @throws IOException If there is a problem validating the rule.
+   */
+  private List<Rule> visitTopLevelRule(CompilationContext c, DocumentContext docCtx, FcRuleContext ctx)
+    throws IOException {
+    GrammarObject go = visitFcRuleInternal(c, ctx, new Variables());
+    if (go instanceof Rule) {
+      return Collections.singletonList((Rule) go);
+    } else if (go instanceof RuleList) {
+      return ((RuleList) go).getRules();
+    } else {
+      c.diagnostics.add(
+        getDiagnosticFromContext(
+          docCtx,
+          "Unexpected type " + go.getClass().getCanonicalName() + ". Expected Rule or RuleList.",
+          DiagnosticSeverity.Error,
+          CODE_COMPILER_ERROR.toString()
+        )
+      );
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Compiles a top level rule or, if a rule with the same text was compiled before, reuses the results of that
+   * compilation, moved to where the rule is now.
+   *
+   * @param c The compilation context. Must only be used to compile this rule.
+   * @param docCtx The document context, used to report unexpected errors.
+   * @param ctx The rule context.
+   * @param cache The rules compiled in the last compilation.
+   * @param compiledRules The rules compiled or reused in this compilation. The rule is added to this map.
+   * @return The compiled rules. There can be more than one if the rule has a repeats clause.
+   * @throws IOException If there is a problem validating the rule.
+   */
+  private List<Rule> visitTopLevelRuleCached(CompilationContext c, DocumentContext docCtx, FcRuleContext ctx,
+                                             RuleCache cache, Map<String, CachedRule> compiledRules)
+    throws IOException {
+    final Token start = ctx.getStart();
+    final Token stop = ctx.getStop();
+    if (start == null || stop == null) {
+      return visitTopLevelRule(c, docCtx, ctx);
+    }
+
+    String text = start.getInputStream().getText(Interval.of(start.getStartIndex(), stop.getStopIndex()));
+    CachedRule cached = compiledRules.get(text);
+    if (cached == null) {
+      cached = cache.rules.get(text);
+    }
+    if (cached != null) {
+      compiledRules.put(text, cached);
+      return reuseRule(c, cached, start.getLine(), start.getCharPositionInLine());
+    }
+
+    List<Rule> res = visitTopLevelRule(c, docCtx, ctx);
+    // Rules that used the path information left by the previous rule cannot be reused
+    if (!c.usedPreviousInfo) {
+      compiledRules.put(text, new CachedRule(start.getLine(), start.getCharPositionInLine(), res,
+        new ArrayList<>(c.diagnostics), new ArrayList<>(c.referencesToCheck), c.infoSet, c.lastInfo));
+    }
+    return res;
+  }
+
+  /**
+   * Adds the results of a previous compilation of a top level rule, as if the rule had been compiled again.
+   *
+   * @param c The compilation context.
+   * @param cached The results of the previous compilation.
+   * @param line The line where the rule starts now.
+   * @param charPositionInLine The position in the line where the rule starts now.
+   * @return The rules moved to where the rule is now.
+   */
+  private List<Rule> reuseRule(CompilationContext c, CachedRule cached, int line, int charPositionInLine) {
+    final int rowDelta = line - cached.line;
+    final int colDelta = charPositionInLine - cached.charPositionInLine;
+    final List<Rule> res = new ArrayList<>();
+    for (Rule rule : cached.rules) {
+      res.add(rowDelta == 0 && colDelta == 0 ? rule : rule.move(cached.line, rowDelta, colDelta));
+      for (Resource resource : rule.getResources()) {
+        c.existingResources.add(resource.toResourceString());
+      }
+    }
+    // Diagnostics use 0-based lines
+    for (Diagnostic d : cached.diagnostics) {
+      Diagnostic diagnostic = new Diagnostic(moveRange(d.getRange(), cached.line - 1, rowDelta, colDelta),
+        d.getMessage(), d.getSeverity(), d.getSource());
+      diagnostic.setCode(d.getCode());
+      diagnostic.setData(d.getData());
+      c.diagnostics.add(diagnostic);
+    }
+    for (Pair<String, Range> reference : cached.references) {
+      c.referencesToCheck.add(reference.setAt1(moveRange(reference.getValue1(), cached.line - 1, rowDelta,
+        colDelta)));
+    }
+    if (cached.infoSet) {
+      c.infoSet = true;
+      c.lastInfo = cached.lastInfo;
+    }
+    return res;
+  }
+
+  /**
+   * Runs a list of visits and returns their results in order. If there is a pool, the visits run in parallel, each
+   * one with its own copy of the compilation context, and the copies are merged in order afterwards. The only state a
+   * visit can depend on is the path information left by the previous visit, so a visit that used it runs again once
+   * the previous ones have been merged. The results are the same as if the visits had run sequentially.
+   *
+   * @param c The compilation context.
+   * @param visits The visits.
+   * @param <T> The type of the results.
+   * @return The results, in the same order as the visits.
+   * @throws IOException If there is a problem validating the rules.
+   */
+  private <T> List<T> visitInParallel(CompilationContext c, List<Visit<T>> visits) throws IOException {
+    final List<T> res = new ArrayList<>();
+    if (pool == null || visits.size() < 2) {
+      for (Visit<T> visit : visits) {
+        CompilationContext fork = c.fork(true);
+        res.add(visit.visit(fork));
+        c.merge(fork);
+      }
+      return res;
+    }
+
+    final List<CompilationContext> forks = new ArrayList<>();
+    final List<ForkJoinTask<T>> tasks = new ArrayList<>();
+    for (Visit<T> visit : visits) {
+      CompilationContext fork = c.fork(false);
+      forks.add(fork);
+      tasks.add(ForkJoinTask.adapt(() -> visit.visit(fork)));
+    }
+    try {
+      if (ForkJoinTask.getPool() == pool) {
+        ForkJoinTask.invokeAll(tasks);
+      } else {
+        pool.invoke(ForkJoinTask.adapt(() -> { ForkJoinTask.invokeAll(tasks); }));
+      }
+    } catch (RuntimeException e) {
+      // Checked exceptions are wrapped by the pool
+      for (Throwable t = e; t != null; t = t.getCause()) {
+        if (t instanceof IOException) {
+          throw (IOException) t;
+        }
+      }
+      throw e;
+    }
+
+    for (int i = 0; i < visits.size(); i++) {
+      CompilationContext fork = forks.get(i);
+      T result = tasks.get(i).join();
+      if (fork.usedPreviousInfo && c.lastInfo != null) {
+        fork = c.fork(true);
+        result = visits.get(i).visit(fork);
+      }
+      res.add(result);
+      c.merge(fork);
+    }
+    return res;
+  }
+
+  private Range moveRange(Range range, int line, int rowDelta, int colDelta) {
+    return new Range(movePosition(range.getStart(), line, rowDelta, colDelta),
+      movePosition(range.getEnd(), line, rowDelta, colDelta));
+  }
+
+  private Position movePosition(Position position, int line, int rowDelta, int colDelta) {
+    return new Position(position.getLine() + rowDelta,
+      position.getLine() == line ? position.getCharacter() + colDelta : position.getCharacter());
+  }
+
   /**
    * Returns a set of fields that require a mapping.
    *
    * @param rules The list of transformation rules.
    * @return The set of fields that require a mapping.
    */
-  private Set<String> getFieldsThatNeedMapping(List<Rule> rules) {
+  private Set<String> getFieldsThatNeedMapping(CompilationContext c, List<Rule> rules) {
     Set<String> fields = new HashSet<>();
     for (Rule rule : rules) {
       for (Resource res : rule.getResources()) {
@@ -558,7 +872,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           if (val instanceof CodeSelectedValue || val instanceof ConceptSelectedValue) {
             FieldBasedValue fbv = (FieldBasedValue) val;
             String fieldId = fbv.getFieldId();
-            Field f = schema.getField(fieldId);
+            Field f = c.schema.getField(fieldId);
             if (f == null) {
               continue;
             }
@@ -568,7 +882,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           } else if (val instanceof  ConceptValue) {
             FieldBasedValue fbv = (FieldBasedValue) val;
             String fieldId = fbv.getFieldId();
-            Field f = schema.getField(fieldId);
+            Field f = c.schema.getField(fieldId);
             if (f == null) {
               continue;
             }
@@ -596,13 +910,40 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return imp.loadSchema(schemaFile);
   }
 
-  private GrammarObject visitSchemaInternal(SchemaContext ctx) {
+  /**
+   * Loads a REDCap schema, reusing the schema loaded previously from the same file if the file has not been modified.
+   *
+   * @param schemaFile The schema file.
+   * @return The schema or null if the type of schema is unknown.
+   */
+  private au.csiro.redmatch.model.Schema loadRedcapSchemaCached(File schemaFile) {
+    String key = schemaFile.getAbsolutePath();
+    long lastModified = schemaFile.lastModified();
+    long length = schemaFile.length();
+    CachedSchema cached;
+    synchronized (schemaCache) {
+      cached = schemaCache.get(key);
+    }
+    if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+      log.debug("Reusing schema loaded from " + key);
+      return cached.schema;
+    }
+    au.csiro.redmatch.model.Schema res = loadRedcapSchema(schemaFile);
+    if (res != null) {
+      synchronized (schemaCache) {
+        schemaCache.put(key, new CachedSchema(lastModified, length, res));
+      }
+    }
+    return res;
+  }
+
+  private GrammarObject visitSchemaInternal(CompilationContext c, SchemaContext ctx) {
     String schemaType = ctx.SCHEMA_TYPE().getText();
     if("REDCAP".equals(schemaType)) {
       String schemaLocation = removeEnds(ctx.STRING().getText());
-      return new Schema(this.baseFolder, schemaLocation, schemaType);
+      return new Schema(c.baseFolder, schemaLocation, schemaType);
     } else {
-      this.diagnostics.add(
+      c.diagnostics.add(
         getDiagnosticFromContext(ctx, "Unsupported schema type: " + schemaType, DiagnosticSeverity.Error,
           CODE_UNSUPPORTED_SCHEMA.toString())
       );
@@ -610,7 +951,25 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
   }
 
-  private GrammarObject visitFcRuleInternal(FcRuleContext ctx, Variables var) throws IOException {
+  private GrammarObject visitFcRuleInternal(CompilationContext c, FcRuleContext ctx, Variables var) throws IOException {
+    if (ctx.repeatsClause() != null) {
+      final RuleList res = new RuleList();
+      
+      final RepeatsClause rc = visitRepeatsClauseInternal(ctx.repeatsClause());
+      final List<Visit<Rule>> visits = new ArrayList<>();
+      for (int i = rc.getStart(); i <= rc.getEnd(); i++) {
+        Variables newVar = new Variables(var);
+        newVar.addVariable(rc.getVarName(), i);
+        visits.add(ic -> processRule(ic, ctx, newVar));
+      }
+      res.getRules().addAll(visitInParallel(c, visits));
+      return res;
+    } else {
+      return processRule(c, ctx, var);
+    }
+  }
+  
+  private Rule processRule(CompilationContext c, FcRuleContext ctx, Variables var) throws IOException {
     final Token start = ctx.getStart();
     final Token stop = ctx.getStop();
     
@@ -633,56 +992,39 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       endCol = startCol + 1;
     }
 
-    if (ctx.repeatsClause() != null) {
-      final RuleList res = new RuleList();
-      
-      final RepeatsClause rc = visitRepeatsClauseInternal(ctx.repeatsClause());
-      for (int i = rc.getStart(); i <= rc.getEnd(); i++) {
-        Variables newVar = new Variables(var);
-        newVar.addVariable(rc.getVarName(), i);
-        res.getRules().add(processRule(ctx, startRow, startCol, endRow, endCol, newVar));
-      }
-      return res;
-    } else {
-      return processRule(ctx, startRow, startCol, endRow, endCol, var);
-    }
-  }
-  
-  private Rule processRule(FcRuleContext ctx, int startRow, int startCol, int endRow, int endCol, Variables var)
-    throws IOException {
     final Rule res = new Rule(startRow, startCol, endRow, endCol);
     if (ctx.condition() != null) {
-      final Condition c = (Condition) visitConditionInternal(ctx.condition(), var);
-      res.setCondition(c);
+      final Condition cond = (Condition) visitConditionInternal(c, ctx.condition(), var);
+      res.setCondition(cond);
     } else {
-      this.diagnostics.add(
+      c.diagnostics.add(
         getDiagnosticFromContext(ctx, "Expected a condition but it was null.", DiagnosticSeverity.Error,
           CODE_COMPILER_ERROR.toString())
       );
     }
     if (ctx.fcBody().size() > 0) {
-      res.setBody(visitFcBodyInternal(ctx.fcBody(0), var));
+      res.setBody(visitFcBodyInternal(c, ctx.fcBody(0), var));
     } else {
-      this.diagnostics.add(
+      c.diagnostics.add(
         getDiagnosticFromContext(ctx,"Expected at least one body but found none.", DiagnosticSeverity.Error,
           CODE_COMPILER_ERROR.toString())
       );
     }
     if (ctx.fcBody().size() > 1) {
-      res.setElseBody(visitFcBodyInternal(ctx.fcBody(1), var));
+      res.setElseBody(visitFcBodyInternal(c, ctx.fcBody(1), var));
     }
     return res;
   }
 
-  private Body visitFcBodyInternal(FcBodyContext ctx, Variables var) throws IOException {
+  private Body visitFcBodyInternal(CompilationContext c, FcBodyContext ctx, Variables var) throws IOException {
     final Body b = new Body();
     
     for(ResourceContext rc : ctx.resource()) {
-      b.getResources().add(visitResourceInternal(rc, var));
+      b.getResources().add(visitTemplate(c, List.of(rc), var, tc -> visitResourceInternal(tc, rc, var)));
     }
     
     for(FcRuleContext rc : ctx.fcRule()) {
-      GrammarObject go = visitFcRuleInternal(rc, var);
+      GrammarObject go = visitFcRuleInternal(c, rc, var);
       if (go instanceof Rule) {
         b.getRules().add((Rule) go);
       } else if (go instanceof RuleList) {
@@ -707,7 +1049,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return s.substring(1, s.length() - 1);
   }
   
-  private String processFhirOrRedcapId(TerminalNode tn, Token t, Variables var) {
+  private String processFhirOrRedcapId(CompilationContext c, TerminalNode tn, Token t, Variables var) {
     // Determine if the token has a Redmatch variable in it and if so replace it with its actual
     // value - this will look like #cmdt_zyg1 or #cmdt_zyg${x} 
     String s = t.getText();
@@ -722,7 +1064,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       try {
         val = var.getValue(v);
       } catch (UnknownVariableException e) {
-        this.diagnostics.add(getDiagnosticFromTerminalNode(tn, e.getLocalizedMessage(), DiagnosticSeverity.Error,
+        c.diagnostics.add(getDiagnosticFromTerminalNode(tn, e.getLocalizedMessage(), DiagnosticSeverity.Error,
           CODE_UNKNOWN_VARIABLE.toString()));
       }
       sb.append(val);
@@ -735,37 +1077,39 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return sb.toString();
   }
   
-  private String processRedcapId(TerminalNode tn, Token t, Variables var) {
-    String text = processFhirOrRedcapId(tn, t, var);
+  private String processRedcapId(CompilationContext c, TerminalNode tn, Token t, Variables var) {
+    String text = processFhirOrRedcapId(c, tn, t, var);
+    ReplacementSuggestion suggestion = null;
     if (!redcapIdPattern.matcher(text).matches()) {
-      this.diagnostics.add(
+      suggestion = new ReplacementSuggestion(text, getClosestRedcapId(c, text));
+      c.diagnostics.add(
         getDiagnosticFromTerminalNode(
           tn,
           "Invalid REDCap id '" + text + "': must match this regex: [a-z][A-Za-z0-9_]*",
           DiagnosticSeverity.Error,
           CODE_INVALID_REDCAP_ID.toString(),
-          new ReplacementSuggestion(text, getClosestRedcapId(text))
+          suggestion
         )
       );
     }
 
-    if (!this.schema.hasField(text)) {
-      this.diagnostics.add(
+    if (!c.schema.hasField(text)) {
+      c.diagnostics.add(
         getDiagnosticFromTerminalNode(tn,
           "Field " + text + " does not exist in REDCap schema.",
           DiagnosticSeverity.Error,
           CODE_UNKNOWN_REDCAP_FIELD.toString(),
-          new ReplacementSuggestion(text, getClosestRedcapId(text))
+          suggestion != null ? suggestion : new ReplacementSuggestion(text, getClosestRedcapId(c, text))
         )
       );
     }
     return text;
   }
   
-  private String processFhirId(TerminalNode tn, Token t, Variables var) {
-    String text = processFhirOrRedcapId(tn, t, var);
+  private String processFhirId(CompilationContext c, TerminalNode tn, Token t, Variables var) {
+    String text = processFhirOrRedcapId(c, tn, t, var);
     if (!fhirIdPattern.matcher(text).matches()) {
-      this.diagnostics.add(
+      c.diagnostics.add(
         getDiagnosticFromTerminalNode(
           tn,
           "Invalid FHIR id '" + text + "': must match this regex: [A-Za-z0-9\\-\\.]{1,64}",
@@ -778,29 +1122,29 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return text;
   }
 
-  private GrammarObject visitConditionInternal(ConditionContext ctx, Variables var) {
+  private GrammarObject visitConditionInternal(CompilationContext c, ConditionContext ctx, Variables var) {
     ParseTree first = ctx.getChild(0);
     if (first instanceof TerminalNode) {
       TerminalNode tn = (TerminalNode) first;
       String text = tn.getSymbol().getText();
       if ("^".equals(text)) {
-        final Condition c = (Condition) visitConditionInternal(ctx.condition(0), var);
-        assert c != null;
-        c.setNegated(true);
-        return c;
+        final Condition cond = (Condition) visitConditionInternal(c, ctx.condition(0), var);
+        assert cond != null;
+        cond.setNegated(true);
+        return cond;
       } else if ("TRUE".equals(text)) {
         return new ConditionExpression(true);
       } else if ("FALSE".equals(text)) {
         return new ConditionExpression(false);
       } else if ("NULL".equals(text)) {
-        String id = processRedcapId(ctx.ID(), ctx.ID().getSymbol(), var);
+        String id = processRedcapId(c, ctx.ID(), ctx.ID().getSymbol(), var);
         return new ConditionExpression(id, true);
       } else if ("NOTNULL".equals(text)) {
-        String id = processRedcapId(ctx.ID(), ctx.ID().getSymbol(), var);
+        String id = processRedcapId(c, ctx.ID(), ctx.ID().getSymbol(), var);
         return new ConditionExpression(id, false);
       } else if ("VALUE".equals(text)) {
         if (ctx.getChildCount() < 6) {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(
               ctx,
               "Expected at least 6 children but found " + ctx.getChildCount(),
@@ -811,11 +1155,11 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           return null;
         }
         
-        String id = processRedcapId(ctx.ID(), ctx.ID().getSymbol(), var);
+        String id = processRedcapId(c, ctx.ID(), ctx.ID().getSymbol(), var);
         String ops = ctx.getChild(4).getText();
         ConditionExpression.ConditionExpressionOperator op = getOp(ops);
         if (op == null) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "Unexpected operator " + ops, DiagnosticSeverity.Error,
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "Unexpected operator " + ops, DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString()));
         } else if (ctx.STRING() != null) {
           return new ConditionExpression(id, op, removeEnds(ctx.STRING().getText()));
@@ -828,15 +1172,15 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           }
         }
       } else if ("(".equals(text)) {
-        return visitConditionInternal(ctx.condition(0), var);
+        return visitConditionInternal(c, ctx.condition(0), var);
       } else {
-        this.diagnostics.add(getDiagnosticFromContext(ctx,
+        c.diagnostics.add(getDiagnosticFromContext(ctx,
             "Expected TRUE, FALSE, NULL, NOTNULL, VALUE or ( but found  " + text, DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString()));
       }
     } else {
       if (ctx.getChildCount() < 2) {
-        this.diagnostics.add(getDiagnosticFromContext(ctx,
+        c.diagnostics.add(getDiagnosticFromContext(ctx,
             "Expected at least two children but found " + ctx.getChildCount(), DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString()));
       }
@@ -845,21 +1189,21 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         TerminalNode tn = (TerminalNode) second;
         String text = tn.getSymbol().getText();
         if ("&".equals(text)) {
-          return new ConditionNode((Condition) visitConditionInternal(ctx.condition(0), var),
+          return new ConditionNode((Condition) visitConditionInternal(c, ctx.condition(0), var),
               ConditionNode.ConditionNodeOperator.AND,
-              (Condition) visitConditionInternal(ctx.condition(1), var));
+              (Condition) visitConditionInternal(c, ctx.condition(1), var));
         } else if ("|".equals(text)) {
-          return new ConditionNode((Condition) visitConditionInternal(ctx.condition(0), var),
+          return new ConditionNode((Condition) visitConditionInternal(c, ctx.condition(0), var),
               ConditionNode.ConditionNodeOperator.OR,
-              (Condition) visitConditionInternal(ctx.condition(1), var));
+              (Condition) visitConditionInternal(c, ctx.condition(1), var));
         } else {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(ctx, "Expected & or | but found " + text, DiagnosticSeverity.Error,
               CODE_COMPILER_ERROR.toString())
           );
         }
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, "Expected a terminal node but found " + second, DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString())
         );
@@ -886,7 +1230,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
   }
 
-  private Resource visitResourceInternal(ResourceContext ctx, Variables var) throws IOException {
+  private Resource visitResourceInternal(CompilationContext c, ResourceContext ctx, Variables var) throws IOException {
     final Resource res = new Resource();
     if (ctx == null) {
       return res;
@@ -895,65 +1239,118 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     String resourceType = ctx.ID().get(0).getText();
 
     // Validate resource name
-    ValidationResult vr = validator.validateResourceName(resourceType);
+    ValidationResult vr = c.validateResourceName(resourceType);
     if (!vr.getResult()) {
       for (String msg : vr.getMessages()) {
-        this.diagnostics.add(getDiagnosticFromContext(ctx, msg, DiagnosticSeverity.Error,
+        c.diagnostics.add(getDiagnosticFromContext(ctx, msg, DiagnosticSeverity.Error,
           CODE_INVALID_FHIR_RESOURCE.toString()));
       }
     }
     res.setResourceType(resourceType);
 
     TerminalNode resourceIdNode = ctx.ID().get(1);
-    String resourceId = processFhirId(resourceIdNode, resourceIdNode.getSymbol(), var);
+    String resourceId = processFhirId(c, resourceIdNode, resourceIdNode.getSymbol(), var);
     res.setResourceId(resourceId);
 
-    existingResources.add(res.toResourceString());
+    c.existingResources.add(res.toResourceString());
     
     for (int i = 0; i < ctx.attribute().size(); i++) {
-      AttributeValue av = new AttributeValue();
-      av.setAttributes(visitAttributeInternal(res.getResourceType(), ctx.attribute(i), var));
-      av.setValue(visitValueInternal(ctx.value(i), var));
-      res.getResourceAttributeValues().add(av);
+      final AttributeContext attCtx = ctx.attribute(i);
+      final ValueContext valCtx = ctx.value(i);
+      res.getResourceAttributeValues().add(visitTemplate(c, List.of(attCtx, valCtx), var,
+        tc -> visitAttributeValueInternal(tc, resourceType, attCtx, valCtx, var)));
     }
 
     return res;
   }
 
-  private Attribute visitAttributePathInternal(AttributePathContext ctx, Variables var) {
+  private AttributeValue visitAttributeValueInternal(CompilationContext c, String resourceType, AttributeContext attCtx,
+                                                     ValueContext valCtx, Variables var) throws IOException {
+    AttributeValue av = new AttributeValue();
+    av.setAttributes(visitAttributeInternal(c, resourceType, attCtx, var));
+    av.setValue(visitValueInternal(c, valCtx, var));
+    return av;
+  }
+
+  /**
+   * Visits a part of a rule that is inside a repeats clause. If the part does not use any variables then it is the
+   * same in every iteration, so it is only visited once, the result is shared by all the iterations and the
+   * diagnostics and references it produced are added again in each one. Parts that use variables, or that depend on
+   * the path information left by the previous attribute, are visited every time.
+   *
+   * @param c The compilation context.
+   * @param parts The parse tree nodes that make up the part of the rule, e.g., an attribute and its value. Used as
+   *              key, so they must be the same in every iteration.
+   * @param var The variables.
+   * @param visit The visit.
+   * @param <T> The type of the result.
+   * @return The result of the visit.
+   * @throws IOException If there is a problem validating the rule.
+   */
+  @SuppressWarnings("unchecked")
+  private <T> T visitTemplate(CompilationContext c, List<ParserRuleContext> parts, Variables var, Visit<T> visit)
+    throws IOException {
+    if (var.isEmpty()) {
+      return visit.visit(c);
+    }
+
+    Template template = c.templates.get(parts);
+    if (template == null) {
+      if (parts.stream().anyMatch(p -> redmatchVariablePattern.matcher(p.getText()).find())) {
+        template = Template.VARIABLE;
+      } else {
+        CompilationContext tc = c.fork(false);
+        T res = visit.visit(tc);
+        template = tc.usedPreviousInfo ? Template.VARIABLE : new Template(res, tc);
+      }
+      Template existing = c.templates.putIfAbsent(parts, template);
+      if (existing != null) {
+        template = existing;
+      }
+    }
+
+    if (template == Template.VARIABLE) {
+      return visit.visit(c);
+    }
+    c.merge(template.context);
+    return (T) template.result;
+  }
+
+  private Attribute visitAttributePathInternal(CompilationContext c, AttributePathContext ctx, Variables var) {
     Attribute att = new Attribute();
     att.setName(ctx.PATH().getText());
     if (ctx.INDEX() != null) {
-      String val = processFhirOrRedcapId(ctx.INDEX(), ctx.INDEX().getSymbol(), var);
+      String val = processFhirOrRedcapId(c, ctx.INDEX(), ctx.INDEX().getSymbol(), var);
       att.setAttributeIndex(Integer.parseInt(val));
     }
     return att;
   }
 
-  private List<Attribute> visitAttributeInternal(String resourceType, AttributeContext ctx, Variables var)
-    throws IOException {
+  private List<Attribute> visitAttributeInternal(CompilationContext c, String resourceType, AttributeContext ctx,
+                                                 Variables var) throws IOException {
     final List<Attribute> res = new ArrayList<>();
     String path = resourceType;
     
     for (AttributePathContext apCtx : ctx.attributePath()) {
-      Attribute att = visitAttributePathInternal(apCtx, var);
+      Attribute att = visitAttributePathInternal(c, apCtx, var);
       res.add(att);
       
       // Validate attribute
       path = path + "." + att.getName();
       log.debug("Validating path " + path);
-      ValidationResult vr = validator.validateAttributePath(path);
+      ValidationResult vr = c.validateAttributePath(path);
       if (!vr.getResult()) {
         for (String msg : vr.getMessages()) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, msg, DiagnosticSeverity.Error,
+          c.diagnostics.add(getDiagnosticFromContext(ctx, msg, DiagnosticSeverity.Error,
             CODE_INVALID_FHIR_ATTRIBUTE_PATH.toString()));
         }
         break;
       } else {
         // TODO: check what happens with extension[0].valueReference = REF(ResearchStudy<rstud>)
         // Add test case for FHIR exporter with an extension
-        CodeInfo info = validator.getPathInfo(path);
-        lastInfo = info;
+        CodeInfo info = c.getPathInfo(path);
+        c.lastInfo = info;
+        c.infoSet = true;
         
         String max = info.getMax();
         if ("*".equals(max)) {
@@ -961,13 +1358,13 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         } else {
           int maxInt = Integer.parseInt(max);
           if (maxInt == 0) {
-            this.diagnostics.add(getDiagnosticFromContext(ctx, "Unable to set attribute "
+            c.diagnostics.add(getDiagnosticFromContext(ctx, "Unable to set attribute "
                 + path + " with max cardinality of 0.", DiagnosticSeverity.Error,
               CODE_FHIR_ATTRIBUTE_NOT_ALLOWED.toString()));
             break;
           } else if (att.hasAttributeIndex() && att.getAttributeIndex() >= maxInt) {
             // e.g. myAttr[1] would be illegal if maxInt = 1
-            this.diagnostics.add(getDiagnosticFromContext(ctx, "Attribute " + att +
+            c.diagnostics.add(getDiagnosticFromContext(ctx, "Attribute " + att +
               " is setting an invalid index (max = " + maxInt + ").", DiagnosticSeverity.Error,
               CODE_INVALID_FHIR_ATTRIBUTE_INDEX.toString()));
             break;
@@ -979,22 +1376,25 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     return res;
   }
 
-  private Value visitValueInternal(ValueContext ctx, Variables var) {
+  private Value visitValueInternal(CompilationContext c, ValueContext ctx, Variables var) {
     // Check Redmatch expression is compatible with REDCap field type
     final String errorMsg = "%s cannot be assigned to attribute of type %s";
-    if(lastInfo == null) {
-      this.diagnostics.add(
+    if (!c.infoSet) {
+      c.usedPreviousInfo = true;
+    }
+    if(c.lastInfo == null) {
+      c.diagnostics.add(
         getDiagnosticFromContext(ctx, "No path information for leaf node", DiagnosticSeverity.Error,
           CODE_COMPILER_ERROR.toString())
       );
       return null;
     }
 
-    final String type = lastInfo.getType();
+    final String type = c.lastInfo.getType();
     
     if (ctx.TRUE() != null) {
       if (!type.equals("boolean")) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, String.format(errorMsg, "Boolean value", type), DiagnosticSeverity.Error,
             CODE_INCOMPATIBLE_TYPE.toString())
         );
@@ -1003,17 +1403,17 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     } else if (ctx.FALSE() != null) {
       return new BooleanValue(false);
     }  else if (ctx.VALUE() != null) {
-      String fieldId = processRedcapId(ctx.ID(), ctx.ID().getSymbol(), var);
+      String fieldId = processRedcapId(c, ctx.ID(), ctx.ID().getSymbol(), var);
 
       // Validate REDCap field exists
-      if (!this.schema.hasField(fieldId)) {
-        this.diagnostics.add(
+      if (!c.schema.hasField(fieldId)) {
+        c.diagnostics.add(
           getDiagnosticFromTerminalNode(
             ctx.ID(),
             "Field " + fieldId + " does not exist in REDCap.",
             DiagnosticSeverity.Error,
             CODE_UNKNOWN_REDCAP_FIELD.toString(),
-            new ReplacementSuggestion(fieldId, getClosestRedcapId(fieldId))
+            new ReplacementSuggestion(fieldId, getClosestRedcapId(c, fieldId))
           )
         );
       }
@@ -1030,7 +1430,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         } else if (str.equalsIgnoreCase("DAY")) {
           val = new FieldValue(fieldId, FieldValue.DatePrecision.DAY);
         } else {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "Invalid value " + str
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "Invalid value " + str
             + ". Valid values are YEAR, MONTH and DAY.", DiagnosticSeverity.Error,
             CODE_INVALID_DATE_PRECISION.toString()));
         }
@@ -1043,13 +1443,13 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       if (!(type.equals("string") || type.equals("markdown") || type.equals("id") 
           || type.equals("uri") || type.equals("oid") || type.equals("uuid") 
           || type.equals("canonical") || type.equals("url"))) {
-        this.diagnostics.add(getDiagnosticFromContext(ctx, String.format(errorMsg, "String literal",
+        c.diagnostics.add(getDiagnosticFromContext(ctx, String.format(errorMsg, "String literal",
             type), DiagnosticSeverity.Error, CODE_INCOMPATIBLE_TYPE.toString()));
       }
       
       String str = removeEnds(ctx.STRING().getText());
       if (type.equals("id") && !fhirIdPattern.matcher(str).matches()) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(
             ctx,
             "FHIR id " + str + " is invalid (it should match this regex: [A-Za-z0-9\\-\\.]{1,64})",
@@ -1062,21 +1462,21 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         try {
           log.debug("Checking URI: " + URI.create(str));
         } catch (IllegalArgumentException e) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "URI " + str + " is invalid: "
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "URI " + str + " is invalid: "
               + e.getLocalizedMessage(), DiagnosticSeverity.Error, CODE_INVALID_URI.toString()));
         }
       } else if (type.equals("oid")) {
         try {
           new Oid(str);
         } catch (GSSException e) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "OID " + str + " is invalid: "
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "OID " + str + " is invalid: "
               + e.getLocalizedMessage(), DiagnosticSeverity.Error, CODE_INVALID_OID.toString()));
         }
       } else if (type.equals("uuid")) {
         try {
           log.debug("Checking UUID: " + UUID.fromString(str));
         } catch (IllegalArgumentException e) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "UUID " + str + " is invalid: "
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "UUID " + str + " is invalid: "
               + e.getLocalizedMessage(), DiagnosticSeverity.Error, CODE_INVALID_UUID.toString()));
         }
       } else if (type.equals("canonical")) {
@@ -1085,7 +1485,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         if (str.contains("|")) {
           String[] parts = str.split("[|]");
           if (parts.length != 2) {
-            this.diagnostics.add(
+            c.diagnostics.add(
               getDiagnosticFromContext(ctx, "Canonical " + str + " is invalid", DiagnosticSeverity.Error,
                 CODE_INVALID_CANONICAL.toString())
             );
@@ -1099,7 +1499,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           assert uri != null;
           log.debug("Checking URI: " + URI.create(uri));
         } catch (IllegalArgumentException e) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "Canonical " + str + " is invalid: "
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "Canonical " + str + " is invalid: "
               + e.getLocalizedMessage(), DiagnosticSeverity.Error, CODE_INVALID_CANONICAL.toString()));
         }
         
@@ -1107,7 +1507,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         try {
           new URL(str);
         } catch (MalformedURLException e) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, "URL " + str + " is invalid: "
+          c.diagnostics.add(getDiagnosticFromContext(ctx, "URL " + str + " is invalid: "
               + e.getLocalizedMessage(), DiagnosticSeverity.Error, CODE_INVALID_URL.toString()));
         }
       }
@@ -1119,7 +1519,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         return new DoubleValue(Double.parseDouble(num));
       } else {
         if (!type.equals("integer")) {
-          this.diagnostics.add(getDiagnosticFromContext(ctx, String.format(errorMsg, "Integer literal",
+          c.diagnostics.add(getDiagnosticFromContext(ctx, String.format(errorMsg, "Integer literal",
               type), DiagnosticSeverity.Error, CODE_INCOMPATIBLE_TYPE.toString()));
         }
         return new IntegerValue(Integer.parseInt(num));
@@ -1128,15 +1528,15 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       // Subclasses of DomainResource
       // TODO: this checks the type is not primitive but complex types can still slip through
       if (!type.isEmpty() && !Character.isUpperCase(type.charAt(0))) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, String.format(errorMsg, "Reference", type), DiagnosticSeverity.Error,
             CODE_INCOMPATIBLE_TYPE.toString())
         );
       }
-      return visitReferenceInternal(ctx.reference(), var);
+      return visitReferenceInternal(c, ctx.reference(), var);
     } else if (ctx.CONCEPT_LITERAL() != null) {
       if (!type.equals("Coding") && !type.equals("CodeableConcept")) {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, String.format(errorMsg, "Concept literal", type), DiagnosticSeverity.Error,
             CODE_INCOMPATIBLE_TYPE.toString())
         );
@@ -1147,11 +1547,11 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       String display = null;
       List<TerminalNode> parts = ctx.CL_PART();
       if (ctx.CL_ALIAS() != null) {
-        system =  resolveAlias(ctx.CL_ALIAS(), ctx.CL_ALIAS().getText());
+        system =  resolveAlias(c, ctx.CL_ALIAS(), ctx.CL_ALIAS().getText());
         if (!parts.isEmpty()) {
           code = parts.get(0).getText();
         } else {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(ctx, "Expected at least one CL_PART", DiagnosticSeverity.Error,
               CODE_COMPILER_ERROR.toString())
           );
@@ -1162,7 +1562,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
           system = parts.get(0).getText();
           code = parts.get(1).getText();
         } else {
-          this.diagnostics.add(
+          c.diagnostics.add(
             getDiagnosticFromContext(ctx, "Expected at least two CL_PARTs", DiagnosticSeverity.Error,
               CODE_COMPILER_ERROR.toString())
           );
@@ -1181,7 +1581,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         return new ConceptLiteralValue(system, code);
       }
     } else if (ctx.CONCEPT() != null || ctx.CONCEPT_SELECTED() != null || ctx.CODE_SELECTED() != null) {
-      String fieldId = processRedcapId(ctx.ID(), ctx.ID().getSymbol(), var);
+      String fieldId = processRedcapId(c, ctx.ID(), ctx.ID().getSymbol(), var);
       FieldBasedValue val;
 
       if (ctx.CONCEPT() != null) {
@@ -1191,44 +1591,44 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       } else if (ctx.CODE_SELECTED() != null) {
         val = new CodeSelectedValue(fieldId);
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, "Invalid expression", DiagnosticSeverity.Error, CODE_COMPILER_ERROR.toString())
         );
         return null;
       }
-      validateField(fieldId, val, ctx);
+      validateField(c, fieldId, val, ctx);
       return val;
     } else if (ctx.CODE() != null) {
       return new CodeLiteralValue(ctx.C_ID().getSymbol().getText());
     } else {
-      this.diagnostics.add(getDiagnosticFromContext(ctx, "Unexpected value context: " + ctx, DiagnosticSeverity.Error,
+      c.diagnostics.add(getDiagnosticFromContext(ctx, "Unexpected value context: " + ctx, DiagnosticSeverity.Error,
         CODE_COMPILER_ERROR.toString()));
       return null;
     }
   }
 
-  private void validateField(String fieldId, FieldBasedValue val, ParserRuleContext ctx) {
+  private void validateField(CompilationContext c, String fieldId, FieldBasedValue val, ParserRuleContext ctx) {
     List<String> msgs = new ArrayList<>();
-    Field field = this.schema.getField(fieldId);
+    Field field = c.schema.getField(fieldId);
     if (field != null) {
       if (!field.isCompatibleWith(val, msgs)) {
-        msgs.forEach(m -> this.diagnostics.add(getDiagnosticFromContext(ctx, m, DiagnosticSeverity.Error,
+        msgs.forEach(m -> c.diagnostics.add(getDiagnosticFromContext(ctx, m, DiagnosticSeverity.Error,
           CODE_INCOMPATIBLE_EXPRESSION.toString())));
       }
     }
   }
 
-  private ConceptLiteralValue processMapTarget(MappingContext ctx) {
+  private ConceptLiteralValue processMapTarget(CompilationContext c, MappingContext ctx) {
     String system;
     String code;
     String display = null;
     List<TerminalNode> parts = ctx.CL_PART();
     if (ctx.CL_ALIAS() != null) {
-      system = resolveAlias(ctx.CL_ALIAS(), ctx.CL_ALIAS().getText());
+      system = resolveAlias(c, ctx.CL_ALIAS(), ctx.CL_ALIAS().getText());
       if (!parts.isEmpty()) {
         code = parts.get(0).getText();
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, "Expected at least one CL_PART", DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString())
         );
@@ -1239,7 +1639,7 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
         system = parts.get(0).getText();
         code = parts.get(1).getText();
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromContext(ctx, "Expected at least two CL_PARTs", DiagnosticSeverity.Error,
             CODE_COMPILER_ERROR.toString())
         );
@@ -1259,19 +1659,19 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
   }
 
-  private String resolveAlias(TerminalNode tn, String s) {
+  private String resolveAlias(CompilationContext c, TerminalNode tn, String s) {
     if (s.startsWith("$")) {
-      String replacement = aliases.get(s);
+      String replacement = c.aliases.get(s);
       if (replacement != null) {
         return replacement;
       } else {
-        this.diagnostics.add(
+        c.diagnostics.add(
           getDiagnosticFromTerminalNode(
             tn,
             "Invalid alias found: " + s,
             DiagnosticSeverity.Error,
             CODE_INVALID_ALIAS.toString(),
-            new ReplacementSuggestion(s, StringUtils.getClosest(s, aliases.keySet()))
+            new ReplacementSuggestion(s, StringUtils.getClosest(s, c.aliases.keySet()))
           )
         );
         return s;
@@ -1288,18 +1688,18 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
    *   
    * Example: REF(Patient<p>)
    */
-  private Value visitReferenceInternal(ReferenceContext ctx, Variables var) {
+  private Value visitReferenceInternal(CompilationContext c, ReferenceContext ctx, Variables var) {
     final String resType = ctx.ID(0).getText();
     
     // Validate reference based on target profiles
-    final List<String> tgtProfiles = lastInfo.getTargetProfiles();
+    final List<String> tgtProfiles = c.lastInfo.getTargetProfiles();
     
     // Special cases: no target profiles or target profile is Resource
     if (!tgtProfiles.isEmpty() 
         && !(tgtProfiles.size() == 1 && tgtProfiles.get(0).equals(RESOURCE_URL))) {
       // Otherwise we need to make sure that at least one applies
       boolean foundCompatible = false;
-      for (String targetProfile : lastInfo.getTargetProfiles()) {
+      for (String targetProfile : c.lastInfo.getTargetProfiles()) {
         if (targetProfile.endsWith(resType)) {
           foundCompatible = true;
           break;
@@ -1307,28 +1707,28 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
       }
       
       if (!foundCompatible) {
-        this.diagnostics.add(getDiagnosticFromContext(ctx, "Attribute " + lastInfo.getPath()
+        c.diagnostics.add(getDiagnosticFromContext(ctx, "Attribute " + c.lastInfo.getPath()
             + " is of type reference but the resource type " + resType + " is incompatible. Valid "
-            + "values are: " + String.join(",", lastInfo.getTargetProfiles()), DiagnosticSeverity.Error,
+            + "values are: " + String.join(",", c.lastInfo.getTargetProfiles()), DiagnosticSeverity.Error,
             CODE_INVALID_REFERENCE_TYPE.toString()));
       }
     }
     
     final ReferenceValue res = new ReferenceValue();
     res.setResourceType(resType);
-    String id = processFhirId(ctx.ID(1), ctx.ID(1).getSymbol(), var);
+    String id = processFhirId(c, ctx.ID(1), ctx.ID(1).getSymbol(), var);
     res.setResourceId(id);
 
-    // Check if this resource exists
-    if (!existingResources.contains(res.toResourceString())) {
-      referencesToCheck.add(new Pair<>(res.toResourceString(), ctx));
-    }
+    // The resource might be created by a rule that has not been processed yet, so this is checked at the end. It is
+    // always added, even if the resource already exists, so the compilation of this rule does not depend on others.
+    c.referencesToCheck.add(new Pair<>(res.toResourceString(), getRange(ctx)));
     
     return res;
   }
 
-  private void addError(String token, int line, int charPositionInLine, String msg, String source, String code) {
-    this.diagnostics.add(
+  private void addError(CompilationContext c, String token, int line, int charPositionInLine, String msg, String source,
+                        String code) {
+    c.diagnostics.add(
       new Diagnostic(
         toRange(line, charPositionInLine, token),
         msg,
@@ -1394,61 +1794,44 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
 
   private Diagnostic getDiagnosticFromContext(ParserRuleContext ctx, String  msg, DiagnosticSeverity severity,
                                               String code, Object data) {
+    return getDiagnostic(getRange(ctx), msg, severity, code, data);
+  }
+
+  private Diagnostic getDiagnostic(Range range, String  msg, DiagnosticSeverity severity, String code, Object data) {
+    Diagnostic diagnostic = new Diagnostic(range, msg, severity, SRC_COMPILER, code);
+    if (data != null) {
+      diagnostic.setData(data);
+    }
+    return diagnostic;
+  }
+
+  private Range getRange(ParserRuleContext ctx) {
     final Token start = ctx.getStart();
     final Token stop = ctx.getStop();
     if (start == null || stop == null) {
-      Diagnostic diagnostic = new Diagnostic(
-        // Account for VSCode's 1-based indexing
-        new Range(new Position(1, 1), new Position(1, 1)),
-        msg,
-        severity,
-        SRC_COMPILER,
-        code
-      );
-      if (data != null) {
-        diagnostic.setData(data);
-      }
-      return diagnostic;
+      // Account for VSCode's 1-based indexing
+      return new Range(new Position(1, 1), new Position(1, 1));
     }
-    
+
     int startRow = start.getLine();
     int startCol = start.getCharPositionInLine();
     int endRow = stop.getLine();
     int endCol = stop.getCharPositionInLine() + (stop.getText() != null ? stop.getText().length() : 1);
 
-    Diagnostic diagnostic = new Diagnostic(
-      // Account for VSCode's 1-based indexing
-      new Range(new Position(startRow - 1, startCol), new Position(endRow - 1, endCol)),
-      msg,
-      severity,
-      SRC_COMPILER,
-      code
-    );
-    if (data != null) {
-      diagnostic.setData(data);
-    }
-    return diagnostic;
-  }
-
-  private void clear() {
-    lastInfo = null;
-    aliases.clear();
-    schema = null;
-    diagnostics.clear();
-    baseFolder = null;
-    existingResources.clear();
-    referencesToCheck.clear();
+    // Account for VSCode's 1-based indexing
+    return new Range(new Position(startRow - 1, startCol), new Position(endRow - 1, endCol));
   }
 
   /**
-   * Returns the closest Redcap id in the schema.
+   * Returns the closest Redcap id in the schema. Uses an index of the field ids that is built once per schema, and
+   * schemas are cached, so this is fast even when a document has many unknown ids.
    *
+   * @param c The compilation context.
    * @param id The actual id that is either invalid or does not exist.
    * @return The closest id in the schema.
    */
-  private String getClosestRedcapId(String id) {
-    List<String> candidates = schema.getFields().stream().map(Field::getFieldId).collect(Collectors.toList());
-    return StringUtils.getClosest(id, candidates);
+  private String getClosestRedcapId(CompilationContext c, String id) {
+    return c.schema.getClosestFieldId(id);
   }
 
   /**
@@ -1493,4 +1876,252 @@ public class RedmatchCompiler extends RedmatchGrammarBaseVisitor<GrammarObject>
     }
     System.out.println();
   }
+
+  /**
+   * A schema loaded from a file and the state of the file when it was loaded.
+   */
+  private static class CachedSchema {
+    private final long lastModified;
+    private final long length;
+    private final au.csiro.redmatch.model.Schema schema;
+
+    CachedSchema(long lastModified, long length, au.csiro.redmatch.model.Schema schema) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.schema = schema;
+    }
+  }
+
+  /**
+   * The results of compiling a top level rule: the compiled rules, and the diagnostics and references to check that
+   * the compilation produced, positioned as they were when the rule started at the given line and position.
+   */
+  private static class CachedRule {
+    private final int line;
+    private final int charPositionInLine;
+    private final List<Rule> rules;
+    private final List<Diagnostic> diagnostics;
+    private final List<Pair<String, Range>> references;
+    private final boolean infoSet;
+    private final CodeInfo lastInfo;
+
+    CachedRule(int line, int charPositionInLine, List<Rule> rules, List<Diagnostic> diagnostics,
+               List<Pair<String, Range>> references, boolean infoSet, CodeInfo lastInfo) {
+      this.line = line;
+      this.charPositionInLine = charPositionInLine;
+      this.rules = rules;
+      this.diagnostics = diagnostics;
+      this.references = references;
+      this.infoSet = infoSet;
+      this.lastInfo = lastInfo;
+    }
+  }
+
+  /**
+   * The top level rules compiled in a compilation, keyed by their text, and the context they were compiled in, i.e.,
+   * the schema, the FHIR package and whether it was indexed, and the aliases. Immutable, so compilations running at
+   * the same time can share it.
+   */
+  private static class RuleCache {
+    private final List<Object> context;
+    private final Map<String, CachedRule> rules;
+
+    RuleCache(List<Object> context, Map<String, CachedRule> rules) {
+      this.context = context;
+      this.rules = Collections.unmodifiableMap(rules);
+    }
+  }
+
+  /**
+   * A part of a rule inside a repeats clause that is the same in every iteration, and the context used to visit it.
+   */
+  private static class Template {
+
+    /**
+     * Marks the parts of a rule that have to be visited in every iteration.
+     */
+    private static final Template VARIABLE = new Template(null, null);
+
+    private final Object result;
+
+    /**
+     * The context used to visit the part of the rule, which has the diagnostics and references it produced.
+     */
+    private final CompilationContext context;
+
+    Template(Object result, CompilationContext context) {
+      this.result = result;
+      this.context = context;
+    }
+  }
+
+  /**
+   * A visit to a part of the document that can run in parallel with other visits.
+   *
+   * @param <T> The type of the result.
+   */
+  private interface Visit<T> {
+    T visit(CompilationContext c) throws IOException;
+  }
+
+  /**
+   * The state of a compilation. Each compilation has its own context so a compiler can run several compilations at
+   * the same time.
+   */
+  private static class CompilationContext {
+
+    /**
+     * The base folder where the input files are contained. Can be null if the compiler is used in a server
+     * environment.
+     */
+    private final File baseFolder;
+
+    /**
+     * The id of the document being compiled. Can be null.
+     */
+    private final String documentId;
+
+    /**
+     * A map to keep any aliases defined in the document.
+     */
+    private final Map<String, String> aliases;
+
+    /**
+     * The schema of the source data.
+     */
+    private au.csiro.redmatch.model.Schema schema;
+
+    /**
+     * Validator for FHIR attribute expressions.
+     */
+    private RedmatchGrammarValidator validator;
+
+    /**
+     * Diagnostic messages produced by the compilation process.
+     */
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    /**
+     * A set with all the names and ids, e.g., Patient&lt;p&gt;, found so far.
+     */
+    private final Set<String> existingResources = new HashSet<>();
+
+    /**
+     * The rules do not impose an order so we need to keep track of potential reference to non-existent resources and
+     * check when all rules have been processed. The range is needed to show the error in the right place.
+     */
+    private final List<Pair<String, Range>> referencesToCheck = new ArrayList<>();
+
+    /**
+     * Stores the path information for the leaf node - used to validate each value assignment.
+     */
+    private CodeInfo lastInfo = null;
+
+    /**
+     * Indicates if the path information was set using this context.
+     */
+    private boolean infoSet = false;
+
+    /**
+     * Indicates if a value was validated using path information that was set before this context was created.
+     */
+    private boolean usedPreviousInfo = false;
+
+    /**
+     * The results of validating resource names and attribute paths. The same names and paths are validated many
+     * times, e.g., once for every iteration of a repeats clause, so they are shared by all the contexts of a
+     * compilation.
+     */
+    private final Map<String, ValidationResult> resourceNames;
+    private final Map<String, ValidationResult> attributePaths;
+    private final Map<String, CodeInfo> pathInfo;
+
+    /**
+     * The parts of the rules inside repeats clauses that are the same in every iteration, shared by all the contexts
+     * of a compilation.
+     */
+    private final Map<List<ParserRuleContext>, Template> templates;
+
+    CompilationContext(File baseFolder, String documentId) {
+      this.baseFolder = baseFolder;
+      this.documentId = documentId;
+      this.aliases = new HashMap<>();
+      this.resourceNames = new ConcurrentHashMap<>();
+      this.attributePaths = new ConcurrentHashMap<>();
+      this.pathInfo = new ConcurrentHashMap<>();
+      this.templates = new ConcurrentHashMap<>();
+    }
+
+    private CompilationContext(CompilationContext parent) {
+      this.baseFolder = parent.baseFolder;
+      this.documentId = parent.documentId;
+      this.aliases = parent.aliases;
+      this.schema = parent.schema;
+      this.validator = parent.validator;
+      this.resourceNames = parent.resourceNames;
+      this.attributePaths = parent.attributePaths;
+      this.pathInfo = parent.pathInfo;
+      this.templates = parent.templates;
+    }
+
+    /**
+     * Creates a context to compile part of the document on its own. The schema, validator, aliases and validation
+     * results are shared, and only the validation results can be modified while the rules are compiled.
+     *
+     * @param inheritInfo If true, the new context starts with the path information of this context.
+     * @return The new context.
+     */
+    CompilationContext fork(boolean inheritInfo) {
+      CompilationContext res = new CompilationContext(this);
+      if (inheritInfo) {
+        res.lastInfo = lastInfo;
+      }
+      return res;
+    }
+
+    /**
+     * Adds the results of a context created with {@link #fork(boolean)}, as if they had been produced using this one.
+     *
+     * @param fork The forked context.
+     */
+    void merge(CompilationContext fork) {
+      diagnostics.addAll(fork.diagnostics);
+      existingResources.addAll(fork.existingResources);
+      referencesToCheck.addAll(fork.referencesToCheck);
+      if (fork.usedPreviousInfo && !infoSet) {
+        usedPreviousInfo = true;
+      }
+      if (fork.infoSet) {
+        infoSet = true;
+        lastInfo = fork.lastInfo;
+      }
+    }
+
+    ValidationResult validateResourceName(String resourceName) throws IOException {
+      ValidationResult res = resourceNames.get(resourceName);
+      if (res == null) {
+        res = validator.validateResourceName(resourceName);
+        resourceNames.put(resourceName, res);
+      }
+      return res;
+    }
+
+    ValidationResult validateAttributePath(String path) throws IOException {
+      ValidationResult res = attributePaths.get(path);
+      if (res == null) {
+        res = validator.validateAttributePath(path);
+        attributePaths.put(path, res);
+      }
+      return res;
+    }
+
+    CodeInfo getPathInfo(String path) throws IOException {
+      CodeInfo res = pathInfo.get(path);
+      if (res == null) {
+        res = validator.getPathInfo(path);
+        pathInfo.put(path, res);
+      }
+      return res;
+    }
+  }
 }
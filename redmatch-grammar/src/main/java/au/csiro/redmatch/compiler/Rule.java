@@ -105,6 +105,25 @@ public class Rule extends GrammarObject {
     this.elseBody = elseBody;
   }
   
+  /**
+   * Returns a copy of this rule, including its nested rules, moved to a different place in the rules document. Only
+   * the columns in the row where the move starts change, because the rest of the rows keep their indentation. The
+   * conditions and resources are shared with this rule.
+   *
+   * @param row The row where the move starts, before moving.
+   * @param rowDelta The number of rows to move.
+   * @param colDelta The number of columns to move in the row where the move starts.
+   * @return The moved rule.
+   */
+  public Rule move(int row, int rowDelta, int colDelta) {
+    final Rule res = new Rule(rowStart + rowDelta, rowStart == row ? colStart + colDelta : colStart,
+      rowEnd + rowDelta, rowEnd == row ? colEnd + colDelta : colEnd);
+    res.condition = condition;
+    res.body = body != null ? body.move(row, rowDelta, colDelta) : null;
+    res.elseBody = elseBody != null ? elseBody.move(row, rowDelta, colDelta) : null;
+    return res;
+  }
+
   /**
    * Returns all the {@link Resource}s that are nested in this rule.
    * 
@@ -44,6 +44,15 @@ public class Variables {
     return variableValueMap.containsKey(variable);
   }
   
+  /**
+   * Indicates if there are no variables, i.e., if this is not inside a repeats clause.
+   * 
+   * @return True if there are no variables, false otherwise.
+   */
+  public boolean isEmpty() {
+    return variableValueMap.isEmpty();
+  }
+  
   /**
    * Adds a variable and a value. Returns true if the same variable already exists.
    * 
@@ -111,7 +111,7 @@ public class RedcapJsonImporter implements SchemaImporter {
         }
       }
 
-      res.getFields().add(field);
+      res.addField(field);
 
       // Flatten choices - create a field element for each
       if (entry.containsKey(SELECT_CHOICES_OR_CALCULATIONS)) {
@@ -130,13 +130,13 @@ public class RedcapJsonImporter implements SchemaImporter {
             if ((field.getFieldType().equals(RedcapField.FieldType.CHECKBOX))) {
               RedcapField rf = new RedcapField(fieldId + "___" + code, label, RedcapField.FieldType.CHECKBOX_OPTION);
               field.getOptions().add(rf);
-              res.getFields().add(rf);
+              res.addOption(field, rf);
             } else if (field.getFieldType().equals(RedcapField.FieldType.RADIO)
               || field.getFieldType().equals(RedcapField.FieldType.DROPDOWN)) {
               RedcapField rf = new RedcapField(fieldId + "___" + code, label,
                 RedcapField.FieldType.DROPDOW_OR_RADIO_OPTION);
               field.getOptions().add(rf);
-              res.getFields().add(rf);
+              res.addOption(field, rf);
             } else {
               log.warn("Unexpected field type found while creating option fields: " + field.getFieldType());
             }
@@ -12,8 +12,18 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.r4.model.*;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.ResolverStyle;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -37,14 +47,41 @@ public class RedcapField implements Field {
     DATETIME_SECONDS_MDY, DATETIME_SECONDS_DMY, PHONE, EMAIL, NUMBER, INTEGER, ZIPCODE, FHIR_TERMINOLOGY
   }
 
-  private final SimpleDateFormat dateYyyyFormat = new SimpleDateFormat("yyyy");
-
-  private final SimpleDateFormat dateYmdFormat = new SimpleDateFormat("yyyy-MM-dd");
+  /*
+   * The formatters are immutable and shared by all fields. They are lenient, like the SimpleDateFormats they replace:
+   * fields can have one or more digits, out of range values roll over and any trailing text is ignored.
+   */
+  private static final DateTimeFormatter dateYyyyFormat = new DateTimeFormatterBuilder()
+    .appendValue(ChronoField.YEAR)
+    .toFormatter().withResolverStyle(ResolverStyle.LENIENT);
+
+  private static final DateTimeFormatter dateYmdFormat = new DateTimeFormatterBuilder()
+    .appendValue(ChronoField.YEAR).appendLiteral('-')
+    .appendValue(ChronoField.MONTH_OF_YEAR).appendLiteral('-')
+    .appendValue(ChronoField.DAY_OF_MONTH)
+    .toFormatter().withResolverStyle(ResolverStyle.LENIENT);
+
+  private static final DateTimeFormatter dateTimeYmdFormat = new DateTimeFormatterBuilder()
+    .append(dateYmdFormat).appendLiteral(' ')
+    .appendValue(ChronoField.HOUR_OF_DAY).appendLiteral(':')
+    .appendValue(ChronoField.MINUTE_OF_HOUR)
+    .toFormatter().withResolverStyle(ResolverStyle.LENIENT);
+
+  private static final DateTimeFormatter dateTimeSecondsYmdFormat = new DateTimeFormatterBuilder()
+    .append(dateTimeYmdFormat).appendLiteral(':')
+    .appendValue(ChronoField.SECOND_OF_MINUTE)
+    .toFormatter().withResolverStyle(ResolverStyle.LENIENT);
+
+  /*
+   * Formatters used to write the FHIR values. Times always include the seconds and the offset is written as +hh:mm,
+   * even when it is zero.
+   */
+  private static final DateTimeFormatter fhirDateFormat = DateTimeFormatter.ofPattern("uuuu-MM-dd");
 
-  private final SimpleDateFormat dateTimeYmdFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+  private static final DateTimeFormatter fhirDateTimeFormat = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ssxxx");
 
-  private final SimpleDateFormat dateTimeSecondsYmdFormat = new SimpleDateFormat(
-    "yyyy-MM-dd HH:mm:ss");
+  private static final DateTimeFormatter fhirInstantFormat =
+    DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSSxxx");
 
   public final Coding UNKNOWN = new Coding("http://redmatch.csiro.au", "unknown", "unknown");
 
@@ -52,6 +89,7 @@ public class RedcapField implements Field {
   private final String fieldLabel;
   private final FieldType fieldType;
   private TextValidationType textValidationType = TextValidationType.NONE;
+  private ZoneId zoneId = ZoneId.systemDefault();
   private final List<Field> options = new ArrayList<>();
 
   private final Pattern idPattern = Pattern.compile("[A-Za-z0-9\\-.]{1,64}");
@@ -265,17 +303,31 @@ public class RedcapField implements Field {
     return fieldType;
   }
 
-  private Base getDate(String val, Class<?> fhirType, SimpleDateFormat sdf, FieldValue.DatePrecision precision) {
-    Date d = processDate(sdf, val);
+  public ZoneId getZoneId() {
+    return zoneId;
+  }
+
+  /**
+   * Sets the time zone used to interpret the values of date time fields. REDCap stores local date times, so this is
+   * where the offset of the FHIR values comes from. Defaults to the system time zone.
+   *
+   * @param zoneId The time zone.
+   */
+  public void setZoneId(ZoneId zoneId) {
+    this.zoneId = Objects.requireNonNull(zoneId);
+  }
+
+  private Base getDate(String val, Class<?> fhirType, DateTimeFormatter formatter, FieldValue.DatePrecision precision) {
+    LocalDateTime dateTime = processDate(formatter, val);
     if (precision != null) {
-      d = DateUtils.clear(d, precision);
+      dateTime = DateUtils.clear(dateTime, precision);
     }
     if (fhirType.isAssignableFrom(InstantType.class)) {
-      return new InstantType(d);
+      return new InstantType(dateTime.atZone(zoneId).format(fhirInstantFormat));
     } else if (fhirType.isAssignableFrom(DateTimeType.class)) {
-      return new DateTimeType(d);
+      return new DateTimeType(dateTime.atZone(zoneId).format(fhirDateTimeFormat));
     } else if (fhirType.isAssignableFrom(DateType.class)) {
-      return new DateType(d);
+      return new DateType(dateTime.format(fhirDateFormat));
     } else {
       throw new CompilationException("Tried to assign REDCap DATE TIME field to FHIR "
         + "type " + fhirType.getCanonicalName() + ". Only Instant, DateTime and Date are "
@@ -284,21 +336,27 @@ public class RedcapField implements Field {
   }
 
   /**
-   * Creates a date.
+   * Creates a date. Dates without a time are set at midnight.
    *
-   * @param sdf The date formatter to use.
+   * @param formatter The date formatter to use.
    * @param stringVal The date in string format.
    * @return The date object.
    * @throws RuntimeException If unable to parse the date.
    */
-  private Date processDate(SimpleDateFormat sdf, String stringVal) {
-    Date date;
+  private LocalDateTime processDate(DateTimeFormatter formatter, String stringVal) {
     try {
-      date = sdf.parse(stringVal);
-    } catch (ParseException e) {
+      TemporalAccessor parsed = formatter.parse(stringVal, new ParsePosition(0));
+      LocalDate date = parsed.query(TemporalQueries.localDate());
+      if (date == null) {
+        // Only the year is available
+        date = LocalDate.of(parsed.get(ChronoField.YEAR), 1, 1);
+      }
+      LocalTime time = parsed.query(TemporalQueries.localTime());
+      return LocalDateTime.of(date, time != null ? time : LocalTime.MIDNIGHT)
+        .plus(parsed.query(DateTimeFormatter.parsedExcessDays()));
+    } catch (DateTimeException e) {
       throw new CompilationException("Could not parse date: " + stringVal);
     }
-    return date;
   }
 
   private Base getString(String val, Class<?> fhirType, String redcapFieldType) {
@@ -341,7 +399,7 @@ public class RedcapField implements Field {
       // We allow assigning to a decimal field
       return new DecimalType(val);
     } else if (fhirType.isAssignableFrom(DateType.class) && pr != null && pr.equals(FieldValue.DatePrecision.YEAR)) {
-      return new DateType(processDate(dateYyyyFormat, val));
+      return new DateType(processDate(dateYyyyFormat, val).format(fhirDateFormat));
     } else {
       throw new CompilationException("Tried to assign REDCap INTEGER field to FHIR type " +
         fhirType.getCanonicalName() + ". Only Integer, Decimal and String are supported.");
@@ -4,9 +4,10 @@
  */
 package au.csiro.redmatch.model;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import au.csiro.redmatch.util.BkTree;
+
+import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * Represents the schema of a data source that wants to be transformed to FHIR.
@@ -19,30 +20,99 @@ public class Schema {
 
   private final List<Field> fields = new ArrayList<>();
 
+  /**
+   * Index of the fields by id.
+   */
+  private final Map<String, Field> fieldIndex = new HashMap<>();
+
+  /**
+   * Index of the option fields of each field, e.g., the options of a checkbox, indexed by the id of the parent field.
+   */
+  private final Map<String, List<Field>> optionIndex = new HashMap<>();
+
   private final SchemaType schemaType;
 
+  /**
+   * Index of the field ids, used to find the closest one to an id that does not exist. Created the first time it is
+   * needed.
+   */
+  private volatile BkTree fieldIdIndex;
+
   public Schema(SchemaType schemaType) {
     this.schemaType = schemaType;
   }
 
+  /**
+   * Adds a field to this schema. If there are several fields with the same id then the first one is returned by
+   * {@link #getField(String)}.
+   *
+   * @param field The field.
+   */
+  public void addField(Field field) {
+    fields.add(field);
+    fieldIndex.putIfAbsent(field.getFieldId(), field);
+    fieldIdIndex = null;
+  }
+
+  /**
+   * Adds an option field to this schema and indexes it as an option of its parent field.
+   *
+   * @param parent The parent field, e.g., a checkbox.
+   * @param option The option field.
+   */
+  public void addOption(Field parent, Field option) {
+    addField(option);
+    optionIndex.computeIfAbsent(parent.getFieldId(), k -> new ArrayList<>()).add(option);
+  }
+
   public boolean hasField(String fieldId) {
-    Optional<Field> result = findField(fieldId);
-    return result.isPresent();
+    return fieldIndex.containsKey(fieldId);
   }
 
   public Field getField(String fieldId) {
-    Optional<Field> result = findField(fieldId);
-    return result.orElse(null);
+    return fieldIndex.get(fieldId);
   }
 
+  /**
+   * Returns the option fields of a field.
+   *
+   * @param fieldId The id of the parent field.
+   * @return The option fields, or an empty list if the field has no options.
+   */
+  public List<Field> getOptions(String fieldId) {
+    List<Field> res = optionIndex.get(fieldId);
+    return res != null ? Collections.unmodifiableList(res) : Collections.emptyList();
+  }
+
+  /**
+   * Returns the fields of this schema. Fields should be added using {@link #addField(Field)} or
+   * {@link #addOption(Field, Field)}, so the list is read only.
+   *
+   * @return The fields, in the order they were added.
+   */
   public List<Field> getFields() {
-    return fields;
+    return Collections.unmodifiableList(fields);
   }
 
-  private Optional<Field> findField(String fieldId) {
-    return fields
-      .stream().parallel()
-      .filter(f -> fieldId.equals(f.getFieldId())).findAny();
+  /**
+   * Returns the id of the field that is closest to an id, e.g., to suggest a replacement for an id that does not exist.
+   * If several ids are equally close then the one of the field that was added first is returned.
+   *
+   * @param fieldId The id.
+   * @return The closest field id or null if this schema has no fields.
+   */
+  public String getClosestFieldId(String fieldId) {
+    BkTree index = fieldIdIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = fieldIdIndex;
+        if (index == null) {
+          index = new BkTree(fields.stream().map(Field::getFieldId).collect(Collectors.toList()));
+          fieldIdIndex = index;
+        }
+      }
+    }
+    return index.getClosest(fieldId);
   }
 
   public SchemaType getSchemaType() {
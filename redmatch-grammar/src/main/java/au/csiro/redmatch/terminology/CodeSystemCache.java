@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.terminology;
+
+import au.csiro.redmatch.model.VersionedFhirPackage;
+import au.csiro.redmatch.util.FhirSerializer;
+import au.csiro.redmatch.util.FileUtils;
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.CodeSystem;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the code systems generated for FHIR packages on disk, so they don't need to be generated again. Code systems
+ * are stored in a redmatch folder next to the contents of the package, and are keyed by a hash of the contents of the
+ * package and all its dependencies. If any of these packages change then the cached code system is no longer used.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class CodeSystemCache {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(CodeSystemCache.class);
+
+  /**
+   * Included in the hash. Should be changed whenever the generator produces different code systems.
+   */
+  private static final String FORMAT_VERSION = "1";
+
+  private static final String CACHE_FOLDER = "redmatch";
+
+  private static final String PREFIX = "codesystem-";
+
+  private static final String SUFFIX = ".json.gz";
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FhirSerializer serializer;
+
+  /**
+   * The hashes of the package files, so files that have not changed are not read again every time a key is calculated.
+   */
+  private final Map<Path, FileHash> fileHashes = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   */
+  public CodeSystemCache(FhirContext ctx) {
+    this.serializer = FhirSerializer.forContext(ctx);
+  }
+
+  /**
+   * Calculates the key of the code system of a FHIR package.
+   *
+   * @param fhirPackage The FHIR package.
+   * @param dependencies All the dependencies of the package.
+   * @return The key, a hex-encoded SHA-256 hash.
+   * @throws IOException If there are issues reading the package files.
+   */
+  public String getKey(VersionedFhirPackage fhirPackage, Collection<VersionedFhirPackage> dependencies)
+    throws IOException {
+    MessageDigest digest = newDigest();
+    update(digest, FORMAT_VERSION);
+    hashPackage(digest, fhirPackage);
+
+    // Dependencies are sorted so the key does not depend on the order they are found
+    List<VersionedFhirPackage> sorted = new ArrayList<>(dependencies);
+    sorted.sort(Comparator.comparing(VersionedFhirPackage::toString));
+    for (VersionedFhirPackage dependency : sorted) {
+      hashPackage(digest, dependency);
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Returns the cached code system of a FHIR package.
+   *
+   * @param fhirPackage The FHIR package.
+   * @param key The key calculated using {@link #getKey(VersionedFhirPackage, Collection)}.
+   * @return The code system or null if it is not in the cache.
+   */
+  public CodeSystem get(VersionedFhirPackage fhirPackage, String key) {
+    Path file = getFile(fhirPackage, key);
+    if (!Files.isRegularFile(file)) {
+      log.debug("Code system for FHIR package " + fhirPackage + " is not cached");
+      return null;
+    }
+    try (InputStream is = new GZIPInputStream(Files.newInputStream(file), BUFFER_SIZE)) {
+      log.debug("Loading cached code system for FHIR package " + fhirPackage + " from " + file);
+      return serializer.parse(CodeSystem.class, is);
+    } catch (Exception e) {
+      log.warn("Cached code system " + file + " could not be read and will be regenerated", e);
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException ex) {
+        log.warn("Could not delete " + file, ex);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Stores the code system of a FHIR package in the cache. Code systems previously cached for this package are
+   * removed. Failures are logged but not thrown because the cache is only an optimisation.
+   *
+   * @param fhirPackage The FHIR package.
+   * @param key The key calculated using {@link #getKey(VersionedFhirPackage, Collection)}.
+   * @param cs The code system.
+   */
+  public void put(VersionedFhirPackage fhirPackage, String key, CodeSystem cs) {
+    Path file = getFile(fhirPackage, key);
+    Path tmp = null;
+    try {
+      Path folder = Files.createDirectories(file.getParent());
+      removeStale(folder, file);
+      // Files.createTempFile only gives the owner access, and the renamed file would keep those permissions
+      tmp = folder.resolve(PREFIX + UUID.randomUUID() + ".tmp");
+      try (OutputStream os = new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmp,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), BUFFER_SIZE), BUFFER_SIZE)) {
+        serializer.encode(cs, os);
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      log.debug("Cached code system for FHIR package " + fhirPackage + " in " + file);
+    } catch (IOException e) {
+      log.warn("Could not cache code system for FHIR package " + fhirPackage, e);
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException ex) {
+          log.warn("Could not delete " + tmp, ex);
+        }
+      }
+    }
+  }
+
+  private Path getFile(VersionedFhirPackage fhirPackage, String key) {
+    return FileUtils.getFolderForFhirPackage(fhirPackage).getParent().resolve(CACHE_FOLDER)
+      .resolve(PREFIX + key + SUFFIX);
+  }
+
+  private void removeStale(Path folder, Path current) throws IOException {
+    try (Stream<Path> files = Files.list(folder)) {
+      for (Path f : files.collect(Collectors.toList())) {
+        String name = f.getFileName().toString();
+        if (!f.equals(current) && name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          log.debug("Removing stale cached code system " + f);
+          Files.deleteIfExists(f);
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the name, version and contents of a package to the digest. Files are processed in a fixed order.
+   */
+  private void hashPackage(MessageDigest digest, VersionedFhirPackage fhirPackage) throws IOException {
+    update(digest, fhirPackage.toString());
+    Path folder = FileUtils.getFolderForFhirPackage(fhirPackage);
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(folder)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      update(digest, folder.relativize(file).toString());
+      digest.update(hashFile(file));
+    }
+  }
+
+  /**
+   * Returns the hash of the contents of a file. Hashes are reused while the last-modified time and size of the file
+   * stay the same.
+   */
+  private byte[] hashFile(Path file) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    long lastModified = attrs.lastModifiedTime().toMillis();
+    long size = attrs.size();
+    FileHash cached = fileHashes.get(file);
+    if (cached != null && cached.lastModified == lastModified && cached.size == size) {
+      return cached.hash;
+    }
+
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream is = new DigestInputStream(Files.newInputStream(file), digest)) {
+      while (is.read(buffer) != -1) {
+        // Reading updates the digest
+      }
+    }
+    byte[] hash = digest.digest();
+    fileHashes.put(file, new FileHash(lastModified, size, hash));
+    return hash;
+  }
+
+  private void update(MessageDigest digest, String s) {
+    digest.update(s.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
+
+  private MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The hash of a file and the last-modified time and size it had when it was calculated.
+   */
+  private static class FileHash {
+    private final long lastModified;
+    private final long size;
+    private final byte[] hash;
+
+    FileHash(long lastModified, long size, byte[] hash) {
+      this.lastModified = lastModified;
+      this.size = size;
+      this.hash = hash;
+    }
+  }
+}
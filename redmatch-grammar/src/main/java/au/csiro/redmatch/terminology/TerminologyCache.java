@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.terminology;
+
+import au.csiro.redmatch.model.VersionedFhirPackage;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of the results returned by the terminology server, keyed by FHIR package and query.
+ * The least recently used entries are evicted when the cache is full. Values are computed outside the lock, so two
+ * threads might compute the same value simultaneously, but both will get a valid result.
+ *
+ * @param <V> The type of the cached values.
+ * @author Alejandro Metke Jimenez
+ */
+public class TerminologyCache<V> {
+
+  private final String name;
+
+  private final Map<Key, V> cache;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Computes a value that is not in the cache.
+   *
+   * @param <V> The type of the value.
+   */
+  @FunctionalInterface
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of this cache. Used for logging.
+   * @param maxSize The maximum number of entries.
+   */
+  public TerminologyCache(String name, int maxSize) {
+    this.name = name;
+    this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the value for a FHIR package and a query, calling the loader if it is not cached.
+   *
+   * @param fhirPackage The FHIR package.
+   * @param query The query, e.g., a path.
+   * @param loader Computes the value if it is not in the cache.
+   * @return The value.
+   * @throws IOException If the loader throws it. Failures are not cached.
+   */
+  public V get(VersionedFhirPackage fhirPackage, String query, Loader<V> loader) throws IOException {
+    Key key = new Key(fhirPackage, query);
+    V res;
+    synchronized (cache) {
+      res = cache.get(key);
+    }
+    if (res != null) {
+      hits.incrementAndGet();
+      return res;
+    }
+
+    misses.incrementAndGet();
+    res = loader.load();
+    if (res != null) {
+      synchronized (cache) {
+        cache.put(key, res);
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Removes all the entries of a FHIR package.
+   *
+   * @param fhirPackage The FHIR package.
+   */
+  public void invalidate(VersionedFhirPackage fhirPackage) {
+    synchronized (cache) {
+      Iterator<Key> it = cache.keySet().iterator();
+      while (it.hasNext()) {
+        if (it.next().fhirPackage.equals(fhirPackage)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes all the entries.
+   */
+  public void clear() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return name + " cache [size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+  }
+
+  private static class Key {
+    private final VersionedFhirPackage fhirPackage;
+    private final String query;
+
+    Key(VersionedFhirPackage fhirPackage, String query) {
+      this.fhirPackage = fhirPackage;
+      this.query = query;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return fhirPackage.equals(key.fhirPackage) && query.equals(key.query);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fhirPackage, query);
+    }
+  }
+}
@@ -17,9 +17,7 @@ import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.r4.model.*;
 import org.javatuples.Triplet;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
@@ -50,38 +48,68 @@ public class TerminologyService {
 
   private final ExecutorService executor = Executors.newFixedThreadPool(1);
 
+  /**
+   * Maximum number of entries kept by each of the result caches.
+   */
+  private static final int CACHE_SIZE = 10000;
+
+  /**
+   * Caches the results of lookups. The {@link CodeInfo} instances are shared and should not be modified.
+   */
+  private final TerminologyCache<CodeInfo> lookupCache = new TerminologyCache<>("Lookup", CACHE_SIZE);
+
+  /**
+   * Caches the results of validations. Copies are returned to callers.
+   */
+  private final TerminologyCache<Parameters> validateCache = new TerminologyCache<>("Validate", CACHE_SIZE);
+
+  /**
+   * Caches the results of expansions. Copies are returned to callers.
+   */
+  private final TerminologyCache<ValueSet> expandCache = new TerminologyCache<>("Expand", CACHE_SIZE);
+
+  /**
+   * Stores the generated code systems on disk.
+   */
+  private final CodeSystemCache codeSystemCache;
+
 
   public boolean ontoIndexCheck(VersionedFhirPackage fhirPackage) {
     return onto.isIndexed(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion());
   }
+  /**
+   * Generates the code system of a FHIR package and indexes it. Generated code systems are cached on disk, keyed by
+   * the contents of the package and its dependencies, so the generation is skipped if the packages have not changed.
+   *
+   * @param fhirPackage The FHIR package.
+   * @param progressReporter An object to report progress. Can be null.
+   * @throws IOException If there are issues reading the package files.
+   */
   public void checkPackage(VersionedFhirPackage fhirPackage, ProgressReporter progressReporter) throws IOException {
     log.debug("Checking if FHIR package " + fhirPackage + " is installed");
     try {
       Instant start = Instant.now();
       log.debug("Package is not indexed");
       RedmatchGrammarCodeSystemGenerator generator = new RedmatchGrammarCodeSystemGenerator(gson, ctx);
-      CodeSystem cs = generator.createCodeSystem(fhirPackage, progressReporter);
+      String key = codeSystemCache.getKey(fhirPackage, generator.getDependencies(fhirPackage));
+      CodeSystem cs = codeSystemCache.get(fhirPackage, key);
+      if (cs == null) {
+        cs = generator.createCodeSystem(fhirPackage, progressReporter);
+        codeSystemCache.put(fhirPackage, key, cs);
+      } else {
+        log.info("Using cached code system for FHIR package " + fhirPackage);
+      }
 
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportStart("Indexing code system for FHIR package "
           + fhirPackage));
       }
-      Path targetFolder = onto.indexFhirCodeSystem(cs);
+      onto.indexFhirCodeSystem(cs);
+      invalidateCaches(fhirPackage);
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportEnd());
       }
-  
-      Path targetFile = targetFolder.resolve(fhirPackage.getName() + ".json");
-      try (FileWriter fw = new FileWriter(targetFile.toFile())) {
-        if (progressReporter != null) {
-          progressReporter.reportProgress(Progress.reportStart("Saving generated code system for FHIR package "
-            + fhirPackage));
-        }
-        ctx.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(cs, fw);
-        if (progressReporter != null) {
-          progressReporter.reportProgress(Progress.reportEnd());
-        }
-      }
+
       Instant finish = Instant.now();
       long timeElapsed = Duration.between(start, finish).toMillis();
       log.info("Finished checking in: " + DateUtils.prettyPrintMillis(timeElapsed));
@@ -100,6 +128,7 @@ public class TerminologyService {
   public TerminologyService(FhirContext ctx, Gson gson) {
     log.info("Initialising terminology service");
     onto = new InternalApi(gson, ctx);
+    codeSystemCache = new CodeSystemCache(ctx);
     this.ctx = ctx;
     this.gson = gson;
 
@@ -127,9 +156,35 @@ public class TerminologyService {
    * This method should be called when the application is about to be shut down.
    */
   public void shutdown() {
+    log.debug(lookupCache);
+    log.debug(validateCache);
+    log.debug(expandCache);
     executor.shutdown();
   }
 
+  /**
+   * Removes all the cached results for a FHIR package. Called when the package is reindexed.
+   *
+   * @param fhirPackage The FHIR package.
+   */
+  public void invalidateCaches(VersionedFhirPackage fhirPackage) {
+    lookupCache.invalidate(fhirPackage);
+    validateCache.invalidate(fhirPackage);
+    expandCache.invalidate(fhirPackage);
+  }
+
+  public TerminologyCache<CodeInfo> getLookupCache() {
+    return lookupCache;
+  }
+
+  public TerminologyCache<Parameters> getValidateCache() {
+    return validateCache;
+  }
+
+  public TerminologyCache<ValueSet> getExpandCache() {
+    return expandCache;
+  }
+
   /**
    * Adds support for a FHIR package to the terminology service. Checks if the corresponding index is installed and if
    * it isn't then attempts to generate the code system and index it.
@@ -168,12 +223,14 @@ public class TerminologyService {
   }
 
   public Parameters validate(VersionedFhirPackage fhirPackage, String path) throws IOException {
-    return onto.validateCode(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), path, null);
+    return validateCache.get(fhirPackage, path,
+      () -> onto.validateCode(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), path, null)).copy();
   }
 
   public CodeInfo lookup(VersionedFhirPackage fhirPackage, String path) throws IOException {
-    return processCodeInfo(path, onto.lookup(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), path,
-      Arrays.asList("min", "max", "type", "targetProfile", "profile", "baseResource", "extensionUrl", "profileUrl")));
+    return lookupCache.get(fhirPackage, path,
+      () -> processCodeInfo(path, onto.lookup(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), path,
+      Arrays.asList("min", "max", "type", "targetProfile", "profile", "baseResource", "extensionUrl", "profileUrl"))));
   }
 
   public ValueSet expand(VersionedFhirPackage fhirPackage, String query, boolean isResource, String parentResource)
@@ -193,8 +250,11 @@ public class TerminologyService {
       query = parentResource + "." + query;
     }
 
-    log.info("Expanding FHIR package " + fhirPackage + " with query " + query);
-    return onto.expand(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), query, filter);
+    final String q = query;
+    return expandCache.get(fhirPackage, isResource + "|" + parentResource + "|" + query, () -> {
+      log.info("Expanding FHIR package " + fhirPackage + " with query " + q);
+      return onto.expand(REDMATCH_PREFIX + fhirPackage.getName(), fhirPackage.getVersion(), q, filter);
+    }).copy();
   }
 
   private CodeInfo processCodeInfo(String path, Parameters out) {
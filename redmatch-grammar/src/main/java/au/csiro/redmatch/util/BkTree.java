@@ -0,0 +1,134 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A BK-tree used to find the string that is closest to another one, using the edit distance. Each child of a node is
+ * at a different distance from it, so most of the tree can be skipped when searching, because of the triangle
+ * inequality. The results are the same as {@link StringUtils#getClosest(String, Collection)}: if several strings are
+ * equally close then the one that was added first is returned.
+ *
+ * <p>The tree can be searched concurrently once it has been built.</p>
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class BkTree {
+
+  private Node root;
+
+  private int size = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param strings The strings to add to the tree, in order.
+   */
+  public BkTree(Collection<String> strings) {
+    for (String s : strings) {
+      add(s);
+    }
+  }
+
+  /**
+   * Adds a string to the tree. Strings that have already been added are ignored.
+   *
+   * @param s The string.
+   */
+  public void add(String s) {
+    if (root == null) {
+      root = new Node(s, size++);
+      return;
+    }
+    Node node = root;
+    while (true) {
+      int distance = StringUtils.editDistance(s, node.value);
+      if (distance == 0) {
+        return;
+      }
+      Node child = node.children.get(distance);
+      if (child == null) {
+        node.children.put(distance, new Node(s, size++));
+        node.maxDistance = Math.max(node.maxDistance, distance);
+        return;
+      }
+      node = child;
+    }
+  }
+
+  /**
+   * Returns the number of different strings in the tree.
+   *
+   * @return The number of strings.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the string in the tree that is closest to a string.
+   *
+   * @param s The string.
+   * @return The closest string or null if the tree is empty.
+   */
+  public String getClosest(String s) {
+    if (root == null) {
+      return null;
+    }
+
+    Node best = null;
+    int bestDistance = Integer.MAX_VALUE;
+    final Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Node node = pending.pop();
+      // If the node is further than this then neither it nor any of its children can be closer than the best one
+      int max = best == null ? Integer.MAX_VALUE : bestDistance + node.maxDistance;
+      int distance = StringUtils.editDistance(s, node.value, max);
+      if (distance > max) {
+        continue;
+      }
+      if (distance < bestDistance || (distance == bestDistance && node.index < best.index)) {
+        best = node;
+        bestDistance = distance;
+      }
+      for (Map.Entry<Integer, Node> entry : node.children.entrySet()) {
+        if (Math.abs(entry.getKey() - distance) <= bestDistance) {
+          pending.push(entry.getValue());
+        }
+      }
+    }
+    return best.value;
+  }
+
+  private static class Node {
+    private final String value;
+
+    /**
+     * The position of the string in the order the strings were added.
+     */
+    private final int index;
+
+    /**
+     * The children of the node, indexed by their distance to it.
+     */
+    private final Map<Integer, Node> children = new HashMap<>();
+
+    /**
+     * The largest distance to a child.
+     */
+    private int maxDistance = 0;
+
+    Node(String value, int index) {
+      this.value = value;
+      this.index = index;
+    }
+  }
+}
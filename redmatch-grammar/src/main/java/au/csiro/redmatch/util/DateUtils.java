@@ -6,8 +6,7 @@ package au.csiro.redmatch.util;
 
 import au.csiro.redmatch.compiler.FieldValue;
 
-import java.util.Calendar;
-import java.util.Date;
+import java.time.LocalDateTime;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -18,34 +17,24 @@ import java.util.concurrent.TimeUnit;
  */
 public class DateUtils {
 
-  public static Date clear(Date date, FieldValue.DatePrecision precision) {
-    Calendar instance = Calendar.getInstance();
-    instance.setTime(date);
-
+  /**
+   * Truncates a date to a precision, e.g., with precision MONTH 2021-09-14 10:30 becomes 2021-09-01 00:00.
+   *
+   * @param dateTime The date.
+   * @param precision The precision.
+   * @return The truncated date.
+   */
+  public static LocalDateTime clear(LocalDateTime dateTime, FieldValue.DatePrecision precision) {
     switch (precision) {
       case YEAR:
-        instance.set(Calendar.MONTH, 0);
-        instance.set(Calendar.DAY_OF_MONTH, 1);
-        instance.set(Calendar.HOUR_OF_DAY, 0);
-        instance.set(Calendar.MINUTE, 0);
-        instance.set(Calendar.SECOND, 0);
-        instance.set(Calendar.MILLISECOND, 0);
-        break;
+        return dateTime.toLocalDate().withDayOfYear(1).atStartOfDay();
       case MONTH:
-        instance.set(Calendar.DAY_OF_MONTH, 1);
-        instance.set(Calendar.HOUR_OF_DAY, 0);
-        instance.set(Calendar.MINUTE, 0);
-        instance.set(Calendar.SECOND, 0);
-        instance.set(Calendar.MILLISECOND, 0);
-        break;
+        return dateTime.toLocalDate().withDayOfMonth(1).atStartOfDay();
       case DAY:
-        instance.set(Calendar.HOUR_OF_DAY, 0);
-        instance.set(Calendar.MINUTE, 0);
-        instance.set(Calendar.SECOND, 0);
-        instance.set(Calendar.MILLISECOND, 0);
-        break;
+        return dateTime.toLocalDate().atStartOfDay();
+      default:
+        return dateTime;
     }
-    return instance.getTime();
   }
 
   public static String prettyPrintMillis(long ms) {
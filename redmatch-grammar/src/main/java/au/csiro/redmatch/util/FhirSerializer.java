@@ -0,0 +1,152 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses and encodes FHIR resources in JSON. There is a single instance per {@link FhirContext}. HAPI parsers are not
+ * thread-safe, so each thread gets its own configured parsers, which are reused across calls. Encoding to bytes also
+ * reuses a per-thread buffer.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class FhirSerializer {
+
+  private static final Map<FhirContext, FhirSerializer> instances = new ConcurrentHashMap<>();
+
+  /**
+   * Buffers that grow beyond this size are not kept, so a single large resource does not pin memory.
+   */
+  private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+  private final ThreadLocal<IParser> parsers;
+
+  private final ThreadLocal<IParser> prettyParsers;
+
+  private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+  private FhirSerializer(FhirContext ctx) {
+    this.parsers = ThreadLocal.withInitial(ctx::newJsonParser);
+    this.prettyParsers = ThreadLocal.withInitial(() -> ctx.newJsonParser().setPrettyPrint(true));
+  }
+
+  /**
+   * Returns the serializer of a FHIR context.
+   *
+   * @param ctx The FHIR context.
+   * @return The serializer.
+   */
+  public static FhirSerializer forContext(FhirContext ctx) {
+    return instances.computeIfAbsent(ctx, FhirSerializer::new);
+  }
+
+  /**
+   * Parses a resource.
+   *
+   * @param type The type of the resource.
+   * @param reader The reader with the JSON content.
+   * @param <T> The type of the resource.
+   * @return The resource.
+   */
+  public <T extends IBaseResource> T parse(Class<T> type, Reader reader) {
+    return parsers.get().parseResource(type, reader);
+  }
+
+  /**
+   * Parses a resource.
+   *
+   * @param type The type of the resource.
+   * @param is The input stream with the JSON content, encoded in UTF-8.
+   * @param <T> The type of the resource.
+   * @return The resource.
+   */
+  public <T extends IBaseResource> T parse(Class<T> type, InputStream is) {
+    return parse(type, new InputStreamReader(is, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Encodes a resource in a single line.
+   *
+   * @param resource The resource.
+   * @param writer The writer where the resource is encoded.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void encode(IBaseResource resource, Writer writer) throws IOException {
+    parsers.get().encodeResourceToWriter(resource, writer);
+  }
+
+  /**
+   * Encodes a resource in a single line, in UTF-8.
+   *
+   * @param resource The resource.
+   * @param os The output stream where the resource is encoded. It is flushed but not closed.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void encode(IBaseResource resource, OutputStream os) throws IOException {
+    Writer w = new OutputStreamWriter(os, StandardCharsets.UTF_8);
+    encode(resource, w);
+    w.flush();
+  }
+
+  /**
+   * Encodes a resource in a human-readable format.
+   *
+   * @param resource The resource.
+   * @param writer The writer where the resource is encoded.
+   * @throws IOException If an I/O error occurs.
+   */
+  public void encodePretty(IBaseResource resource, Writer writer) throws IOException {
+    prettyParsers.get().encodeResourceToWriter(resource, writer);
+  }
+
+  /**
+   * Encodes a resource in a single line.
+   *
+   * @param resource The resource.
+   * @return The encoded resource.
+   */
+  public String encodeToString(IBaseResource resource) {
+    return parsers.get().encodeResourceToString(resource);
+  }
+
+  /**
+   * Encodes a resource in a single line, in UTF-8.
+   *
+   * @param resource The resource.
+   * @return The encoded resource.
+   */
+  public byte[] encodeToBytes(IBaseResource resource) {
+    Buffer buffer = buffers.get();
+    buffer.bytes.reset();
+    try {
+      encode(resource, buffer.writer);
+      buffer.writer.flush();
+    } catch (IOException e) {
+      // Writing to memory does not throw I/O exceptions
+      throw new UncheckedIOException(e);
+    }
+    byte[] res = buffer.bytes.toByteArray();
+    if (res.length > MAX_BUFFER_SIZE) {
+      buffers.remove();
+    }
+    return res;
+  }
+
+  /**
+   * An in-memory buffer and the UTF-8 writer that writes into it.
+   */
+  private static class Buffer {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+    private final Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -10,13 +10,15 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hl7.fhir.r4.model.*;
 
-import java.io.FileReader;
-import java.io.IOException;
+import java.io.*;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,7 +32,27 @@ public class FhirUtils {
   private static final Log log = LogFactory.getLog(FhirUtils.class);
 
   /**
-   * Returns the structure definitions in a FHIR package.
+   * Size of the buffer used to read structure definition files.
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The structure definitions loaded from each FHIR package. Values are softly referenced so they can be reclaimed if
+   * memory is low.
+   */
+  private static final Map<VersionedFhirPackage, LoadedDefinitions> structureDefinitionsCache =
+    new ConcurrentHashMap<>();
+
+  /**
+   * Used to avoid loading the same package concurrently.
+   */
+  private static final Map<VersionedFhirPackage, Object> structureDefinitionsLocks = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the structure definitions in a FHIR package that have a snapshot. Each file is parsed once and files are
+   * parsed in parallel. The results are cached and reused until a structure definition file in the package is added,
+   * removed or changes its last-modified time or size, so the returned definitions are shared and must not be
+   * modified.
    *
    * @param ctx The FHIR context.
    * @param fhirPackage The FHIR package.
@@ -39,36 +61,68 @@ public class FhirUtils {
    */
   public static List<StructureDefinition> getStructureDefinitions(FhirContext ctx, VersionedFhirPackage fhirPackage)
     throws IOException {
-    try (Stream<Path> paths = Files.walk(Paths.get(
+    final Path packageDir = Paths.get(
       System.getProperty("user.home"),
       ".fhir",
       "packages",
       fhirPackage.toString(),
       "package"
-    ))) {
-      return paths
-        .filter(Files::isRegularFile)
-        .map(Path::toFile)
-        .filter(f -> f.getName().endsWith(".json"))
-        .filter(f -> f.getName().startsWith("StructureDefinition"))
-        .filter(f -> {
-          try (FileReader reader = new FileReader(f)) {
-            StructureDefinition structureDefinition = (StructureDefinition) ctx.newJsonParser().parseResource(reader);
-            return structureDefinition.hasSnapshot();
-          } catch (Exception e) {
-            //log.warn("There was a problem with " + f.getName(), e);
-            return false;
-          }
-        })
-        .map(f -> {
-          try (FileReader reader = new FileReader(f)) {
-            return (StructureDefinition) ctx.newJsonParser().parseResource(reader);
-          } catch (IOException e) {
-            throw new RuntimeException(e);
+    );
+    synchronized (structureDefinitionsLocks.computeIfAbsent(fhirPackage, k -> new Object())) {
+      final Map<Path, FileStamp> files = getStructureDefinitionFiles(packageDir);
+      LoadedDefinitions loaded = structureDefinitionsCache.get(fhirPackage);
+      if (loaded != null && loaded.files.equals(files)) {
+        List<StructureDefinition> res = loaded.structureDefinitions.get();
+        if (res != null) {
+          log.debug("Reusing structure definitions of " + fhirPackage);
+          return res;
+        }
+      }
+
+      long start = System.currentTimeMillis();
+      List<StructureDefinition> res = loadStructureDefinitions(ctx, files.keySet());
+      structureDefinitionsCache.put(fhirPackage, new LoadedDefinitions(files, res));
+      log.info("Loaded " + res.size() + " structure definitions from " + fhirPackage + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+      return res;
+    }
+  }
+
+  /**
+   * Returns the structure definition files in a package folder, in the order they are found, with their last-modified
+   * time and size.
+   */
+  private static Map<Path, FileStamp> getStructureDefinitionFiles(Path packageDir) throws IOException {
+    final Map<Path, FileStamp> res = new LinkedHashMap<>();
+    try (Stream<Path> paths = Files.walk(packageDir)) {
+      for (Path p : (Iterable<Path>) paths::iterator) {
+        String name = p.getFileName().toString();
+        if (name.endsWith(".json") && name.startsWith("StructureDefinition")) {
+          BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+          if (attrs.isRegularFile()) {
+            res.put(p, new FileStamp(attrs.lastModifiedTime().toMillis(), attrs.size()));
           }
-        })
-        .collect(Collectors.toList());
+        }
+      }
     }
+    return res;
+  }
+
+  private static List<StructureDefinition> loadStructureDefinitions(FhirContext ctx, Collection<Path> files) {
+    final FhirSerializer serializer = FhirSerializer.forContext(ctx);
+
+    // Parse each file once, in parallel - the results keep the order of the files
+    return Collections.unmodifiableList(files.parallelStream()
+      .map(f -> {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(f), BUFFER_SIZE)) {
+          return serializer.parse(StructureDefinition.class, is);
+        } catch (Exception e) {
+          log.debug("There was a problem with " + f.getFileName(), e);
+          return null;
+        }
+      })
+      .filter(sd -> sd != null && sd.hasSnapshot())
+      .collect(Collectors.toList()));
   }
 
   /**
@@ -155,4 +209,43 @@ public class FhirUtils {
       return attributeName;
     }
   }
+
+  /**
+   * The structure definitions loaded from a FHIR package and the files they were loaded from.
+   */
+  private static class LoadedDefinitions {
+    private final Map<Path, FileStamp> files;
+    private final SoftReference<List<StructureDefinition>> structureDefinitions;
+
+    LoadedDefinitions(Map<Path, FileStamp> files, List<StructureDefinition> structureDefinitions) {
+      this.files = files;
+      this.structureDefinitions = new SoftReference<>(structureDefinitions);
+    }
+  }
+
+  /**
+   * The last-modified time and size of a file.
+   */
+  private static class FileStamp {
+    private final long lastModified;
+    private final long size;
+
+    FileStamp(long lastModified, long size) {
+      this.lastModified = lastModified;
+      this.size = size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      FileStamp that = (FileStamp) o;
+      return lastModified == that.lastModified && size == that.size;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(lastModified, size);
+    }
+  }
 }
@@ -12,10 +12,8 @@ import org.eclipse.lsp4j.DiagnosticSeverity;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
 import org.jgrapht.Graph;
-import org.jgrapht.alg.cycle.HawickJamesSimpleCycles;
 import org.jgrapht.graph.DefaultEdge;
 import org.jgrapht.graph.SimpleDirectedGraph;
-import org.jgrapht.traverse.DepthFirstIterator;
 import org.jgrapht.traverse.GraphIterator;
 import org.jgrapht.traverse.TopologicalOrderIterator;
 
@@ -49,17 +47,17 @@ public class GraphUtils {
      *   are independent of the rows.
      */
     final Graph<ResourceNode, DefaultEdge> g = new SimpleDirectedGraph<>(DefaultEdge.class);
+    // The vertices of the graph, so they can be found by resource type and id
+    final Map<ResourceNode, ResourceNode> vertices = new HashMap<>();
 
     // First add all vertices
     for (Rule rule : doc.getRules()) {
       for (Resource r : rule.getResources()) {
         // Extract resource and create node
-        ResourceNode rn = new ResourceNode(r);
-        if (g.containsVertex(rn)) {
-          rn = getVertex(g, rn.type, rn.id);
-        } else {
-          g.addVertex(rn);
-        }
+        ResourceNode rn = vertices.computeIfAbsent(new ResourceNode(r), k -> {
+          g.addVertex(k);
+          return k;
+        });
         // We might be merging various resources from multiple rules
         GrammarObject.DataReference ndr = r.referencesData();
         GrammarObject.DataReference odr = rn.referenceData;
@@ -80,12 +78,12 @@ public class GraphUtils {
     // Then add all edges
     for (Rule rule : doc.getRules()) {
       for (Resource r : rule.getResources()) {
-        ResourceNode rn = getVertex(g, r.getResourceType(), r.getResourceId());
+        ResourceNode rn = getVertex(vertices, r.getResourceType(), r.getResourceId());
         // Get references and create edges
         for (ReferenceValue rv : r.getReferences()) {
           ResourceNode tn = new ResourceNode(rv.getResourceType(), rv.getResourceId());
-          if (g.containsVertex(tn)) {
-            tn = getVertex(g, tn.type, tn.id);
+          if (vertices.containsKey(tn)) {
+            tn = vertices.get(tn);
           } else {
             res.diagnostics.add(new Diagnostic(new Range(new Position(0, 0), new Position(0, 0)),
               "Resource " + tn + " is missing. Did you create it in the rules?", DiagnosticSeverity.Error, "graph"));
@@ -98,56 +96,61 @@ public class GraphUtils {
 
     /*
      * At this point we have a directed graph and need to do the following:
-     * 1. Check for cycles and throw an error if one is detected.
-     * 2. Do an inverse topological sort so that we can do 3 and also so resources can be created in the correct order.
-     * 3. Set the definitive value of referenceData for vertices.
+     * 1. Do a topological sort. If it does not include all the vertices then there is a cycle and an error is
+     *    reported. The inverse order is the order in which the resources should be created.
+     * 2. Set the definitive value of referenceData for vertices. All the resources referenced by a resource come
+     *    before it in the inverse order, so a single pass is enough.
      */
-    HawickJamesSimpleCycles<ResourceNode, DefaultEdge> cd = new HawickJamesSimpleCycles<>(g);
-    if (cd.countSimpleCycles() > 0) {
-      String firstCycle = cd.findSimpleCycles().get(0).stream().map(v -> "(" + v.type + "<" + v.id + ">")
-        .collect(Collectors.joining(", "));
+    final List<ResourceNode> sortedNodes = res.getSortedNodes();
+    try {
+      GraphIterator<ResourceNode, DefaultEdge> it = new TopologicalOrderIterator<>(g);
+      while (it.hasNext()) {
+        sortedNodes.add(it.next());
+      }
+    } catch (IllegalArgumentException e) {
+      // Thrown when the graph is not a DAG, the cycle is found below
+    }
+    if (sortedNodes.size() < g.vertexSet().size()) {
+      String cycle = findCycle(g, new HashSet<>(sortedNodes)).stream().map(ResourceNode::toString)
+        .collect(Collectors.joining(" -> "));
+      sortedNodes.clear();
       res.diagnostics.add(new Diagnostic(new Range(new Position(0, 0), new Position(0, 0)),
-        "There is an illegal cycle in the rule definitions: " + firstCycle, DiagnosticSeverity.Error, "graph"));
+        "There is an illegal cycle in the rule definitions: " + cycle, DiagnosticSeverity.Error, "graph"));
       return res;
     }
+    Collections.reverse(sortedNodes);
 
-    // Do inverse topological sort
-    GraphIterator<ResourceNode, DefaultEdge> it = new TopologicalOrderIterator<>(g);
-    while (it.hasNext()) {
-      res.getSortedNodes().add(it.next());
-    }
-    Collections.reverse(res.getSortedNodes());
-
-    // Set definitive value of referenceData for vertices
-    for (ResourceNode rn : res.getSortedNodes()) {
+    // Set definitive value of referenceData for vertices, keeping track of the vertices that depend on data, either
+    // directly or through the resources they reference
+    final Set<ResourceNode> dependOnData = new HashSet<>();
+    for (ResourceNode rn : sortedNodes) {
       if (rn.referenceData == null) {
         res.diagnostics.add(new Diagnostic(new Range(new Position(0, 0), new Position(0, 0)),
           "Reference data in resource node " + rn + " is null.", DiagnosticSeverity.Error, "graph"));
         return res;
       }
 
-      // If referenceData is REFERENCE then look for all references and update value
-      if (rn.referenceData.equals(GrammarObject.DataReference.RESOURCE)) {
-        int refCount = 0;
-        boolean foundYes = false;
-        it = new DepthFirstIterator<>(g, rn);
-        while (it.hasNext()) {
-          refCount++;
-          if (it.next().referenceData.equals(GrammarObject.DataReference.YES)) {
-            rn.referenceData = GrammarObject.DataReference.YES;
-            foundYes = true;
-            break;
-          }
+      boolean referencesDataDependent = false;
+      for (DefaultEdge e : g.outgoingEdgesOf(rn)) {
+        if (dependOnData.contains(g.getEdgeTarget(e))) {
+          referencesDataDependent = true;
+          break;
         }
-        if (refCount == 0) {
+      }
+
+      // If referenceData is RESOURCE then the value depends on the referenced resources
+      if (rn.referenceData.equals(GrammarObject.DataReference.RESOURCE)) {
+        if (g.outDegreeOf(rn) == 0) {
           res.diagnostics.add(new Diagnostic(new Range(new Position(0, 0), new Position(0, 0)),
             "The rules created a malformed graph. Node " + rn.type + "<" + rn.id + "> has no references.",
             DiagnosticSeverity.Error, "graph"));
           return res;
         }
-        if (!foundYes) {
-          rn.referenceData = GrammarObject.DataReference.NO;
-        }
+        rn.referenceData = referencesDataDependent ? GrammarObject.DataReference.YES : GrammarObject.DataReference.NO;
+      }
+
+      if (referencesDataDependent || rn.referenceData.equals(GrammarObject.DataReference.YES)) {
+        dependOnData.add(rn);
       }
     }
 
@@ -165,19 +168,49 @@ public class GraphUtils {
   /**
    * Returns a vertex in the graph. Should only be called after checking the graph contains the vertex.
    *
-   * @param g The graph.
+   * @param vertices The vertices of the graph.
    * @param resourceType The resource type of a vertex.
    * @param resourceId The resource id of a vertex.
    * @return The vertex in the graph.
    */
-  private static ResourceNode getVertex(Graph<ResourceNode, DefaultEdge> g,
-                                 String resourceType, String resourceId) {
-    for (ResourceNode v : g.vertexSet()) {
-      if(v.type.equals(resourceType) && v.id.equals(resourceId)) {
-        return v;
+  private static ResourceNode getVertex(Map<ResourceNode, ResourceNode> vertices, String resourceType,
+                                        String resourceId) {
+    ResourceNode res = vertices.get(new ResourceNode(resourceType, resourceId));
+    if (res == null) {
+      throw new RuntimeException("Resource node was null. This should never happen!");
+    }
+    return res;
+  }
+
+  /**
+   * Finds a cycle in a graph. Every vertex that is not part of a topological sort has a predecessor that is not part
+   * of it either, so following the predecessors from one of these vertices eventually leads to a vertex that has
+   * already been visited.
+   *
+   * @param g The graph.
+   * @param sorted The vertices that are part of a topological sort, which stopped when it reached a cycle.
+   * @return The vertices in the cycle, in the direction of the edges, starting and ending in the same vertex.
+   */
+  private static List<ResourceNode> findCycle(Graph<ResourceNode, DefaultEdge> g, Set<ResourceNode> sorted) {
+    ResourceNode v = g.vertexSet().stream().filter(n -> !sorted.contains(n)).findFirst()
+      .orElseThrow(() -> new RuntimeException("The graph has no cycles. This should never happen!"));
+    final Map<ResourceNode, Integer> positions = new HashMap<>();
+    final List<ResourceNode> path = new ArrayList<>();
+    while (!positions.containsKey(v)) {
+      positions.put(v, path.size());
+      path.add(v);
+      for (DefaultEdge e : g.incomingEdgesOf(v)) {
+        ResourceNode source = g.getEdgeSource(e);
+        if (!sorted.contains(source)) {
+          v = source;
+          break;
+        }
       }
     }
-    throw new RuntimeException("Resource node was null. This should never happen!");
+    List<ResourceNode> cycle = new ArrayList<>(path.subList(positions.get(v), path.size()));
+    cycle.add(v);
+    Collections.reverse(cycle);
+    return cycle;
   }
 
   /**
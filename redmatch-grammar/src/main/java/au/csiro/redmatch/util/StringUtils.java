@@ -6,7 +6,6 @@ package au.csiro.redmatch.util;
 
 import au.csiro.redmatch.model.Field;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
@@ -33,25 +32,47 @@ public class StringUtils {
   }
 
   public static int editDistance(String x, String y) {
-    int[][] dp = new int[x.length() + 1][y.length() + 1];
+    return editDistance(x, y, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Calculates the edit distance between two strings, but stops as soon as it is clear that it is larger than a
+   * maximum. Only two rows of the usual table are kept.
+   *
+   * @param x A string.
+   * @param y Another string.
+   * @param max The maximum distance of interest.
+   * @return The edit distance, or a value larger than the maximum if the edit distance is larger than the maximum.
+   */
+  public static int editDistance(String x, String y, int max) {
+    if (Math.abs(x.length() - y.length()) > max) {
+      return max + 1;
+    }
+
+    int[] previous = new int[y.length() + 1];
+    int[] current = new int[y.length() + 1];
+    for (int j = 0; j <= y.length(); j++) {
+      previous[j] = j;
+    }
 
-    for (int i = 0; i <= x.length(); i++) {
-      for (int j = 0; j <= y.length(); j++) {
-        if (i == 0) {
-          dp[i][j] = j;
-        }
-        else if (j == 0) {
-          dp[i][j] = i;
-        }
-        else {
-          dp[i][j] = min(dp[i - 1][j - 1] + costOfSubstitution(x.charAt(i - 1), y.charAt(j - 1)),
-            dp[i - 1][j] + 1,
-            dp[i][j - 1] + 1);
-        }
+    for (int i = 1; i <= x.length(); i++) {
+      current[0] = i;
+      int rowMin = i;
+      for (int j = 1; j <= y.length(); j++) {
+        current[j] = Math.min(previous[j - 1] + costOfSubstitution(x.charAt(i - 1), y.charAt(j - 1)),
+          Math.min(previous[j] + 1, current[j - 1] + 1));
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      // The distance can never be smaller than the smallest value in a row
+      if (rowMin > max) {
+        return max + 1;
       }
+      int[] tmp = previous;
+      previous = current;
+      current = tmp;
     }
 
-    return dp[x.length()][y.length()];
+    return previous[y.length()];
   }
 
   public static String getLastPath(String url) {
@@ -67,9 +88,5 @@ public class StringUtils {
     return a == b ? 0 : 1;
   }
 
-  private static int min(int... numbers) {
-    return Arrays.stream(numbers).min().orElse(Integer.MAX_VALUE);
-  }
-
 
 }
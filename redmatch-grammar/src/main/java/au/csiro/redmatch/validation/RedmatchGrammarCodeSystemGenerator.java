@@ -27,6 +27,9 @@ import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -46,9 +49,6 @@ public class RedmatchGrammarCodeSystemGenerator {
   private final Map<String, StructureDefinition> structureDefinitionsMapByCode = new HashMap<>();
   // Used to process profiled extensions
   private final Map<String, StructureDefinition> structureDefinitionsMapByUrl = new HashMap<>();
-  // Used to exclude profiled extensions urls
-  private final Map<String, ElementDefinition> elementDefinitionMapByCode = new HashMap<>();
-  private final Set<String> allCodes = new HashSet<>();
 
   /**
    * Used to keep track of the children of profiles or resoruces so the target profiles in the generated code systems
@@ -57,9 +57,29 @@ public class RedmatchGrammarCodeSystemGenerator {
    */
   private final Map<String, Set<String>> profileChildrenMap = new HashMap<>();
 
+  /**
+   * The number of threads used to process structure definitions.
+   */
+  private final int parallelism;
+
   public RedmatchGrammarCodeSystemGenerator(Gson gson, FhirContext ctx) {
+    this(gson, ctx, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param gson An instance of GSON.
+   * @param ctx The FHIR context.
+   * @param parallelism The number of threads used to process structure definitions.
+   */
+  public RedmatchGrammarCodeSystemGenerator(Gson gson, FhirContext ctx, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
     this.gson = gson;
     this.ctx = ctx;
+    this.parallelism = parallelism;
   }
 
   /**
@@ -93,12 +113,15 @@ public class RedmatchGrammarCodeSystemGenerator {
     packages.add(fhirPackage);
     packages.addAll(getDependencies(fhirPackage));
 
+    long start = System.currentTimeMillis();
     for(VersionedFhirPackage pack : packages) {
       FhirUtils.getStructureDefinitions(ctx, pack).forEach(e -> {
         structureDefinitionsMapByCode.put(e.getId().replace("StructureDefinition/", ""), e);
         structureDefinitionsMapByUrl.put(e.getUrl(), e);
       });
     }
+    log.info("Loaded structure definitions in " + (System.currentTimeMillis() - start) + " ms");
+    start = System.currentTimeMillis();
 
     Set<StructureDefinition> complexTypes = structureDefinitionsMapByCode.values().stream().filter(e ->
       e.hasDerivation() && e.getDerivation().equals(StructureDefinition.TypeDerivationRule.SPECIALIZATION)
@@ -125,8 +148,8 @@ public class RedmatchGrammarCodeSystemGenerator {
     double div = total / 100.0;
 
     // Initialise profile children map
-    resourceProfiles.forEach(sd -> profileChildrenMap.put(sd.getUrl(), new HashSet<>()));
-    resources.forEach(sd -> profileChildrenMap.put(sd.getUrl(), new HashSet<>()));
+    resourceProfiles.forEach(sd -> profileChildrenMap.put(sd.getUrl(), new TreeSet<>()));
+    resources.forEach(sd -> profileChildrenMap.put(sd.getUrl(), new TreeSet<>()));
 
     // Create temporary profile parents map
     Map<String, Set<String>> profileParentsMap = new HashMap<>();
@@ -153,35 +176,57 @@ public class RedmatchGrammarCodeSystemGenerator {
         }
       });
 
-    CodeSystem codeSystem = createBaseCodeSystem(fhirPackage);
+    log.info("Classified structure definitions in " + (System.currentTimeMillis() - start) + " ms");
 
-    int i = 0;
-    for (StructureDefinition structureDefinition : complexTypes) {
-      processStructureDefinition(codeSystem, structureDefinition, false, "");
-      i++;
+    // Each structure definition is processed independently and the results are merged in a fixed order
+    List<StructureDefinition> all = new ArrayList<>();
+    all.addAll(sortByUrl(complexTypes));
+    all.addAll(sortByUrl(resourceProfiles));
+    all.addAll(sortByUrl(resources));
 
-      if (progressReporter != null) {
-        progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
+    start = System.currentTimeMillis();
+    List<Concepts> results = new ArrayList<>();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      List<Future<Concepts>> futures = new ArrayList<>();
+      for (StructureDefinition structureDefinition : all) {
+        futures.add(pool.submit(() -> {
+          Concepts concepts = new Concepts();
+          processStructureDefinition(concepts, structureDefinition, false, "");
+          return concepts;
+        }));
       }
-    }
 
-    for (StructureDefinition structureDefinition : resourceProfiles) {
-      processStructureDefinition(codeSystem, structureDefinition, false, "");
-      i++;
+      int i = 0;
+      for (Future<Concepts> future : futures) {
+        results.add(waitFor(future));
+        i++;
 
-      if (progressReporter != null) {
-        progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
+        if (progressReporter != null) {
+          progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
+        }
       }
+    } finally {
+      pool.shutdownNow();
     }
+    log.info("Processed " + total + " structure definitions in " + (System.currentTimeMillis() - start) + " ms");
 
-    for (StructureDefinition structureDefinition : resources) {
-      processStructureDefinition(codeSystem, structureDefinition, false, "");
-      i++;
-
-      if (progressReporter != null) {
-        progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
+    start = System.currentTimeMillis();
+    CodeSystem codeSystem = createBaseCodeSystem(fhirPackage);
+    Set<String> allCodes = new HashSet<>();
+    for (Concepts concepts : results) {
+      for (int j = 0; j < concepts.codes.size(); j++) {
+        String code = concepts.codes.get(j);
+        ConceptDefinitionComponent cdc = concepts.concepts.get(j);
+        if (!allCodes.add(code)) {
+          log.debug("Duplicate code found " + code);
+        } else if (cdc != null) {
+          codeSystem.addConcept(cdc);
+        }
       }
     }
+    log.info("Merged " + codeSystem.getConcept().size() + " concepts in " + (System.currentTimeMillis() - start)
+      + " ms");
 
     if (progressReporter != null) {
       progressReporter.reportProgress(Progress.reportEnd());
@@ -189,6 +234,30 @@ public class RedmatchGrammarCodeSystemGenerator {
     return codeSystem;
   }
 
+  private List<StructureDefinition> sortByUrl(Set<StructureDefinition> structureDefinitions) {
+    return structureDefinitions.stream()
+      .sorted(Comparator.comparing(StructureDefinition::getUrl, Comparator.nullsFirst(Comparator.naturalOrder())))
+      .collect(Collectors.toList());
+  }
+
+  private Concepts waitFor(Future<Concepts> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while creating code system.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException("There was a problem creating the code system.", cause);
+      }
+    }
+  }
+
   private CodeSystem createBaseCodeSystem(VersionedFhirPackage fhirPackage) {
     CodeSystem cs = new CodeSystem();
     cs.setId("redmatch-"+fhirPackage.getName());
@@ -301,7 +370,15 @@ public class RedmatchGrammarCodeSystemGenerator {
     return cs;
   }
 
-  private Set<VersionedFhirPackage> getDependencies(VersionedFhirPackage fhirPackage) throws IOException {
+  /**
+   * Returns all the direct and transitive dependencies of a FHIR package. Packages that are not available locally are
+   * installed.
+   *
+   * @param fhirPackage The FHIR package.
+   * @return The dependencies of the package, not including the package itself.
+   * @throws IOException If there are issues reading the package files.
+   */
+  public Set<VersionedFhirPackage> getDependencies(VersionedFhirPackage fhirPackage) throws IOException {
     File mainPackageFile = FileUtils.getFolderForFhirPackage(fhirPackage).resolve("package.json").toFile();
 
     if (!mainPackageFile.exists()) {
@@ -334,13 +411,13 @@ public class RedmatchGrammarCodeSystemGenerator {
   /**
    * Creates codes for all the valid paths of a structure definition.
    *
-   * @param codeSystem The code system.
+   * @param concepts Collects the concepts created for this structure definition.
    * @param structureDefinition The structure definition.
    * @param nested True if this is being processed as an attribute of another structure definition.
    * @param prefix If nested is true, then this contains the base path for all the paths in this
    * structure definition.
    */
-  private void processStructureDefinition(CodeSystem codeSystem, StructureDefinition structureDefinition,
+  private void processStructureDefinition(Concepts concepts, StructureDefinition structureDefinition,
                                           boolean nested, String prefix) {
 
     if (structureDefinition.getName().equals("Extension")) {
@@ -367,14 +444,14 @@ public class RedmatchGrammarCodeSystemGenerator {
           String path = calculatePath(structureDefinition, elementDefinition, nested);
           if (path != null) {
             path = removeX(path) + capitaliseFirst(typeRefComponent.getCode());
-            processElementDefinition(codeSystem, structureDefinition, elementDefinition, nested, prefix, parents, path,
+            processElementDefinition(concepts, structureDefinition, elementDefinition, nested, prefix, parents, path,
               typeRefComponent, prefixesToIgnore);
           }
         }
       } else {
         String path = calculatePath(structureDefinition, elementDefinition, nested);
         if (path != null) {
-          processElementDefinition(codeSystem, structureDefinition, elementDefinition, nested, prefix, parents, path,
+          processElementDefinition(concepts, structureDefinition, elementDefinition, nested, prefix, parents, path,
             null, prefixesToIgnore);
         }
       }
@@ -408,7 +485,7 @@ public class RedmatchGrammarCodeSystemGenerator {
     throw new RuntimeException("Profile " + url + " has no parent resource!");
   }
 
-  private void processElementDefinition(CodeSystem codeSystem, StructureDefinition structureDefinition,
+  private void processElementDefinition(Concepts concepts, StructureDefinition structureDefinition,
                                         ElementDefinition elementDefinition, boolean nested, String prefix,
                                         Deque<String> parents, String path, TypeRefComponent typeRefComponent,
                                         Set<String> prefixesToIgnore) {
@@ -476,25 +553,24 @@ public class RedmatchGrammarCodeSystemGenerator {
     String code = prefix + (nested ? "." : "") +  path;
 
     log.debug("Creating code " + code);
-    if (!allCodes.add(removeAllBrackets(code))) {
+    if (concepts.elementDefinitions.containsKey(removeAllBrackets(code))) {
       log.debug("Duplicate code found " + removeAllBrackets(code));
       return;
     }
 
     if (fullParent != null
       && !fullParent.isEmpty()
-      && isExtension(elementDefinitionMapByCode.get(removeAllBrackets(fullParent)))
+      && isExtension(concepts.elementDefinitions.get(removeAllBrackets(fullParent)))
       && code.endsWith(".url")) {
       log.debug("Excluding extension url for code " + removeAllBrackets(code));
+      concepts.add(removeAllBrackets(code), elementDefinition, null);
       return;
     }
 
-    elementDefinitionMapByCode.put(removeAllBrackets(code), elementDefinition);
-
-    ConceptDefinitionComponent cdc =
-      codeSystem.addConcept()
-        .setCode(removeAllBrackets(code))
-        .setDisplay(removeAllBrackets(code));
+    ConceptDefinitionComponent cdc = new ConceptDefinitionComponent()
+      .setCode(removeAllBrackets(code))
+      .setDisplay(removeAllBrackets(code));
+    concepts.add(removeAllBrackets(code), elementDefinition, cdc);
     cdc.addProperty().setCode("min").setValue(new IntegerType(elementDefinition.getMin()));
     cdc.addProperty().setCode("max").setValue(new StringType(elementDefinition.getMax()));
     if (fullParent != null && !fullParent.isEmpty()) {
@@ -563,13 +639,13 @@ public class RedmatchGrammarCodeSystemGenerator {
           return;
         }
         assert newPrefix != null;
-        processStructureDefinition(codeSystem, extensionStructureDefinition, true, newPrefix);
+        processStructureDefinition(concepts, extensionStructureDefinition, true, newPrefix);
       } else if (!"Resource".equals(typeCode) && isComplexType(typeRefComponent)) {
         log.debug("Processing type recursively: " + typeCode);
         // TODO: the complex type might be profiled
         StructureDefinition nestedStructureDefinition = getComplexType(typeRefComponent);
         assert newPrefix != null;
-        processStructureDefinition(codeSystem, nestedStructureDefinition, true, newPrefix);
+        processStructureDefinition(concepts, nestedStructureDefinition, true, newPrefix);
       }
     }
 
@@ -744,6 +820,23 @@ public class RedmatchGrammarCodeSystemGenerator {
     return Character.toUpperCase(s.charAt(0)) + s.substring(1);
   }
 
+  /**
+   * The concepts created for a structure definition, in order. Codes that are claimed but excluded from the code
+   * system have no concept, so they are still taken into account when removing duplicates.
+   */
+  private static class Concepts {
+    private final List<String> codes = new ArrayList<>();
+    private final List<ConceptDefinitionComponent> concepts = new ArrayList<>();
+    // Used to exclude profiled extensions urls
+    private final Map<String, ElementDefinition> elementDefinitions = new HashMap<>();
+
+    void add(String code, ElementDefinition elementDefinition, ConceptDefinitionComponent cdc) {
+      codes.add(code);
+      concepts.add(cdc);
+      elementDefinitions.put(code, elementDefinition);
+    }
+  }
+
   /**
    * Attempts to download and install a FHIR package in the local machine if it doesn't exist.
    *
@@ -806,7 +899,7 @@ public class RedmatchGrammarCodeSystemGenerator {
     }
 
     try (FileWriter fw = new FileWriter(args[2])) {
-      ctx.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(cs, fw);
+      FhirSerializer.forContext(ctx).encodePretty(cs, fw);
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -23,9 +23,15 @@ import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -102,6 +108,104 @@ public class RedmatchCompilerTest {
     assertFalse(errors.isEmpty());
   }
 
+  @Test
+  public void testSyntaxErrors() {
+    log.info("Running testSyntaxErrors");
+    String document = FileUtils.loadTextFileFromClassPath("testInvalidKeyword.rdm").replace("<p>", "<p#>");
+    printTokens(document);
+
+    // The document cannot be parsed in SLL mode, so it is parsed again in LL mode, reusing the tokens
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertEquals(1, errors.stream().filter(d -> ErrorCodes.CODE_LEXER.toString().equals(d.getCode().getLeft()))
+      .count());
+    Diagnostic parserError = errors.stream()
+      .filter(d -> ErrorCodes.CODE_PARSER.toString().equals(d.getCode().getLeft()))
+      .findFirst()
+      .orElseThrow();
+    assertEquals(8, parserError.getRange().getStart().getLine());
+  }
+
+  @Test
+  public void testCycle() {
+    log.info("Running testCycle");
+    String document = "SCHEMA: 'schema.json' (REDCAP)\n" +
+      "RULES: {\n" +
+      "  TRUE {\n" +
+      "    Encounter<enc1> :\n" +
+      "      * partOf = REF(Encounter<enc2>)\n" +
+      "    Encounter<enc2> :\n" +
+      "      * partOf = REF(Encounter<enc3>)\n" +
+      "    Encounter<enc3> :\n" +
+      "      * partOf = REF(Encounter<enc1>)\n" +
+      "    Encounter<enc4> :\n" +
+      "      * partOf = REF(Encounter<enc1>)\n" +
+      "  }\n" +
+      "}";
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertEquals(1, errors.size());
+    assertEquals("There is an illegal cycle in the rule definitions: Encounter<enc1> -> Encounter<enc2> -> "
+      + "Encounter<enc3> -> Encounter<enc1>", errors.get(0).getMessage());
+  }
+
+  @Test
+  public void testRepeatSharesInvariantParts() {
+    log.info("Running testRepeatSharesInvariantParts");
+    String document = FileUtils.loadTextFileFromClassPath("testMappings.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    assertTrue(doc.getDiagnostics().isEmpty());
+
+    List<Resource> observations = doc.getRules().stream()
+      .flatMap(r -> r.getResources().stream())
+      .filter(r -> r.getResourceId().startsWith("obs"))
+      .collect(Collectors.toList());
+    assertEquals(4, observations.size());
+
+    // The attributes that do not use the variable are compiled once and shared by all the iterations
+    Resource first = observations.get(0);
+    for (int i = 0; i < observations.size(); i++) {
+      Resource obs = observations.get(i);
+      assertEquals("obs" + (i + 1), obs.getResourceId());
+      assertSame(first.getResourceAttributeValues().get(0), obs.getResourceAttributeValues().get(0));
+      assertSame(first.getResourceAttributeValues().get(2), obs.getResourceAttributeValues().get(2));
+      ConceptValue code = (ConceptValue) obs.getResourceAttributeValues().get(1).getValue();
+      assertEquals("phenotype___" + (i + 1), code.getFieldId());
+    }
+  }
+
+  @Test
+  public void testRepeatVariableInAttributeIndex() {
+    log.info("Running testRepeatVariableInAttributeIndex");
+    String document = "SCHEMA: 'schema.json' (REDCAP)\n" +
+      "RULES: {\n" +
+      "  REPEAT(0..2: x) TRUE { Patient<p>: * identifier[${x}].value = 'abc' }\n" +
+      "}";
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertTrue(errors.isEmpty());
+
+    // The value is the same in every iteration but the attribute is not, so they cannot be shared
+    List<Resource> patients = doc.getRules().stream()
+      .flatMap(r -> r.getResources().stream())
+      .collect(Collectors.toList());
+    assertEquals(3, patients.size());
+    for (int i = 0; i < patients.size(); i++) {
+      Attribute identifier = patients.get(i).getResourceAttributeValues().get(0).getAttributes().get(0);
+      assertEquals(i, identifier.getAttributeIndex());
+    }
+  }
+
   @Test
   public void testOneLiners() {
     log.info("Running testOneLiners");
@@ -272,6 +376,21 @@ public class RedmatchCompilerTest {
     assertFalse(errors.isEmpty());
   }
 
+  @Test
+  public void testUnknownFieldMessage() {
+    log.info("Running testUnknownFieldMessage");
+    String document = FileUtils.loadTextFileFromClassPath("testInvalidField.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertTrue(errors.stream().anyMatch(
+      d -> "Field stud_num does not exist in REDCap schema.".equals(d.getMessage())));
+    assertTrue(errors.stream().anyMatch(
+      d -> "Field stud_num does not exist in REDCap.".equals(d.getMessage())));
+  }
+
   @Test
   public void testId() {
     log.info("Running testId");
@@ -828,6 +947,108 @@ public class RedmatchCompilerTest {
     assertNull(clv.getDisplay());
   }
 
+  @Test
+  public void testIncremental() {
+    log.info("Running testIncremental");
+    String base = FileUtils.loadTextFileFromClassPath("testMissingResource.rdm");
+    String invalidField = "  TRUE { Patient<p>: *identifier.value = VALUE(unknown_field) }\n";
+    String patient = "  TRUE { Patient<p>: *identifier.value = VALUE(record_id) }\n";
+    int rulesStart = base.indexOf("RULES: {\n") + "RULES: {\n".length();
+    String withErrors = base.substring(0, rulesStart) + invalidField + base.substring(rulesStart);
+    String withPatient = withErrors.substring(0, rulesStart) + "\n\n" + patient + "  " + withErrors.substring(rulesStart);
+    String[] versions = { base, withErrors, withPatient, withErrors, withErrors.replace("dx_${x}", "dx_${y}") };
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    compiler.setIncremental(true);
+    for (String version : versions) {
+      Document expected = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage).compile(version);
+      Document actual = compiler.compile(version);
+      assertFalse(expected.getDiagnostics().isEmpty());
+      assertEquals(describeDiagnostics(expected.getDiagnostics()), describeDiagnostics(actual.getDiagnostics()));
+      assertEquals(describe(expected.getRules()), describe(actual.getRules()));
+    }
+  }
+
+  @Test
+  public void testIncrementalSeveralDocuments() {
+    log.info("Running testIncrementalSeveralDocuments");
+    String first = FileUtils.loadTextFileFromClassPath("testMappings.rdm");
+    String second = FileUtils.loadTextFileFromClassPath("testMissingResource.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    compiler.setIncremental(true);
+    Document firstDoc = compiler.compile(null, first, "file:///first.rdm");
+    compiler.compile(null, second, "file:///second.rdm");
+
+    // Compiling another document does not discard the rules of the first one
+    Document again = compiler.compile(null, first, "file:///first.rdm");
+    assertEquals(firstDoc.getRules().size(), again.getRules().size());
+    for (int i = 0; i < firstDoc.getRules().size(); i++) {
+      assertSame(firstDoc.getRules().get(i), again.getRules().get(i));
+    }
+  }
+
+  @Test
+  public void testConcurrentCompilation() throws InterruptedException, ExecutionException {
+    log.info("Running testConcurrentCompilation");
+    // The second rule uses the path information left by the first one
+    String dependent = "SCHEMA: 'schema.json' (REDCAP)\n\nRULES: {\n"
+      + "  TRUE { Patient<p>: *identifier.value = VALUE(record_id) }\n"
+      + "  TRUE { Patient<p>: *identifiers.value = VALUE(record_id) }\n}";
+    List<String> documents = Arrays.asList(dependent, FileUtils.loadTextFileFromClassPath("testMappings.rdm"),
+      FileUtils.loadTextFileFromClassPath("testMissingResource.rdm"),
+      FileUtils.loadTextFileFromClassPath("testListExplicit.rdm"),
+      FileUtils.loadTextFileFromClassPath("testInvalidField.rdm"));
+
+    RedmatchCompiler sequential = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage, null, 1);
+    List<List<String>> expected = new ArrayList<>();
+    for (String document : documents) {
+      Document doc = sequential.compile(document);
+      expected.add(describeDiagnostics(doc.getDiagnostics()));
+      expected.add(describe(doc.getRules()));
+    }
+
+    RedmatchCompiler parallel = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage, null, 4);
+    ExecutorService executor = Executors.newFixedThreadPool(documents.size());
+    try {
+      List<Future<Document>> futures = new ArrayList<>();
+      for (String document : documents) {
+        futures.add(executor.submit(() -> parallel.compile(document)));
+      }
+      List<List<String>> actual = new ArrayList<>();
+      for (Future<Document> future : futures) {
+        Document doc = future.get();
+        actual.add(describeDiagnostics(doc.getDiagnostics()));
+        actual.add(describe(doc.getRules()));
+      }
+      assertEquals(expected, actual);
+    } finally {
+      executor.shutdownNow();
+      parallel.shutdown();
+    }
+  }
+
+  private List<String> describeDiagnostics(List<Diagnostic> diagnostics) {
+    List<String> res = new ArrayList<>();
+    for (Diagnostic d : diagnostics) {
+      res.add(d.getRange() + " " + d.getCode().getLeft() + " " + d.getMessage() + " " + gson.toJson(d.getData()));
+    }
+    return res;
+  }
+
+  private List<String> describe(List<Rule> rules) {
+    List<String> res = new ArrayList<>();
+    for (Rule rule : rules) {
+      res.add(rule.getRowStart() + ":" + rule.getColStart() + "-" + rule.getRowEnd() + ":" + rule.getColEnd() + " "
+        + rule);
+      res.addAll(describe(rule.getBody().getRules()));
+      if (rule.getElseBody() != null) {
+        res.addAll(describe(rule.getElseBody().getRules()));
+      }
+    }
+    return res;
+  }
+
   private void testReferenceAttributeValue(AttributeValue av, String[] expectedPath,
                                            int[] expectedIndexes) {
     List<Attribute> attrs = av.getAttributes();
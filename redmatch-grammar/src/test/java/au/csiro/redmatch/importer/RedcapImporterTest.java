@@ -13,6 +13,7 @@ import org.apache.commons.logging.LogFactory;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 /**
  * Unit tests for REDCap schema importers.
@@ -45,6 +46,12 @@ public class RedcapImporterTest {
 
       assertEquals(f1.getFieldId(), f2.getFieldId());
       assertEquals(f1.getType(), f2.getType());
+
+      // The indexes should be consistent with the list of fields
+      assertSame(f1, s1.getField(f1.getFieldId()));
+      assertSame(f2, s2.getField(f2.getFieldId()));
+      assertEquals(f1.getOptions(), s1.getOptions(f1.getFieldId()));
+      assertEquals(f2.getOptions(), s2.getOptions(f2.getFieldId()));
     }
   }
 
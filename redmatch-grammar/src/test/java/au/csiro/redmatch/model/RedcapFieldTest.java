@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.model;
+
+import au.csiro.redmatch.compiler.FieldValue;
+import com.google.gson.JsonObject;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.InstantType;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RedcapField}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class RedcapFieldTest {
+
+  private static final ZoneId SYDNEY = ZoneId.of("Australia/Sydney");
+
+  @Test
+  public void testDate() {
+    RedcapField field = createField(RedcapField.TextValidationType.DATE_YMD);
+    assertEquals("2021-03-05", getValue(field, "2021-03-05", DateType.class).primitiveValue());
+    assertEquals("2021-03-05T00:00:00+11:00", getValue(field, "2021-03-05", DateTimeType.class).primitiveValue());
+
+    // The date does not depend on the time zone
+    field.setZoneId(ZoneId.of("Pacific/Honolulu"));
+    assertEquals("2021-03-05", getValue(field, "2021-03-05", DateType.class).primitiveValue());
+  }
+
+  @Test
+  public void testDateTime() {
+    RedcapField field = createField(RedcapField.TextValidationType.DATETIME_SECONDS_YMD);
+    assertEquals("2021-01-15T10:30:15+11:00",
+      getValue(field, "2021-01-15 10:30:15", DateTimeType.class).primitiveValue());
+    assertEquals("2021-01-15T10:30:15.000+11:00",
+      getValue(field, "2021-01-15 10:30:15", InstantType.class).primitiveValue());
+
+    field.setZoneId(ZoneId.of("UTC"));
+    assertEquals("2021-01-15T10:30:15+00:00",
+      getValue(field, "2021-01-15 10:30:15", DateTimeType.class).primitiveValue());
+  }
+
+  @Test
+  public void testDateTimeAcrossDst() {
+    RedcapField field = createField(RedcapField.TextValidationType.DATETIME_YMD);
+
+    // Daylight saving time ends at 3am on 2021-04-04, when clocks go back to 2am
+    DateTimeType before = (DateTimeType) getValue(field, "2021-04-04 01:30", DateTimeType.class);
+    DateTimeType after = (DateTimeType) getValue(field, "2021-04-04 03:30", DateTimeType.class);
+    assertEquals("2021-04-04T01:30:00+11:00", before.primitiveValue());
+    assertEquals("2021-04-04T03:30:00+10:00", after.primitiveValue());
+    assertEquals(3 * 60 * 60 * 1000, after.getValue().getTime() - before.getValue().getTime());
+
+    // Daylight saving time starts at 2am on 2021-10-03, so 2:30am does not exist and moves forward an hour
+    assertEquals("2021-10-03T03:30:00+11:00",
+      getValue(field, "2021-10-03 02:30", DateTimeType.class).primitiveValue());
+
+    // Clearing the time keeps the offset of midnight
+    assertEquals("2021-04-04T00:00:00+11:00",
+      getValue(field, "2021-04-04 03:30", DateTimeType.class, FieldValue.DatePrecision.DAY).primitiveValue());
+  }
+
+  private RedcapField createField(RedcapField.TextValidationType textValidationType) {
+    RedcapField field = new RedcapField("dob", "Date of birth", textValidationType);
+    field.setZoneId(SYDNEY);
+    return field;
+  }
+
+  private Base getValue(RedcapField field, String value, Class<?> fhirType) {
+    return getValue(field, value, fhirType, null);
+  }
+
+  private Base getValue(RedcapField field, String value, Class<?> fhirType, FieldValue.DatePrecision precision) {
+    JsonObject vertex = new JsonObject();
+    vertex.addProperty("dob", value);
+    return field.getValue(vertex, fhirType, precision);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.terminology;
+
+import au.csiro.redmatch.model.VersionedFhirPackage;
+import au.csiro.redmatch.util.FileUtils;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link CodeSystemCache}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class CodeSystemCacheTest {
+
+  private static final VersionedFhirPackage main = new VersionedFhirPackage("test.main", "1.0.0");
+  private static final VersionedFhirPackage dep = new VersionedFhirPackage("test.dep", "2.0.0");
+
+  @TempDir
+  Path tempDir;
+
+  private String userHome;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    userHome = System.getProperty("user.home");
+    System.setProperty("user.home", tempDir.toString());
+    writePackageFile(main, "package.json", "{\"name\":\"test.main\"}");
+    writePackageFile(dep, "package.json", "{\"name\":\"test.dep\"}");
+  }
+
+  @AfterEach
+  public void tearDown() {
+    System.setProperty("user.home", userHome);
+  }
+
+  @Test
+  public void testGetAndPut() throws IOException {
+    CodeSystemCache cache = new CodeSystemCache(FhirContext.forR4());
+    List<VersionedFhirPackage> deps = Collections.singletonList(dep);
+    String key = cache.getKey(main, deps);
+    assertEquals(key, cache.getKey(main, deps));
+    assertNull(cache.get(main, key));
+
+    CodeSystem cs = new CodeSystem();
+    cs.setUrl("http://redmatch.test.main");
+    cs.addConcept().setCode("Patient").setDisplay("Ñandú");
+    cache.put(main, key, cs);
+
+    CodeSystem cached = cache.get(main, key);
+    assertNotNull(cached);
+    assertEquals("http://redmatch.test.main", cached.getUrl());
+    assertEquals("Ñandú", cached.getConceptFirstRep().getDisplay());
+
+    // Changing a dependency changes the key and removes the stale entry when the new one is stored
+    writePackageFile(dep, "StructureDefinition-x.json", "{}");
+    String newKey = cache.getKey(main, deps);
+    assertNotEquals(key, newKey);
+    assertNull(cache.get(main, newKey));
+    cache.put(main, newKey, cs);
+    assertNull(cache.get(main, key));
+    assertNotNull(cache.get(main, newKey));
+  }
+
+  @Test
+  public void testKeyChangesWithContents() throws IOException {
+    CodeSystemCache cache = new CodeSystemCache(FhirContext.forR4());
+    List<VersionedFhirPackage> deps = Collections.singletonList(dep);
+    writePackageFile(dep, "StructureDefinition-x.json", "{\"a\":1}");
+    String key = cache.getKey(main, deps);
+
+    // Rewriting a file with the same contents keeps the key
+    writePackageFile(dep, "StructureDefinition-x.json", "{\"a\":1}");
+    assertEquals(key, cache.getKey(main, deps));
+
+    // Changing the contents changes the key, also for a new cache that has not hashed the files before
+    writePackageFile(dep, "StructureDefinition-x.json", "{\"a\":22}");
+    String newKey = cache.getKey(main, deps);
+    assertNotEquals(key, newKey);
+    assertEquals(newKey, new CodeSystemCache(FhirContext.forR4()).getKey(main, deps));
+  }
+
+  @Test
+  public void testPermissions() throws IOException {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    CodeSystemCache cache = new CodeSystemCache(FhirContext.forR4());
+    String key = cache.getKey(main, Collections.emptyList());
+    CodeSystem cs = new CodeSystem();
+    cs.setUrl("http://redmatch.test.main");
+    cache.put(main, key, cs);
+
+    // The cached file gets the same permissions as any other new file
+    Path reference = Files.createFile(tempDir.resolve("reference"));
+    Path cached;
+    try (Stream<Path> files = Files.list(FileUtils.getFolderForFhirPackage(main).getParent().resolve("redmatch"))) {
+      cached = files.findFirst().orElseThrow();
+    }
+    assertEquals(Files.getPosixFilePermissions(reference), Files.getPosixFilePermissions(cached));
+  }
+
+  private void writePackageFile(VersionedFhirPackage fhirPackage, String name, String content) throws IOException {
+    Path folder = Files.createDirectories(FileUtils.getFolderForFhirPackage(fhirPackage));
+    Files.write(folder.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+  }
+}
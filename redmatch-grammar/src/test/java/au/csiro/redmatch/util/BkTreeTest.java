@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BkTree} and the edit distance in {@link StringUtils}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class BkTreeTest {
+
+  @Test
+  public void testEditDistance() {
+    assertEquals(3, StringUtils.editDistance("kitten", "sitting"));
+    assertEquals(0, StringUtils.editDistance("pat_sex", "pat_sex"));
+    assertEquals(7, StringUtils.editDistance("", "pat_sex"));
+    assertEquals(3, StringUtils.editDistance("kitten", "sitting", 3));
+    assertTrue(StringUtils.editDistance("kitten", "sitting", 2) > 2);
+    assertTrue(StringUtils.editDistance("a", "abcdef", 1) > 1);
+  }
+
+  @Test
+  public void testGetClosest() {
+    List<String> fieldIds = Arrays.asList("record_id", "pat_sex", "pat_dob", "pat_sex", "dx_1", "dx_2", "dx_3");
+    BkTree tree = new BkTree(fieldIds);
+    assertEquals(6, tree.size());
+    assertEquals("pat_sex", tree.getClosest("pat_sex"));
+    assertEquals("pat_sex", tree.getClosest("pat_sx"));
+    assertEquals("dx_1", tree.getClosest("dx_9"));
+    assertNull(new BkTree(new ArrayList<>()).getClosest("pat_sex"));
+  }
+
+  @Test
+  public void testSameResultsAsLinearSearch() {
+    Random random = new Random(42);
+    List<String> fieldIds = new ArrayList<>();
+    for (int i = 0; i < 2000; i++) {
+      fieldIds.add(randomId(random));
+    }
+    BkTree tree = new BkTree(fieldIds);
+    for (int i = 0; i < 500; i++) {
+      String id = randomId(random);
+      assertEquals(StringUtils.getClosest(id, fieldIds), tree.getClosest(id), id);
+    }
+  }
+
+  private String randomId(Random random) {
+    String[] parts = { "pat", "dx", "sex", "dob", "phenotype", "_", "___", "1", "2", "date", "text" };
+    StringBuilder sb = new StringBuilder();
+    int num = 1 + random.nextInt(4);
+    for (int i = 0; i < num; i++) {
+      sb.append(parts[random.nextInt(parts.length)]);
+    }
+    return sb.toString();
+  }
+}
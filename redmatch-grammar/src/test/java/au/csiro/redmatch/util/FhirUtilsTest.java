@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import au.csiro.redmatch.model.VersionedFhirPackage;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link FhirUtils}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class FhirUtilsTest {
+
+  private static final VersionedFhirPackage pack = new VersionedFhirPackage("test.definitions", "1.0.0");
+
+  private final FhirContext ctx = FhirContext.forR4();
+
+  @TempDir
+  Path tempDir;
+
+  private String userHome;
+
+  @BeforeEach
+  public void setUp() {
+    userHome = System.getProperty("user.home");
+    System.setProperty("user.home", tempDir.toString());
+  }
+
+  @AfterEach
+  public void tearDown() {
+    System.setProperty("user.home", userHome);
+  }
+
+  @Test
+  public void testStructureDefinitionsCache() throws IOException {
+    writeDefinition("StructureDefinition-a.json", "A");
+    writeDefinition("StructureDefinition-b.json", "B");
+    List<StructureDefinition> first = FhirUtils.getStructureDefinitions(ctx, pack);
+    assertEquals(2, first.size());
+    assertSame(first, FhirUtils.getStructureDefinitions(ctx, pack));
+
+    // A file that changes in place is picked up even if the folder's last-modified time does not change
+    Path packageDir = getPackageDir();
+    FileTime dirTime = Files.getLastModifiedTime(packageDir);
+    writeDefinition("StructureDefinition-b.json", "Bee");
+    Files.setLastModifiedTime(packageDir, dirTime);
+    List<StructureDefinition> second = FhirUtils.getStructureDefinitions(ctx, pack);
+    assertNotSame(first, second);
+    assertTrue(second.stream().anyMatch(sd -> "Bee".equals(sd.getName())));
+    assertSame(second, FhirUtils.getStructureDefinitions(ctx, pack));
+
+    // Removing a file is also picked up
+    Files.delete(packageDir.resolve("StructureDefinition-a.json"));
+    List<StructureDefinition> third = FhirUtils.getStructureDefinitions(ctx, pack);
+    assertEquals(1, third.size());
+    assertEquals("Bee", third.get(0).getName());
+  }
+
+  private Path getPackageDir() {
+    return tempDir.resolve(".fhir").resolve("packages").resolve(pack.toString()).resolve("package");
+  }
+
+  private void writeDefinition(String fileName, String name) throws IOException {
+    Path file = getPackageDir().resolve(fileName);
+    Files.createDirectories(file.getParent());
+    String json = "{\"resourceType\":\"StructureDefinition\",\"url\":\"http://redmatch.test/" + name + "\","
+      + "\"name\":\"" + name + "\",\"status\":\"draft\",\"kind\":\"resource\",\"abstract\":false,"
+      + "\"type\":\"Patient\",\"snapshot\":{\"element\":[{\"path\":\"Patient\"}]}}";
+    Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+  }
+}
@@ -14,11 +14,15 @@ import org.eclipse.lsp4j.*;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Runs diagnostics on Redmatch documents.
+ * Runs diagnostics on Redmatch documents. Diagnostics run on a small shared pool of threads and there is at most one
+ * pending task per document, so changes in one document do not affect the diagnostics of other documents. Changes are
+ * debounced: diagnostics only run once the document has not changed for a while. Tasks for older versions of a
+ * document are dropped, and their results are never published.
  *
  * @author Alejandro Metke Jimenez
  */
@@ -27,12 +31,29 @@ public class DiagnosticRunner {
   /** Logger. */
   private static final Log log = LogFactory.getLog(DiagnosticRunner.class);
 
+  /**
+   * The default time to wait after a change before running the diagnostics, in milliseconds.
+   */
+  public static final long DEFAULT_DELAY = 300;
+
+  /**
+   * The default number of threads used to run diagnostics.
+   */
+  public static final int DEFAULT_THREADS = 2;
+
   /**
    * Used to send diagnostic messages to the client.
    */
   private final RedmatchLanguageServer languageServer;
 
-  private FutureTask<Void> task;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * The latest task of each document. Entries are removed when the document is closed.
+   */
+  private final Map<String, DiagnosticTask> tasks = new ConcurrentHashMap<>();
+
+  private volatile long delay;
 
   /**
    * Constructor.
@@ -40,7 +61,41 @@ public class DiagnosticRunner {
    * @param languageServer Language server reference.
    */
   public DiagnosticRunner(RedmatchLanguageServer languageServer) {
+    this(languageServer, DEFAULT_DELAY, DEFAULT_THREADS);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param languageServer Language server reference.
+   * @param delay The time to wait after a change before running the diagnostics, in milliseconds.
+   * @param threads The number of threads used to run diagnostics.
+   */
+  public DiagnosticRunner(RedmatchLanguageServer languageServer, long delay, int threads) {
     this.languageServer = languageServer;
+    setDelay(delay);
+    AtomicInteger count = new AtomicInteger();
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads, r -> {
+      Thread t = new Thread(r, "redmatch-diagnostics-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+    // Debounced tasks are cancelled on every keystroke, so they are removed from the queue instead of waiting there
+    // until their delay expires
+    executor.setRemoveOnCancelPolicy(true);
+    this.scheduler = executor;
+  }
+
+  /**
+   * Sets the time to wait after a change before running the diagnostics.
+   *
+   * @param delay The delay in milliseconds.
+   */
+  public void setDelay(long delay) {
+    if (delay < 0) {
+      throw new IllegalArgumentException("Delay cannot be negative but was " + delay + ".");
+    }
+    this.delay = delay;
   }
 
   public void compute(DidOpenTextDocumentParams params) {
@@ -49,9 +104,10 @@ public class DiagnosticRunner {
   }
 
   public void compute(DidChangeTextDocumentParams params) {
-    String text = params.getContentChanges().get(0).getText();
-    computeDiagnostics(text,
-      languageServer.getTextDocumentService().getOpenedDocument(params.getTextDocument().getUri()));
+    // Changes can be incremental, so the full text is taken from the document
+    TextDocumentItem documentItem =
+      languageServer.getTextDocumentService().getOpenedDocument(params.getTextDocument().getUri());
+    computeDiagnostics(documentItem.getText(), documentItem.getUri(), documentItem.getVersion(), delay);
   }
 
   public void compute(DidSaveTextDocumentParams params) {
@@ -60,48 +116,49 @@ public class DiagnosticRunner {
       languageServer.getTextDocumentService().getOpenedDocument(params.getTextDocument().getUri()));
   }
 
-  public synchronized void computeDiagnostics(String text, TextDocumentItem documentItem) {
-    String uri = documentItem.getUri();
-    log.info("Computing diagnostics for document " + uri);
-    log.debug("Task is done: " + ((task != null) ? task.isDone() : "NA"));
-
-    if (task != null && !task.isDone()) {
-      log.info("Found existing task so cancelling it");
-      task.cancel(true);
-    }
-
-    task = new FutureTask<>(() -> {
-      log.debug("Creating new diagnostic runner");
-      Document doc;
-      try {
-        doc = languageServer.getApi().compile(text, uri, null);
-      } catch (CompilationException e) {
-        // If something goes wrong then don't return any partial results because they could be wrong
-        return null;
-      }
-
-      List<Diagnostic> diagnostics = doc.getDiagnostics();
-      log.info("Compilation produced " + diagnostics.size() + " diagnostic messages");
-      if (Thread.interrupted()) {
-        log.debug("Interrupting compilation");
-        return null;
-      }
-      languageServer.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics));
-      Schema schema = doc.getSchema();
-      if (schema != null) {
-        languageServer.getTextDocumentService().setSchema(uri, schema);
-      }
+  /**
+   * Runs the diagnostics for a document straight away.
+   *
+   * @param text The text of the document.
+   * @param documentItem The document.
+   */
+  public void computeDiagnostics(String text, TextDocumentItem documentItem) {
+    computeDiagnostics(text, documentItem.getUri(), documentItem.getVersion(), 0);
+  }
 
-      VersionedFhirPackage fhirPackage = doc.getFhirPackage();
-      if (fhirPackage != null) {
-        languageServer.getTextDocumentService().setFhirPackage(uri, fhirPackage);
-      } else {
-        languageServer.getTextDocumentService().setFhirPackage(uri, languageServer.getDefaultFhirPackage());
+  /**
+   * Schedules the diagnostics for a version of a document. Any pending task for an older version of the document is
+   * cancelled. If a newer version has already been scheduled then this version is ignored.
+   *
+   * @param text The text of the document.
+   * @param uri The document's URI.
+   * @param version The document's version. Can be null.
+   * @param delay The time to wait before running the diagnostics, in milliseconds.
+   */
+  public void computeDiagnostics(String text, String uri, Integer version, long delay) {
+    log.info("Computing diagnostics for document " + uri);
+    final DiagnosticTask task = new DiagnosticTask(uri, version, text);
+    DiagnosticTask latest = tasks.compute(uri, (k, current) -> {
+      if (current != null) {
+        if (current.isNewerThan(version)) {
+          log.debug("Ignoring diagnostics for superseded version " + version + " of " + uri);
+          return current;
+        }
+        log.debug("Found existing task so cancelling it");
+        current.cancel();
       }
-
-      return null;
+      return task;
     });
-    Executors.newCachedThreadPool().submit(task);
+    if (latest == task) {
+      task.future = scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops running diagnostics. This method should be called when the language server is about to be shut down.
+   */
+  public void shutdown() {
+    scheduler.shutdownNow();
   }
 
   private String retrieveFullText(DidSaveTextDocumentParams params) {
@@ -118,7 +175,85 @@ public class DiagnosticRunner {
    * @param uri The document's URI.
    */
   public void clear(String uri) {
+    DiagnosticTask task = tasks.remove(uri);
+    if (task != null) {
+      task.cancel();
+    }
     languageServer.publishDiagnostics(new PublishDiagnosticsParams(uri, Collections.emptyList()));
   }
 
+  /**
+   * Computes and publishes the diagnostics of a version of a document. Cancelling a task that is running interrupts it,
+   * which stops the compiler at its next check. The task also checks whether it has been superseded before compiling
+   * and before publishing the results.
+   */
+  private class DiagnosticTask implements Runnable {
+    private final String uri;
+    private final Integer version;
+    private final String text;
+    private volatile boolean cancelled = false;
+    private volatile Future<?> future;
+
+    DiagnosticTask(String uri, Integer version, String text) {
+      this.uri = uri;
+      this.version = version;
+      this.text = text;
+    }
+
+    boolean isNewerThan(Integer otherVersion) {
+      return version != null && otherVersion != null && version > otherVersion;
+    }
+
+    void cancel() {
+      cancelled = true;
+      Future<?> f = future;
+      if (f != null) {
+        // Tasks that have started are interrupted so stale compilations do not hold on to the scheduler's threads
+        f.cancel(true);
+      }
+    }
+
+    boolean isCancelled() {
+      return cancelled || tasks.get(uri) != this;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (isCancelled()) {
+          return;
+        }
+        log.debug("Running diagnostics for version " + version + " of " + uri);
+        Document doc;
+        try {
+          doc = languageServer.getApi().compile(text, uri, null);
+        } catch (CompilationException e) {
+          // If something goes wrong then don't return any partial results because they could be wrong
+          return;
+        }
+
+        List<Diagnostic> diagnostics = doc.getDiagnostics();
+        log.info("Compilation produced " + diagnostics.size() + " diagnostic messages");
+        if (isCancelled()) {
+          log.debug("Discarding diagnostics for superseded version " + version + " of " + uri);
+          return;
+        }
+        languageServer.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics, version));
+        Schema schema = doc.getSchema();
+        if (schema != null) {
+          languageServer.getTextDocumentService().setSchema(uri, schema);
+        }
+
+        VersionedFhirPackage fhirPackage = doc.getFhirPackage();
+        if (fhirPackage != null) {
+          languageServer.getTextDocumentService().setFhirPackage(uri, fhirPackage);
+        } else {
+          languageServer.getTextDocumentService().setFhirPackage(uri, languageServer.getDefaultFhirPackage());
+        }
+      } catch (RuntimeException e) {
+        log.error("There was a problem computing diagnostics for " + uri, e);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.lsp;
+
+import au.csiro.redmatch.grammar.RedmatchLexer;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the tokens of a Redmatch document up to date as it is edited. Each token records the state of the lexer after
+ * it was produced and the furthest character the lexer looked at to produce it. When the document changes, the tokens
+ * that did not depend on any of the changed characters are kept, and lexing restarts from the state after the last of
+ * them. Lexing stops as soon as it produces a token after the change that is identical to an old token and leaves the
+ * lexer in the same state. The remaining old tokens are then reused, shifted to their new positions.
+ *
+ * <p>Indexes and character positions are in UTF-16 code units, as in the language server protocol.</p>
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class IncrementalLexer {
+
+  private static final State INITIAL = new State(0, 1, 0, Lexer.DEFAULT_MODE, new int[0]);
+
+  private String text;
+
+  /**
+   * The tokens of the document. The list is replaced, never modified, so it can be safely shared.
+   */
+  private List<LexedToken> tokens;
+
+  /**
+   * Constructor.
+   *
+   * @param text The text of the document.
+   */
+  public IncrementalLexer(String text) {
+    this.text = text;
+    this.tokens = lex(text, text.length(), INITIAL, new ArrayList<>());
+  }
+
+  /**
+   * Returns the tokens of the document, including the tokens in hidden channels.
+   *
+   * @return An unmodifiable list with the tokens.
+   */
+  public synchronized List<Token> getTokens() {
+    return Collections.unmodifiableList(tokens);
+  }
+
+  /**
+   * Returns the tokens that result from lexing the text before an offset, i.e., the text that has been typed before
+   * the cursor. Tokens that are not affected by the text after the offset are reused.
+   *
+   * @param offset The offset.
+   * @return The tokens.
+   */
+  public synchronized List<Token> getTokensBefore(int offset) {
+    offset = Math.min(Math.max(offset, 0), text.length());
+    int keep = countUnaffected(tokens, offset);
+    List<LexedToken> res = new ArrayList<>(tokens.subList(0, keep));
+    return Collections.unmodifiableList(lex(text, offset, keep == 0 ? INITIAL : tokens.get(keep - 1).end, res));
+  }
+
+  /**
+   * Updates the tokens after a change in the document. The characters between the start and the old end of the
+   * change were replaced by the characters between the start and the new end.
+   *
+   * @param newText The new text of the document.
+   * @param start The offset where the change starts.
+   * @param oldEnd The offset where the change ended in the old text.
+   * @param newEnd The offset where the change ends in the new text.
+   */
+  public synchronized void update(String newText, int start, int oldEnd, int newEnd) {
+    final int delta = newEnd - oldEnd;
+    final List<LexedToken> old = tokens;
+
+    int keep = countUnaffected(old, start);
+    List<LexedToken> res = new ArrayList<>(old.size() + 16);
+    res.addAll(old.subList(0, keep));
+
+    StringCharStream input = new StringCharStream(newText, newText.length());
+    RedmatchLexer lexer = createLexer(input, keep == 0 ? INITIAL : old.get(keep - 1).end);
+    int j = keep;
+    LexedToken token;
+    while ((token = nextToken(lexer, input)) != null) {
+      res.add(token);
+      if (token.getStartIndex() < newEnd) {
+        continue;
+      }
+
+      // Look for the same token in the old text
+      int oldStart = token.getStartIndex() - delta;
+      while (j < old.size() && old.get(j).getStartIndex() < oldStart) {
+        j++;
+      }
+      if (j < old.size() && old.get(j).getStartIndex() == oldStart && old.get(j).isEquivalent(token)) {
+        shiftTail(old, j, token, delta, res);
+        break;
+      }
+    }
+
+    text = newText;
+    tokens = res;
+  }
+
+  /**
+   * Adds the old tokens after the token where the old and new tokens converge, shifted to their new positions.
+   */
+  private void shiftTail(List<LexedToken> old, int j, LexedToken newToken, int delta, List<LexedToken> res) {
+    State oldEnd = old.get(j).end;
+    int lineDelta = newToken.end.line - oldEnd.line;
+    int columnDelta = newToken.end.charPositionInLine - oldEnd.charPositionInLine;
+    for (int k = j + 1; k < old.size(); k++) {
+      res.add(old.get(k).shift(delta, lineDelta, oldEnd.line, columnDelta));
+    }
+  }
+
+  /**
+   * Returns the number of tokens at the start of the list that did not look at any characters at or after an offset.
+   */
+  private static int countUnaffected(List<LexedToken> tokens, int offset) {
+    int res = 0;
+    while (res < tokens.size() && tokens.get(res).lookahead < offset) {
+      res++;
+    }
+    return res;
+  }
+
+  private static List<LexedToken> lex(String text, int limit, State start, List<LexedToken> res) {
+    StringCharStream input = new StringCharStream(text, limit);
+    RedmatchLexer lexer = createLexer(input, start);
+    LexedToken token;
+    while ((token = nextToken(lexer, input)) != null) {
+      res.add(token);
+    }
+    return res;
+  }
+
+  private static RedmatchLexer createLexer(StringCharStream input, State state) {
+    RedmatchLexer lexer = new RedmatchLexer(input);
+    lexer.removeErrorListeners();
+    input.seek(state.index);
+    lexer.getInterpreter().setLine(state.line);
+    lexer.getInterpreter().setCharPositionInLine(state.charPositionInLine);
+    lexer._mode = state.mode;
+    for (int mode : state.modeStack) {
+      lexer._modeStack.push(mode);
+    }
+    return lexer;
+  }
+
+  /**
+   * Returns the next token or null if the end of the input has been reached.
+   */
+  private static LexedToken nextToken(RedmatchLexer lexer, StringCharStream input) {
+    input.resetMaxLookahead();
+    Token token = lexer.nextToken();
+    if (token.getType() == Token.EOF) {
+      return null;
+    }
+    State end = new State(input.index(), lexer.getLine(), lexer.getCharPositionInLine(), lexer._mode,
+      lexer._modeStack.toArray());
+    return new LexedToken(token.getType(), token.getText(), token.getChannel(), token.getStartIndex(),
+      token.getStopIndex(), token.getLine(), token.getCharPositionInLine(), input.getMaxLookahead(), end);
+  }
+
+  /**
+   * The state of the lexer between two tokens.
+   */
+  private static class State {
+    private final int index;
+    private final int line;
+    private final int charPositionInLine;
+    private final int mode;
+    private final int[] modeStack;
+
+    State(int index, int line, int charPositionInLine, int mode, int[] modeStack) {
+      this.index = index;
+      this.line = line;
+      this.charPositionInLine = charPositionInLine;
+      this.mode = mode;
+      this.modeStack = modeStack;
+    }
+
+    State shift(int delta, int lineDelta, int columnLine, int columnDelta) {
+      return new State(index + delta, line + lineDelta,
+        line == columnLine ? charPositionInLine + columnDelta : charPositionInLine, mode, modeStack);
+    }
+  }
+
+  /**
+   * A token, the furthest character the lexer looked at to produce it and the state of the lexer afterwards.
+   */
+  private static class LexedToken extends CommonToken {
+    private final int lookahead;
+    private final State end;
+
+    LexedToken(int type, String text, int channel, int start, int stop, int line, int charPositionInLine,
+               int lookahead, State end) {
+      super(type, text);
+      setChannel(channel);
+      setStartIndex(start);
+      setStopIndex(stop);
+      setLine(line);
+      setCharPositionInLine(charPositionInLine);
+      this.lookahead = lookahead;
+      this.end = end;
+    }
+
+    /**
+     * Returns true if this token has the same type and length as another one and leaves the lexer in the same mode.
+     */
+    boolean isEquivalent(LexedToken other) {
+      return getType() == other.getType()
+        && getChannel() == other.getChannel()
+        && getStopIndex() - getStartIndex() == other.getStopIndex() - other.getStartIndex()
+        && end.mode == other.end.mode
+        && Arrays.equals(end.modeStack, other.end.modeStack);
+    }
+
+    /**
+     * Returns a copy of this token moved to a new position. Only the tokens on the line where the change ended need
+     * their character position adjusted.
+     */
+    LexedToken shift(int delta, int lineDelta, int columnLine, int columnDelta) {
+      int charPositionInLine = getCharPositionInLine() + (getLine() == columnLine ? columnDelta : 0);
+      return new LexedToken(getType(), getText(), getChannel(), getStartIndex() + delta, getStopIndex() + delta,
+        getLine() + lineDelta, charPositionInLine, lookahead + delta,
+        end.shift(delta, lineDelta, columnLine, columnDelta));
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.lsp;
+
+import org.antlr.v4.runtime.Token;
+import org.eclipse.lsp4j.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A document that is open in the editor. Supports incremental changes and keeps its tokens up to date using an
+ * {@link IncrementalLexer}. Also remembers the last semantic tokens sent to the client, so only the differences need
+ * to be sent next time.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class OpenDocument {
+
+  private final String uri;
+
+  private final String languageId;
+
+  private Integer version;
+
+  private String text;
+
+  /**
+   * The offset where each line starts.
+   */
+  private int[] lineStarts;
+
+  private final IncrementalLexer lexer;
+
+  private SemanticTokens semanticTokens;
+
+  /**
+   * Constructor.
+   *
+   * @param item The document sent by the client when it was opened.
+   */
+  public OpenDocument(TextDocumentItem item) {
+    this.uri = item.getUri();
+    this.languageId = item.getLanguageId();
+    this.version = item.getVersion();
+    this.text = item.getText();
+    this.lineStarts = calculateLineStarts(text);
+    this.lexer = new IncrementalLexer(text);
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public synchronized Integer getVersion() {
+    return version;
+  }
+
+  public synchronized String getText() {
+    return text;
+  }
+
+  /**
+   * Returns a snapshot of this document.
+   *
+   * @return The current text and version of the document.
+   */
+  public synchronized TextDocumentItem toTextDocumentItem() {
+    return new TextDocumentItem(uri, languageId, version, text);
+  }
+
+  /**
+   * Applies the changes sent by the client, in order. Changes without a range replace the whole document.
+   *
+   * @param changes The changes.
+   * @param version The version of the document after the changes.
+   */
+  public synchronized void applyChanges(List<TextDocumentContentChangeEvent> changes, Integer version) {
+    for (TextDocumentContentChangeEvent change : changes) {
+      Range range = change.getRange();
+      String newText;
+      int start;
+      int oldEnd;
+      int newEnd;
+      if (range == null) {
+        // Find the part of the text that actually changed, so the tokens can still be updated incrementally
+        newText = change.getText();
+        start = 0;
+        int max = Math.min(text.length(), newText.length());
+        while (start < max && text.charAt(start) == newText.charAt(start)) {
+          start++;
+        }
+        oldEnd = text.length();
+        newEnd = newText.length();
+        while (oldEnd > start && newEnd > start && text.charAt(oldEnd - 1) == newText.charAt(newEnd - 1)) {
+          oldEnd--;
+          newEnd--;
+        }
+      } else {
+        start = getOffset(range.getStart());
+        oldEnd = Math.max(start, getOffset(range.getEnd()));
+        newText = text.substring(0, start) + change.getText() + text.substring(oldEnd);
+        newEnd = start + change.getText().length();
+      }
+      lexer.update(newText, start, oldEnd, newEnd);
+      text = newText;
+      lineStarts = calculateLineStarts(text);
+    }
+    this.version = version;
+  }
+
+  /**
+   * Returns the tokens of this document.
+   *
+   * @return The tokens, including the ones in hidden channels.
+   */
+  public List<Token> getTokens() {
+    return lexer.getTokens();
+  }
+
+  /**
+   * Returns the tokens of the text before a position, e.g., the text typed before the cursor.
+   *
+   * @param position The position.
+   * @return The tokens, including the ones in hidden channels.
+   */
+  public synchronized List<Token> getTokensBefore(Position position) {
+    return lexer.getTokensBefore(getOffset(position));
+  }
+
+  /**
+   * Converts a position into an offset in the text. Positions past the end of a line refer to the end of the line.
+   *
+   * @param position The position.
+   * @return The offset.
+   */
+  public synchronized int getOffset(Position position) {
+    int line = position.getLine();
+    if (line < 0) {
+      return 0;
+    } else if (line >= lineStarts.length) {
+      return text.length();
+    }
+    int lineStart = lineStarts[line];
+    int lineEnd = line + 1 < lineStarts.length ? lineStarts[line + 1] : text.length();
+    // Exclude the line terminator
+    while (lineEnd > lineStart && (text.charAt(lineEnd - 1) == '\n' || text.charAt(lineEnd - 1) == '\r')) {
+      lineEnd--;
+    }
+    return Math.min(lineStart + Math.max(position.getCharacter(), 0), lineEnd);
+  }
+
+  /**
+   * Returns the semantic tokens last sent to the client.
+   *
+   * @return The semantic tokens or null if none have been sent.
+   */
+  public synchronized SemanticTokens getSemanticTokens() {
+    return semanticTokens;
+  }
+
+  public synchronized void setSemanticTokens(SemanticTokens semanticTokens) {
+    this.semanticTokens = semanticTokens;
+  }
+
+  /**
+   * Calculates where each line starts. Lines can end in \n, \r\n or \r.
+   */
+  private static int[] calculateLineStarts(String text) {
+    int[] res = new int[16];
+    int count = 1;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+        i++;
+      }
+      if (c == '\r' || c == '\n') {
+        if (count == res.length) {
+          res = Arrays.copyOf(res, count * 2);
+        }
+        res[count++] = i + 1;
+      }
+    }
+    return Arrays.copyOf(res, count);
+  }
+}
@@ -12,6 +12,7 @@ import au.csiro.redmatch.terminology.TerminologyService;
 import au.csiro.redmatch.util.ProgressReporter;
 import ca.uhn.fhir.context.FhirContext;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.eclipse.lsp4j.*;
@@ -47,6 +48,8 @@ public class RedmatchLanguageServer implements LanguageServer, LanguageClientAwa
     TerminologyService terminologyService = new TerminologyService(ctx, gson);
     ProgressReporter progressReporter = new LspProgressReporter(this);
     RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage, progressReporter);
+    // Documents are compiled after every edit, so reuse what has not changed
+    compiler.setIncremental(true);
     api = new RedmatchApi(ctx, gson, compiler, defaultFhirPackage, terminologyService, progressReporter);
     textDocumentService = new RedmatchTextDocumentService(this, terminologyService);
     workspaceService = new RedmatchWorkspaceService(this);
@@ -61,6 +64,13 @@ public class RedmatchLanguageServer implements LanguageServer, LanguageClientAwa
       log.info("Missing Parent process ID!!");
     }
 
+    Object options = params.getInitializationOptions();
+    if (options instanceof JsonObject && ((JsonObject) options).has("diagnosticsDelay")) {
+      long delay = ((JsonObject) options).get("diagnosticsDelay").getAsLong();
+      log.info("Setting diagnostics delay to " + delay + " ms");
+      textDocumentService.setDiagnosticsDelay(delay);
+    }
+
     ServerCapabilities capabilities = createServerCapabilities();
     InitializeResult result = new InitializeResult(capabilities);
     return CompletableFuture.completedFuture(result);
@@ -70,6 +80,7 @@ public class RedmatchLanguageServer implements LanguageServer, LanguageClientAwa
   public CompletableFuture<Object> shutdown() {
     log.info("Client has requested to shut down");
     //textDocumentService.shutdown();
+    api.shutdown();
     System.exit(0);
     return CompletableFuture.completedFuture(new Object());
   }
@@ -120,7 +131,7 @@ public class RedmatchLanguageServer implements LanguageServer, LanguageClientAwa
 
   private ServerCapabilities createServerCapabilities() {
     ServerCapabilities capabilities = new ServerCapabilities();
-    capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);
+    capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);
     capabilities.setSemanticTokensProvider(getSemanticTokensProvider());
     capabilities.setCodeActionProvider(true);
     ExecuteCommandOptions executeCommandOptions = new ExecuteCommandOptions(
@@ -142,7 +153,7 @@ public class RedmatchLanguageServer implements LanguageServer, LanguageClientAwa
 
     SemanticTokensWithRegistrationOptions semanticTokensProvider =
       new SemanticTokensWithRegistrationOptions(legend);
-    semanticTokensProvider.setFull(true);
+    semanticTokensProvider.setFull(new SemanticTokensServerFull(true));
     semanticTokensProvider.setRange(false);
     semanticTokensProvider.setDocumentSelector(List.of(new DocumentFilter("redmatch", "file", null)));
     return semanticTokensProvider;
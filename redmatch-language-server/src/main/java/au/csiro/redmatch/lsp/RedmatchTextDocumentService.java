@@ -19,7 +19,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The Redmatch text document service.
@@ -30,12 +30,17 @@ public class RedmatchTextDocumentService implements TextDocumentService {
 
   private static final Log log = LogFactory.getLog(RedmatchTextDocumentService.class);
   private final RedmatchLanguageServer languageServer;
-  private final Map<String, TextDocumentItem> openedDocuments = new ConcurrentHashMap<>();
+  private final Map<String, OpenDocument> openedDocuments = new ConcurrentHashMap<>();
   private final Map<String, Schema> openedSchemas = new ConcurrentHashMap<>();
   private final Map<String, VersionedFhirPackage> openedFhirPackages = new ConcurrentHashMap<>();
   private final DiagnosticRunner diagnosticRunner;
   private final TerminologyService terminologyService;
 
+  /**
+   * Used to identify the semantic tokens sent to the client.
+   */
+  private final AtomicLong resultIds = new AtomicLong();
+
   public RedmatchTextDocumentService(RedmatchLanguageServer languageServer, TerminologyService terminologyService) {
     this.languageServer = languageServer;
     this.diagnosticRunner = new DiagnosticRunner(languageServer);
@@ -45,16 +50,16 @@ public class RedmatchTextDocumentService implements TextDocumentService {
   @Override
   public void didOpen(DidOpenTextDocumentParams params) {
     TextDocumentItem textDocument = params.getTextDocument();
-    openedDocuments.put(textDocument.getUri(), textDocument);
+    openedDocuments.put(textDocument.getUri(), new OpenDocument(textDocument));
     diagnosticRunner.compute(params);
   }
 
   @Override
   public void didChange(DidChangeTextDocumentParams params) {
     List<TextDocumentContentChangeEvent> contentChanges = params.getContentChanges();
-    TextDocumentItem textDocumentItem = openedDocuments.get(params.getTextDocument().getUri());
+    OpenDocument document = openedDocuments.get(params.getTextDocument().getUri());
     if (!contentChanges.isEmpty()) {
-      textDocumentItem.setText(contentChanges.get(0).getText());
+      document.applyChanges(contentChanges, params.getTextDocument().getVersion());
       diagnosticRunner.compute(params);
     }
   }
@@ -77,26 +82,55 @@ public class RedmatchTextDocumentService implements TextDocumentService {
   @Override
   public CompletableFuture<SemanticTokens> semanticTokensFull(SemanticTokensParams params) {
     log.info("Computing semantic tokens for document " + params.getTextDocument().getUri());
-    TextDocumentItem textDocumentItem = openedDocuments.get(params.getTextDocument().getUri());
-    final String text = textDocumentItem.getText();
+    OpenDocument document = openedDocuments.get(params.getTextDocument().getUri());
+    return CompletableFutures.computeAsync(cancelToken -> computeSemanticTokens(document));
+  }
 
-    CompletableFuture<SemanticTokens> completableFuture = new CompletableFuture<>();
-    Executors.newCachedThreadPool().submit(() -> {
-      completableFuture.complete(SemanticTokeniser.tokenise(text));
-      return null;
+  @Override
+  public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
+    SemanticTokensDeltaParams params) {
+    log.info("Computing semantic tokens delta for document " + params.getTextDocument().getUri());
+    OpenDocument document = openedDocuments.get(params.getTextDocument().getUri());
+    return CompletableFutures.computeAsync(cancelToken -> {
+      synchronized (document) {
+        SemanticTokens previous = document.getSemanticTokens();
+        SemanticTokens current = computeSemanticTokens(document);
+        if (previous == null || !previous.getResultId().equals(params.getPreviousResultId())) {
+          return Either.forLeft(current);
+        }
+        return Either.forRight(new SemanticTokensDelta(
+          SemanticTokeniser.diff(previous.getData(), current.getData()), current.getResultId()));
+      }
     });
+  }
 
-    return completableFuture;
+  /**
+   * Computes the semantic tokens of a document and remembers them, so the next request can be answered with a delta.
+   */
+  private SemanticTokens computeSemanticTokens(OpenDocument document) {
+    synchronized (document) {
+      SemanticTokens res = SemanticTokeniser.tokenise(document.getTokens());
+      res.setResultId(Long.toString(resultIds.incrementAndGet()));
+      document.setSemanticTokens(res);
+      return res;
+    }
   }
 
+  /**
+   * Returns a snapshot of an open document.
+   *
+   * @param uri The document's URI.
+   * @return The document or null if it is not open.
+   */
   public TextDocumentItem getOpenedDocument(String uri) {
-    return openedDocuments.get(uri);
+    OpenDocument document = openedDocuments.get(uri);
+    return document != null ? document.toTextDocumentItem() : null;
   }
 
   @Override
   public CompletableFuture<List<Either<Command, CodeAction>>> codeAction(CodeActionParams params) {
     return CompletableFutures.computeAsync(cancelToken -> {
-      TextDocumentItem document = openedDocuments.get(params.getTextDocument().getUri());
+      TextDocumentItem document = getOpenedDocument(params.getTextDocument().getUri());
       assert(document != null);
       return QuickFixGenerator.computeCodeActions(params, cancelToken, document);
     });
@@ -110,10 +144,10 @@ public class RedmatchTextDocumentService implements TextDocumentService {
     log.info("Running completions for document " + uri + " at line " + position.getLine() + ", position "
       + position.getCharacter());
     return CompletableFutures.computeAsync(cancelToken -> {
-      TextDocumentItem textDocumentItem = openedDocuments.get(uri);
-      if (textDocumentItem != null) {
+      OpenDocument document = openedDocuments.get(uri);
+      if (document != null) {
         List<CompletionItem> result = new CompletionProcessor(this, terminologyService)
-          .getCompletions(uri, textDocumentItem.getText(), position);
+          .getCompletions(uri, document, position);
         log.info("Generated " + result.size() + " completion results");
         return Either.forLeft(result);
       }
@@ -144,7 +178,17 @@ public class RedmatchTextDocumentService implements TextDocumentService {
     openedFhirPackages.put(uri, fhirPackage);
   }
 
+  /**
+   * Sets the time to wait after a change before running the diagnostics.
+   *
+   * @param delay The delay in milliseconds.
+   */
+  public void setDiagnosticsDelay(long delay) {
+    diagnosticRunner.setDelay(delay);
+  }
+
   public void shutdown() {
+    diagnosticRunner.shutdown();
     terminologyService.shutdown();
   }
 
@@ -11,8 +11,10 @@ import org.antlr.v4.runtime.Token;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensEdit;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -116,10 +118,20 @@ public class SemanticTokeniser {
   };
 
   public static SemanticTokens tokenise(String text) {
-    // First we need to get the tokens from the lexer
-    List<SemanticToken> tokens = new ArrayList<>();
     final Lexer lexer = new RedmatchLexer(CharStreams.fromString(text));
-    for (Token tok : lexer.getAllTokens()) {
+    return tokenise(lexer.getAllTokens());
+  }
+
+  /**
+   * Creates the semantic tokens from the tokens of a document.
+   *
+   * @param antlrTokens The Redmatch ANTLR tokens.
+   * @return The semantic tokens.
+   */
+  public static SemanticTokens tokenise(List<? extends Token> antlrTokens) {
+    // First we need to map the tokens from the lexer
+    List<SemanticToken> tokens = new ArrayList<>();
+    for (Token tok : antlrTokens) {
       int line = tok.getLine() - 1; // account for 0-index differences
       int startChar = tok.getCharPositionInLine();
       int length = tok.getText().length();
@@ -168,6 +180,36 @@ public class SemanticTokeniser {
     return new SemanticTokens(encodedTokens);
   }
 
+  /**
+   * Calculates the edits required to transform the previous semantic tokens into the current ones. The tokens before
+   * and after the first and last differences are kept, so a single edit is returned, or none if the tokens have not
+   * changed.
+   *
+   * @param previous The previous encoded semantic tokens.
+   * @param current The current encoded semantic tokens.
+   * @return The edits.
+   */
+  public static List<SemanticTokensEdit> diff(List<Integer> previous, List<Integer> current) {
+    int start = 0;
+    int max = Math.min(previous.size(), current.size());
+    while (start < max && previous.get(start).equals(current.get(start))) {
+      start++;
+    }
+    if (start == previous.size() && start == current.size()) {
+      return Collections.emptyList();
+    }
+
+    int previousEnd = previous.size();
+    int currentEnd = current.size();
+    while (previousEnd > start && currentEnd > start
+      && previous.get(previousEnd - 1).equals(current.get(currentEnd - 1))) {
+      previousEnd--;
+      currentEnd--;
+    }
+    return Collections.singletonList(new SemanticTokensEdit(start, previousEnd - start,
+      new ArrayList<>(current.subList(start, currentEnd))));
+  }
+
   /**
    * Maps the Redmatch ANTLR tokens to the semantic tokens declared in the capabilities.
    *
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.lsp;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * A {@link CharStream} over a prefix of a string that does not copy it. Indexes are UTF-16 code units, which is what
+ * positions in the language server protocol use. Keeps track of the furthest character the lexer has looked at, so
+ * the incremental lexer knows which characters each token depends on.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+class StringCharStream implements CharStream {
+
+  private final String text;
+
+  private final int limit;
+
+  private int p = 0;
+
+  private int maxLookahead = -1;
+
+  /**
+   * Constructor.
+   *
+   * @param text The text.
+   * @param limit The number of characters of the text that are visible.
+   */
+  StringCharStream(String text, int limit) {
+    if (limit < 0 || limit > text.length()) {
+      throw new IllegalArgumentException("Invalid limit " + limit + " for text of length " + text.length());
+    }
+    this.text = text;
+    this.limit = limit;
+  }
+
+  /**
+   * Returns the index of the furthest character that has been looked at since the last reset. If the end of the
+   * stream has been looked at then this is the size of the stream.
+   *
+   * @return The index of the furthest character or -1 if no characters have been looked at.
+   */
+  int getMaxLookahead() {
+    return maxLookahead;
+  }
+
+  /**
+   * Resets the furthest character that has been looked at.
+   */
+  void resetMaxLookahead() {
+    maxLookahead = -1;
+  }
+
+  @Override
+  public String getText(Interval interval) {
+    int start = Math.max(interval.a, 0);
+    int stop = Math.min(interval.b + 1, limit);
+    if (start >= stop) {
+      return "";
+    }
+    return text.substring(start, stop);
+  }
+
+  @Override
+  public void consume() {
+    if (p >= limit) {
+      throw new IllegalStateException("cannot consume EOF");
+    }
+    p++;
+  }
+
+  @Override
+  public int LA(int i) {
+    if (i == 0) {
+      return 0;
+    }
+    int index = i > 0 ? p + i - 1 : p + i;
+    if (i > 0 && index > maxLookahead) {
+      maxLookahead = Math.min(index, limit);
+    }
+    if (index < 0 || index >= limit) {
+      return IntStream.EOF;
+    }
+    return text.charAt(index);
+  }
+
+  @Override
+  public int mark() {
+    return -1;
+  }
+
+  @Override
+  public void release(int marker) {
+    // Nothing to release, the whole text is always available
+  }
+
+  @Override
+  public int index() {
+    return p;
+  }
+
+  @Override
+  public void seek(int index) {
+    p = Math.min(Math.max(index, 0), limit);
+  }
+
+  @Override
+  public int size() {
+    return limit;
+  }
+
+  @Override
+  public String getSourceName() {
+    return IntStream.UNKNOWN_SOURCE_NAME;
+  }
+}
@@ -5,6 +5,7 @@
 package au.csiro.redmatch.lsp.completion;
 
 import au.csiro.redmatch.grammar.RedmatchLexer;
+import au.csiro.redmatch.lsp.OpenDocument;
 import au.csiro.redmatch.lsp.RedmatchTextDocumentService;
 import au.csiro.redmatch.model.Schema;
 import au.csiro.redmatch.model.VersionedFhirPackage;
@@ -62,8 +63,23 @@ public class CompletionProcessor {
     }
 
     final Lexer lexer = new RedmatchLexer(CharStreams.fromString(snippet));
-    List<? extends Token> tokens = lexer.getAllTokens();
+    return getCompletions(url, lexer.getAllTokens());
+  }
+
+  /**
+   * Returns a list of possible auto-completions. Reuses the tokens of the document that are not affected by the text
+   * after the position.
+   *
+   * @param url The document url.
+   * @param document The document.
+   * @param position The position in the text where the autocompletion was triggered.
+   * @return A list of possible auto-completions.
+   */
+  public synchronized List<CompletionItem> getCompletions(String url, OpenDocument document, Position position) {
+    return getCompletions(url, document.getTokensBefore(position));
+  }
 
+  private List<CompletionItem> getCompletions(String url, List<? extends Token> tokens) {
     List<CompletionItem> completionItems = handleOpen(url, tokens);
     if (!completionItems.isEmpty()) {
       return completionItems;
@@ -8,6 +8,7 @@ import org.eclipse.lsp4j.*;
 import org.eclipse.lsp4j.services.LanguageClient;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 
@@ -27,8 +28,8 @@ public class AbstractRedmatchTest {
    */
   public static final class MockClient implements LanguageClient {
 
-    private final List<PublishDiagnosticsParams> diagnostics = new ArrayList<>();
-    private boolean publishedDiagnostics = false;
+    private final List<PublishDiagnosticsParams> diagnostics = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean publishedDiagnostics = false;
 
     @Override
     public void telemetryEvent(Object o) {
@@ -4,13 +4,24 @@
  */
 package au.csiro.redmatch.lsp;
 
+import au.csiro.redmatch.RedmatchApi;
+import au.csiro.redmatch.compiler.CompilationException;
+import au.csiro.redmatch.compiler.Document;
+import au.csiro.redmatch.util.ProgressReporter;
 import org.eclipse.lsp4j.*;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
 /**
  * Unit tests for the {@link DiagnosticRunner} class.
@@ -19,6 +30,11 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
  */
 public class DiagnosticRunnerTest extends AbstractRedmatchTest {
 
+  /**
+   * The maximum time to wait for diagnostics, in milliseconds.
+   */
+  private static final long TIMEOUT = 30000;
+
   /**
    * Tests the diagnostics for a complex extension, which should be valid.
    */
@@ -68,6 +84,95 @@ public class DiagnosticRunnerTest extends AbstractRedmatchTest {
     assertTrue(diagnostic.getDiagnostics().size() > 0);
   }
 
+  /**
+   * Tests that diagnostics are computed independently for each document and that superseded versions are dropped.
+   */
+  @Test
+  public void testSupersededVersions() throws InterruptedException {
+    String rule =
+      "SCHEMA: 'schema.json' (REDCAP)\n" +
+      "RULES: {\n" +
+      "  TRUE {\n" +
+      "    Patient<p> :\n" +
+      "      * active = TRUE\n" +
+      "  }\n" +
+      "}";
+
+    RedmatchLanguageServer server = new RedmatchLanguageServer();
+    server.connect(mockClient);
+    DiagnosticRunner diagnosticRunner = new DiagnosticRunner(server);
+    try {
+      diagnosticRunner.computeDiagnostics(rule, "1", 1, 60000);
+      diagnosticRunner.computeDiagnostics(rule, "2", 1, 0);
+      diagnosticRunner.computeDiagnostics(rule, "1", 3, 0);
+      // An older version arriving late is ignored
+      diagnosticRunner.computeDiagnostics(rule, "1", 2, 0);
+
+      waitFor(() -> mockClient.getDiagnostics().size() >= 2);
+      Thread.sleep(500);
+
+      List<PublishDiagnosticsParams> diagnostics = mockClient.getDiagnostics();
+      assertEquals(2, diagnostics.size());
+      Set<String> uris = new HashSet<>();
+      for (PublishDiagnosticsParams params : diagnostics) {
+        uris.add(params.getUri());
+        if ("1".equals(params.getUri())) {
+          assertEquals(3, params.getVersion());
+        }
+      }
+      assertEquals(Set.of("1", "2"), uris);
+    } finally {
+      diagnosticRunner.shutdown();
+    }
+  }
+
+  /**
+   * Tests that a compilation that is already running is interrupted when a newer version of the document arrives.
+   */
+  @Test
+  public void testSupersededWhileRunning() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    RedmatchApi api = new RedmatchApi(null, null, null, null, null, null) {
+      @Override
+      public Document compile(String doc, String name, ProgressReporter progressReporter) {
+        if ("slow".equals(doc)) {
+          started.countDown();
+          try {
+            Thread.sleep(TIMEOUT);
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw new CompilationException("The compilation was interrupted", e);
+          }
+        }
+        Document res = new Document();
+        res.setDiagnostics(new ArrayList<>());
+        return res;
+      }
+    };
+    RedmatchLanguageServer server = new RedmatchLanguageServer() {
+      @Override
+      public RedmatchApi getApi() {
+        return api;
+      }
+    };
+    server.connect(mockClient);
+    DiagnosticRunner diagnosticRunner = new DiagnosticRunner(server);
+    try {
+      diagnosticRunner.computeDiagnostics("slow", "1", 1, 0);
+      assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+      diagnosticRunner.computeDiagnostics("fast", "1", 2, 0);
+      assertTrue(interrupted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      waitFor(mockClient::isPublishedDiagnostics);
+      List<PublishDiagnosticsParams> diagnostics = mockClient.getDiagnostics();
+      assertEquals(1, diagnostics.size());
+      assertEquals(2, diagnostics.get(0).getVersion());
+    } finally {
+      diagnosticRunner.shutdown();
+    }
+  }
+
   private List<PublishDiagnosticsParams> getDiagnostics(String uri, String text) {
     RedmatchLanguageServer server = new RedmatchLanguageServer();
     server.connect(mockClient);
@@ -76,14 +181,27 @@ public class DiagnosticRunnerTest extends AbstractRedmatchTest {
     TextDocumentItem docItem = new TextDocumentItem(uri, "rdm", 1, text);
     diagnosticRunner.computeDiagnostics(text, docItem);
 
-    while(!mockClient.isPublishedDiagnostics()) {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+    try {
+      waitFor(mockClient::isPublishedDiagnostics);
+    } catch (InterruptedException e) {
+      fail(e);
+    } finally {
+      diagnosticRunner.shutdown();
     }
 
     return mockClient.getDiagnostics();
   }
+
+  /**
+   * Waits until a condition holds and fails the test if it does not hold within {@link #TIMEOUT} milliseconds.
+   */
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Diagnostics were not published within " + TIMEOUT + " ms");
+      }
+      Thread.sleep(100);
+    }
+  }
 }
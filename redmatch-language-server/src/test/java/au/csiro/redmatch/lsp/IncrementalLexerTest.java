@@ -0,0 +1,124 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.lsp;
+
+import au.csiro.redmatch.grammar.RedmatchLexer;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.Token;
+import org.eclipse.lsp4j.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Unit tests for the {@link IncrementalLexer} and {@link OpenDocument} classes.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class IncrementalLexerTest {
+
+  private static final String RULE =
+    "SCHEMA: 'schema.csv' (REDCAP)\n" +
+    "\n" +
+    "RULES: {\n" +
+    "  /* A comment */\n" +
+    "  TRUE {\n" +
+    "    Patient<p>:\n" +
+    "      * identifier.type = CONCEPT_LITERAL(http://hl7.org/fhir/v2/0203|MC)\n" +
+    "      * identifier.value = VALUE(pat_medicare) // Another comment\n" +
+    "      * birthDate = @2020-01-01T10:00\n" +
+    "  }\n" +
+    "\n" +
+    "  REPEAT(1..4: x)\n" +
+    "  NOTNULL(phenotype___${x}) {\n" +
+    "    Observation<obs${x}>:\n" +
+    "      * status = CODE(final)\n" +
+    "      * code = CONCEPT(phenotype___${x})\n" +
+    "  }\n" +
+    "}\n" +
+    "\n" +
+    "MAPPINGS: {\n" +
+    "  pat_sex___1 -> http://snomed.info/sct|248153007;\n" +
+    "}";
+
+  private static final String[] FRAGMENTS = { "a", "Z", "1", " ", "\n", "'", "*", "=", "(", ")", "{", "}", "/*",
+    "*/", "//", "->", ";", "|", ".", "[", "]", "${x}", "@", "CODE", "REPEAT", "VALUE", "$" };
+
+  @Test
+  public void testTokensMatchFullLexing() {
+    assertSameTokens(lex(RULE), new IncrementalLexer(RULE).getTokens());
+  }
+
+  @Test
+  public void testRandomEdits() {
+    Random random = new Random(42);
+    String text = RULE;
+    IncrementalLexer lexer = new IncrementalLexer(text);
+    for (int i = 0; i < 2000; i++) {
+      int start = random.nextInt(text.length() + 1);
+      int end = Math.min(text.length(), start + random.nextInt(4));
+      StringBuilder insert = new StringBuilder();
+      int num = random.nextInt(3);
+      for (int j = 0; j < num; j++) {
+        insert.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+      String newText = text.substring(0, start) + insert + text.substring(end);
+      lexer.update(newText, start, end, start + insert.length());
+      text = newText;
+      assertSameTokens(new IncrementalLexer(text).getTokens(), lexer.getTokens());
+
+      int offset = random.nextInt(text.length() + 1);
+      assertSameTokens(new IncrementalLexer(text.substring(0, offset)).getTokens(), lexer.getTokensBefore(offset));
+    }
+  }
+
+  @Test
+  public void testIncrementalChanges() {
+    OpenDocument document = new OpenDocument(new TextDocumentItem("1", "redmatch", 1, RULE));
+    List<TextDocumentContentChangeEvent> changes = new ArrayList<>();
+    // Replace 'Patient' in line 5 and then insert a new line after line 1
+    changes.add(new TextDocumentContentChangeEvent(new Range(new Position(5, 4), new Position(5, 11)), 7,
+      "Person"));
+    changes.add(new TextDocumentContentChangeEvent(new Range(new Position(1, 0), new Position(1, 0)), 0,
+      "SERVER: 'local'\n"));
+    document.applyChanges(changes, 2);
+
+    String expected = RULE.replace("Patient<p>", "Person<p>").replace("\n\nRULES", "\nSERVER: 'local'\n\nRULES");
+    assertEquals(expected, document.getText());
+    assertEquals(2, document.getVersion());
+    assertSameTokens(lex(expected), document.getTokens());
+    assertEquals(SemanticTokeniser.tokenise(expected).getData(),
+      SemanticTokeniser.tokenise(document.getTokens()).getData());
+
+    // Full changes are also supported
+    document.applyChanges(List.of(new TextDocumentContentChangeEvent(RULE)), 3);
+    assertEquals(RULE, document.getText());
+    assertSameTokens(lex(RULE), document.getTokens());
+  }
+
+  private List<? extends Token> lex(String text) {
+    Lexer lexer = new RedmatchLexer(CharStreams.fromString(text));
+    lexer.removeErrorListeners();
+    return lexer.getAllTokens();
+  }
+
+  private void assertSameTokens(List<? extends Token> expected, List<? extends Token> actual) {
+    assertEquals(toString(expected), toString(actual));
+  }
+
+  private List<String> toString(List<? extends Token> tokens) {
+    List<String> res = new ArrayList<>();
+    for (Token t : tokens) {
+      res.add(t.getType() + ":" + t.getChannel() + ":" + t.getStartIndex() + "-" + t.getStopIndex() + ":"
+        + t.getLine() + ":" + t.getCharPositionInLine() + ":" + t.getText());
+    }
+    return res;
+  }
+}
@@ -9,12 +9,14 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.Lexer;
 import org.antlr.v4.runtime.Token;
 import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensEdit;
 import org.junit.jupiter.api.Test;
 
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Unit tests for the {@link SemanticTokeniser} class.
@@ -41,6 +43,25 @@ public class SemanticTokeniserTest {
     assertEquals(expectedTokens, actualTokens);
   }
 
+  @Test
+  public void testDiff() {
+    List<Integer> previous = Arrays.asList(0, 0, 6, 0, 0, 0, 8, 32, 2, 0, 2, 0, 5, 0, 0);
+    List<Integer> current = Arrays.asList(0, 0, 6, 0, 0, 0, 8, 12, 2, 0, 2, 0, 5, 0, 0);
+    List<SemanticTokensEdit> edits = SemanticTokeniser.diff(previous, current);
+    assertEquals(1, edits.size());
+    assertEquals(7, edits.get(0).getStart());
+    assertEquals(1, edits.get(0).getDeleteCount());
+    assertEquals(List.of(12), edits.get(0).getData());
+
+    assertTrue(SemanticTokeniser.diff(previous, previous).isEmpty());
+
+    // Removing the last token
+    edits = SemanticTokeniser.diff(previous, previous.subList(0, 10));
+    assertEquals(10, edits.get(0).getStart());
+    assertEquals(5, edits.get(0).getDeleteCount());
+    assertTrue(edits.get(0).getData().isEmpty());
+  }
+
   @Test
   public void testTokeniseInvalid() {
     String rule = "SCHEMA: 'src/test/resources/schema.json' (REDCAP)\n" +
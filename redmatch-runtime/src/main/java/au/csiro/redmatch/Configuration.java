@@ -18,6 +18,11 @@ public class Configuration {
    */
   private List<Server> servers;
 
+  /**
+   * If true the output NDJSON files are gzipped. Optional.
+   */
+  private Boolean gzipOutput;
+
   public List<Server> getServers() {
     return servers;
   }
@@ -25,4 +30,12 @@ public class Configuration {
   public void setServers(List<Server> servers) {
     this.servers = servers;
   }
+
+  public Boolean getGzipOutput() {
+    return gzipOutput;
+  }
+
+  public void setGzipOutput(Boolean gzipOutput) {
+    this.gzipOutput = gzipOutput;
+  }
 }
@@ -11,11 +11,12 @@ import au.csiro.redmatch.compiler.Document;
 import au.csiro.redmatch.compiler.RedmatchCompiler;
 import au.csiro.redmatch.exporter.FhirExporter;
 import au.csiro.redmatch.exporter.HapiReflectionHelper;
+import au.csiro.redmatch.exporter.NdjsonWriter;
+import au.csiro.redmatch.exporter.RowSource;
 import au.csiro.redmatch.model.*;
 import au.csiro.redmatch.terminology.TerminologyService;
 import au.csiro.redmatch.util.*;
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
 import com.google.gson.Gson;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,6 +37,7 @@ import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -64,6 +66,20 @@ public class RedmatchApi {
   
   private ProgressReporter progressReporter;
 
+  /**
+   * The number of threads used to create FHIR resources.
+   */
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * If true the output NDJSON files are gzipped.
+   */
+  private boolean gzipOutput = false;
+
+  /**
+   * Clients used to fetch data, indexed by their settings.
+   */
+  private final Map<String, Client> clients = new ConcurrentHashMap<>();
 
   public static final Range zeroZero = new Range(new Position(0, 0), new Position(0, 0));
 
@@ -77,22 +93,45 @@ public class RedmatchApi {
     this.progressReporter = progressReporter;
   }
 
+  /**
+   * Sets the number of threads used to create FHIR resources. Defaults to the number of available processors.
+   *
+   * @param parallelism The number of threads.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Sets whether the output files are gzipped. If true the resources are written to .ndjson.gz files instead of .ndjson
+   * files. Defaults to false. The gzipOutput setting in redmatch-config.yaml takes precedence over this value.
+   *
+   * @param gzipOutput True to gzip the output files.
+   */
+  public void setGzipOutput(boolean gzipOutput) {
+    this.gzipOutput = gzipOutput;
+  }
+
   /**
    * Compiles a single transformation rule document. This method does not throw any exceptions but rather uses the
-   * document's diagnostics attribute to report any issues, even unexpected runtime exceptions.
+   * document's diagnostics attribute to report any issues, even unexpected runtime exceptions. Several documents can
+   * be compiled at the same time.
    *
    * @param doc The rules document.
    * @param name The name of the document.
    * @return The compiled document.
    */
-  public synchronized Document compile(@NotNull String doc, @NotNull String name, ProgressReporter progressReporter) {
+  public Document compile(@NotNull String doc, @NotNull String name, ProgressReporter progressReporter) {
     try {
       log.info("Compiling rules document");
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportStart("Compiling file " + name));
       }
       Instant start = Instant.now();
-      Document res = compiler.compile(doc);
+      Document res = compiler.compile(null, doc, name);
       Instant finish = Instant.now();
       long timeElapsed = Duration.between(start, finish).toMillis();
       log.info("Compilation finished in: " + DateUtils.prettyPrintMillis(timeElapsed));
@@ -132,34 +171,8 @@ public class RedmatchApi {
     }
 
     log.info("Getting data from server: " + dataSource.getUrl());
-    Client client = null;
-    switch(dataSource.getType()) {
-      case REDCAP:
-        client = new RedcapClient(gson);
-        break;
-      case CSV_OAUTH2:
-        throw new UnsupportedOperationException("Support for CSV files over OAuth2 has not been implemented yet.");
-    }
-    List<Row> rows;
-    try {
-      if (progressReporter != null) {
-        progressReporter.reportProgress(Progress.reportStart("Fetching data"));
-      }
-      rows = client.getData(dataSource.getUrl(), new RedcapCredentials(dataSource.getToken()),
-        document.getReferencedFields(true));
-      log.info("Got " + rows.size() + " rows");
-    } finally {
-      if (progressReporter != null) {
-        progressReporter.reportProgress(Progress.reportEnd());
-      }
-    }
-
-    if (cancelToken != null && cancelToken.isCanceled()) {
-      return Pair.with(Collections.emptyMap(), document.getDiagnostics());
-    }
+    Client client = getClient(dataSource);
 
-    log.info("Transforming into FHIR resources using rules " + name);
-    
     if (reflectionHelper == null) {
       if (!terminologyService.ontoIndexCheck(defaultFhirPackage)) {
         log.info("defaultFhirPackage not detected by index on initialisation");
@@ -171,10 +184,29 @@ public class RedmatchApi {
       }
       reflectionHelper = new HapiReflectionHelper(ctx, defaultFhirPackage, terminologyService);
     }
-    
-    FhirExporter exp = new FhirExporter(document, rows, reflectionHelper, terminologyService,
+
+    if (cancelToken != null && cancelToken.isCanceled()) {
+      return Pair.with(Collections.emptyMap(), document.getDiagnostics());
+    }
+
+    // Rows are transformed as they are read from the server, so the full export is never held in memory
+    log.info("Transforming into FHIR resources using rules " + name);
+    final RowSource source = consumer -> {
+      int numRows;
+      if (dataSource.isBatched()) {
+        numRows = client.getData(dataSource.getUrl(), new RedcapCredentials(dataSource.getToken()),
+          document.getSchema().getUniqueFieldId(), document.getReferencedFields(true), dataSource.getBatchSize(),
+          dataSource.getParallelism(), consumer);
+      } else {
+        numRows = client.getData(dataSource.getUrl(), new RedcapCredentials(dataSource.getToken()),
+          document.getReferencedFields(true), consumer);
+      }
+      log.info("Got " + numRows + " rows");
+    };
+    FhirExporter exp = new FhirExporter(document, reflectionHelper, terminologyService,
       compiler.getDefaultFhirPackage());
-    return Pair.with(exp.transform(progressReporter, cancelToken), document.getDiagnostics());
+    exp.setParallelism(parallelism);
+    return Pair.with(exp.transform(source, progressReporter, cancelToken), document.getDiagnostics());
   }
 
   /**
@@ -196,19 +228,9 @@ public class RedmatchApi {
         return data.getValue1();
       }
 
-      Map<String, DomainResource> resourceMap = data.getValue0();
-      // Group resources by type
-      final Map<String, List<DomainResource>> grouped = new HashMap<>();
-      for (String key : resourceMap.keySet()) {
-        DomainResource dr = resourceMap.get(key);
-        String resourceType = dr.getResourceType().toString();
-        List<DomainResource> list = grouped.computeIfAbsent(resourceType, k -> new ArrayList<>());
-        list.add(dr);
-      }
-
       File baseFolder = redmatchRulesFile.toPath().getParent().toFile();
       Path outputFolder = createOutputFolder(baseFolder).toPath();
-      save(grouped, outputFolder, progressReporter, cancelToken);
+      save(data.getValue0().values(), outputFolder, isGzipOutput(baseFolder), progressReporter, cancelToken);
       return data.getValue1();
     } catch (Throwable t) {
       log.error("Could not complete transformation", t);
@@ -258,17 +280,8 @@ public class RedmatchApi {
         diagnostics.addAll(data.getValue1());
       }
 
-      // Group resources by type
-      final Map<String, List<DomainResource>> grouped = new HashMap<>();
-      for (String key : resourcesMap.keySet()) {
-        DomainResource dr = resourcesMap.get(key);
-        String resourceType = dr.getResourceType().toString();
-        List<DomainResource> list = grouped.computeIfAbsent(resourceType, k -> new ArrayList<>());
-        list.add(dr);
-      }
-
       Path outputFolder = createOutputFolder(baseFolder).toPath();
-      save(grouped, outputFolder, progressReporter, cancelToken);
+      save(resourcesMap.values(), outputFolder, isGzipOutput(baseFolder), progressReporter, cancelToken);
       return diagnostics;
     } catch (Throwable t) {
       log.error("Could not complete transformation", t);
@@ -277,6 +290,42 @@ public class RedmatchApi {
     }
   }
 
+  /**
+   * Returns the client for a data source. Clients are reused across transformations so their connections are pooled.
+   *
+   * @param dataSource The data source.
+   * @return The client.
+   */
+  private Client getClient(DataSource dataSource) {
+    switch(dataSource.getType()) {
+      case REDCAP:
+        // The key includes all the settings so changes in the configuration file are picked up
+        String key = dataSource.getType() + "|" + dataSource.getUrl() + "|" + dataSource.getConnectTimeout() + "|"
+          + dataSource.getSocketTimeout() + "|" + dataSource.getMaxRetries();
+        return clients.computeIfAbsent(key, k -> new RedcapClient(gson,
+          Optional.ofNullable(dataSource.getConnectTimeout()).orElse(RedcapClient.DEFAULT_CONNECT_TIMEOUT),
+          Optional.ofNullable(dataSource.getSocketTimeout()).orElse(RedcapClient.DEFAULT_SOCKET_TIMEOUT),
+          Optional.ofNullable(dataSource.getMaxRetries()).orElse(RedcapClient.DEFAULT_MAX_RETRIES),
+          1000));
+      case CSV_OAUTH2:
+        throw new UnsupportedOperationException("Support for CSV files over OAuth2 has not been implemented yet.");
+      default:
+        throw new RuntimeException("Unexpected server type " + dataSource.getType() + ". This should never happen!");
+    }
+  }
+
+  /**
+   * Releases the resources held by this API, such as the pooled connections of the data source clients and the
+   * threads used by the compiler.
+   */
+  public void shutdown() {
+    for (Client client : clients.values()) {
+      client.close();
+    }
+    clients.clear();
+    compiler.shutdown();
+  }
+
   private Map<String, DataSource> getDataSourceMap(File baseFolder) throws IOException, ConfigurationMissingException {
     log.debug("Checking base folder is writable");
     if (!baseFolder.canRead() || !baseFolder.canWrite()) {
@@ -294,15 +343,53 @@ public class RedmatchApi {
   private Map<String, DataSource> loadServerMap(File configFile) throws IOException {
     log.info("Loading server configuration from " + configFile.getAbsolutePath());
     Map<String, DataSource> res = new HashMap<>();
-    // Read configuration file
+    Configuration conf = loadConfiguration(configFile);
+    for (au.csiro.redmatch.Server s : conf.getServers()) {
+      int batchSize = s.getBatchSize() != null ? s.getBatchSize() : 0;
+      int parallelism = s.getParallelism() != null ? s.getParallelism() : 1;
+      if (batchSize < 0 || parallelism < 1) {
+        throw new IOException("Invalid configuration for server " + s.getName() + ": batchSize must not be "
+          + "negative and parallelism must be greater than zero.");
+      }
+      Integer connectTimeout = s.getConnectTimeout() != null ? s.getConnectTimeout() * 1000 : null;
+      Integer socketTimeout = s.getSocketTimeout() != null ? s.getSocketTimeout() * 1000 : null;
+      res.put(s.getName(), new DataSource(s.getName(), s.getUrl(), s.getToken(), batchSize, parallelism,
+        connectTimeout, socketTimeout, s.getMaxRetries()));
+    }
+    return res;
+  }
+
+  private Configuration loadConfiguration(File configFile) throws IOException {
     Yaml yaml = new Yaml(new Constructor(Configuration.class));
     try (FileReader fr = new FileReader(configFile)) {
-      Configuration conf = yaml.load(fr);
-      for (au.csiro.redmatch.Server s : conf.getServers()) {
-        res.put(s.getName(), new DataSource(s.getName(), s.getUrl(), s.getToken()));
+      return yaml.load(fr);
+    }
+  }
+
+  /**
+   * Returns true if the output files should be gzipped. The setting in the local configuration file takes precedence
+   * over the one in the user's configuration file. If neither sets it then the value set in this class is used.
+   */
+  private boolean isGzipOutput(File baseFolder) throws IOException {
+    for (File configFile : List.of(getLocalConfigFile(baseFolder), getUserConfigFile())) {
+      if (configFile.exists() && configFile.canRead()) {
+        Configuration conf = loadConfiguration(configFile);
+        if (conf != null && conf.getGzipOutput() != null) {
+          return conf.getGzipOutput();
+        }
       }
     }
-    return res;
+    return gzipOutput;
+  }
+
+  private File getLocalConfigFile(File baseFolder) {
+    return new File(baseFolder, "redmatch-config.yaml");
+  }
+
+  private File getUserConfigFile() {
+    File userHome = new File(System.getProperty("user.home"));
+    File userFolder = new File(userHome, ".redmatch");
+    return new File(userFolder, "redmatch-config.yaml");
   }
 
   private Map<String, DataSource> loadAllServerMaps(File baseFolder) throws IOException {
@@ -311,16 +398,14 @@ public class RedmatchApi {
     boolean configExists = false;
 
     Map<String, DataSource> localMap = new HashMap<>();
-    File configFile = new File(baseFolder, "redmatch-config.yaml");
+    File configFile = getLocalConfigFile(baseFolder);
     if (configFile.exists() && configFile.canRead()) {
       localMap = loadServerMap(configFile);
       configExists = true;
     }
 
     Map<String, DataSource> userMap = new HashMap<>();
-    File userHome = new File(System.getProperty("user.home"));
-    File userFolder = new File(userHome, ".redmatch");
-    File userConfigFile = new File(userFolder, "redmatch-config.yaml");
+    File userConfigFile = getUserConfigFile();
     if (userConfigFile.exists() && userConfigFile.canRead()) {
       userMap = loadServerMap(userConfigFile);
       configExists = true;
@@ -337,7 +422,10 @@ public class RedmatchApi {
     return res;
   }
 
-  private void save(Map<String, List<DomainResource>> grouped, Path tgtDir, ProgressReporter progressReporter,
+  /**
+   * Saves the resources as NDJSON files. The resources are all in memory at this point, see {@link NdjsonWriter}.
+   */
+  private void save(Collection<DomainResource> resources, Path tgtDir, boolean gzip, ProgressReporter progressReporter,
                     CancelChecker cancelToken)
     throws IOException {
     try {
@@ -345,25 +433,7 @@ public class RedmatchApi {
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportStart("Saving files"));
       }
-      IParser jsonParser = ctx.newJsonParser();
-      double div = grouped.size() / 100.0;
-      int i = 0;
-      for (String key : grouped.keySet()) {
-        File f = new File(tgtDir.toFile(), key + ".ndjson");
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
-          for (DomainResource dr : grouped.get(key)) {
-            jsonParser.encodeResourceToWriter(dr, bw);
-            bw.newLine();
-          }
-        }
-        i++;
-        if (progressReporter != null) {
-          progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
-        }
-        if (cancelToken != null && cancelToken.isCanceled()) {
-          return;
-        }
-      }
+      new NdjsonWriter(ctx, parallelism, gzip).write(resources, tgtDir, progressReporter, cancelToken);
     } finally {
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportEnd());
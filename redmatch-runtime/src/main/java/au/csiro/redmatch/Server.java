@@ -15,6 +15,26 @@ public class Server {
   private String type;
   private String url;
   private String token;
+  /**
+   * Maximum number of records fetched in a single request. If not set, all the records are fetched in one request.
+   */
+  private Integer batchSize;
+  /**
+   * Maximum number of concurrent requests used when fetching records in batches. Defaults to 1.
+   */
+  private Integer parallelism;
+  /**
+   * Connect timeout, in seconds.
+   */
+  private Integer connectTimeout;
+  /**
+   * Socket timeout, in seconds. This is the maximum time without receiving any data from the server.
+   */
+  private Integer socketTimeout;
+  /**
+   * Number of times a request is retried after a server error.
+   */
+  private Integer maxRetries;
 
   public String getName() {
     return name;
@@ -47,4 +67,44 @@ public class Server {
   public void setToken(String token) {
     this.token = token;
   }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public Integer getParallelism() {
+    return parallelism;
+  }
+
+  public void setParallelism(Integer parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  public Integer getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(Integer connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public Integer getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  public void setSocketTimeout(Integer socketTimeout) {
+    this.socketTimeout = socketTimeout;
+  }
+
+  public Integer getMaxRetries() {
+    return maxRetries;
+  }
+
+  public void setMaxRetries(Integer maxRetries) {
+    this.maxRetries = maxRetries;
+  }
 }
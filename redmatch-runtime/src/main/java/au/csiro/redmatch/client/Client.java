@@ -7,15 +7,18 @@ package au.csiro.redmatch.client;
 import au.csiro.redmatch.model.Row;
 import au.csiro.redmatch.model.Schema;
 
+import java.io.Closeable;
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
- * A client used to communicate with an external data source.
+ * A client used to communicate with an external data source. Clients hold resources, such as pooled connections, so
+ * they should be reused and closed when no longer needed.
  *
  * @author Alejandro Metke Jimenez
  */
-public interface Client {
+public interface Client extends Closeable {
 
   /**
    * Gets the schema of the external data source.
@@ -54,4 +57,39 @@ public interface Client {
    * @return A list of rows that represent the data of the external data source.
    */
   List<Row> getData(String endpoint, Credentials credentials, Set<String> fieldIds);
+
+  /**
+   * Streams the data of the external data source. Each {@link Row} is handed to the consumer as soon as all the data
+   * for the corresponding patient has been read, so the full export is never held in memory.
+   *
+   * @param endpoint The endpoint of the external data source.
+   * @param credentials The credentials needed to authenticate to the external data source.
+   * @param fieldIds The ids of the fields to fetch, if the source allows retrieving a subset of the schema.
+   * @param consumer The consumer that receives the rows.
+   * @return The number of rows that were handed to the consumer.
+   */
+  int getData(String endpoint, Credentials credentials, Set<String> fieldIds, Consumer<Row> consumer);
+
+  /**
+   * Streams the data of the external data source in batches. The ids of all the records are fetched first and then
+   * the records are fetched in batches of {@code batchSize}, using up to {@code parallelism} concurrent requests. The
+   * rows are handed to the consumer in the same order as the record ids, on the calling thread.
+   *
+   * @param endpoint The endpoint of the external data source.
+   * @param credentials The credentials needed to authenticate to the external data source.
+   * @param uniqueFieldId The id of the field that uniquely identifies a record.
+   * @param fieldIds The ids of the fields to fetch, if the source allows retrieving a subset of the schema.
+   * @param batchSize The maximum number of records fetched in a single request.
+   * @param parallelism The maximum number of concurrent requests.
+   * @param consumer The consumer that receives the rows.
+   * @return The number of rows that were handed to the consumer.
+   */
+  int getData(String endpoint, Credentials credentials, String uniqueFieldId, Set<String> fieldIds, int batchSize,
+              int parallelism, Consumer<Row> consumer);
+
+  /**
+   * Releases any resources held by this client.
+   */
+  @Override
+  void close();
 }
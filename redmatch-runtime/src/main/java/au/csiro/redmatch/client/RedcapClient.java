@@ -10,23 +10,28 @@ import au.csiro.redmatch.model.LabeledEdge;
 import au.csiro.redmatch.model.Row;
 import au.csiro.redmatch.model.Schema;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 import org.jgrapht.Graph;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * A client to communicate with a REDCap server.
@@ -38,10 +43,63 @@ public class RedcapClient implements Client {
   /** Logger. */
   private static final Log log = LogFactory.getLog(RedcapClient.class);
 
+  /** Default connect timeout, in milliseconds. */
+  public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+
+  /** Default socket timeout, in milliseconds. */
+  public static final int DEFAULT_SOCKET_TIMEOUT = 300000;
+
+  /** Default number of times a request is retried after a server error. */
+  public static final int DEFAULT_MAX_RETRIES = 3;
+
+  /** Maximum number of pooled connections. */
+  private static final int MAX_CONNECTIONS = 32;
+
   private final Gson gson;
 
+  /**
+   * The HTTP client, shared by all requests so connections are reused. Response compression is enabled by default.
+   */
+  private final CloseableHttpClient httpClient;
+
+  private final int maxRetries;
+
+  /**
+   * The time to wait before the first retry, in milliseconds. Doubles with every retry.
+   */
+  private final long retryBackOff;
+
   public RedcapClient(Gson gson) {
+    this(gson, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT, DEFAULT_MAX_RETRIES, 1000);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param gson The Gson instance.
+   * @param connectTimeout The connect timeout, in milliseconds.
+   * @param socketTimeout The socket timeout, in milliseconds.
+   * @param maxRetries The number of times a request is retried after a server error or an I/O error.
+   * @param retryBackOff The time to wait before the first retry, in milliseconds. Doubles with every retry.
+   */
+  public RedcapClient(Gson gson, int connectTimeout, int socketTimeout, int maxRetries, long retryBackOff) {
     this.gson = gson;
+    this.maxRetries = maxRetries;
+    this.retryBackOff = retryBackOff;
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+    RequestConfig requestConfig = RequestConfig.custom()
+      .setConnectTimeout(connectTimeout)
+      .setConnectionRequestTimeout(connectTimeout)
+      .setSocketTimeout(socketTimeout)
+      .build();
+    this.httpClient = HttpClients.custom()
+      .setConnectionManager(connectionManager)
+      .setDefaultRequestConfig(requestConfig)
+      .evictIdleConnections(30, TimeUnit.SECONDS)
+      .build();
   }
 
   @Override
@@ -77,8 +135,137 @@ public class RedcapClient implements Client {
 
   @Override
   public List<Row> getData(String endpoint, Credentials credentials, Set<String> fieldIds) {
-    RedcapCredentials rc = (RedcapCredentials) credentials;
+    final RedcapResponse resp = doPost(endpoint, getRecordParams(credentials, fieldIds));
+    String content = resp.getContent();
+    handleRedcapStatus(resp.getStatus(), content);
+    return parseData(content);
+  }
+
+  @Override
+  public int getData(String endpoint, Credentials credentials, Set<String> fieldIds, Consumer<Row> consumer) {
+    return streamRecords(endpoint, getRecordParams(credentials, fieldIds), consumer);
+  }
+
+  @Override
+  public int getData(String endpoint, Credentials credentials, String uniqueFieldId, Set<String> fieldIds,
+                     int batchSize, int parallelism, Consumer<Row> consumer) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be greater than zero but was " + batchSize + ".");
+    }
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
+
+    final List<String> recordIds = getRecordIds(endpoint, credentials, uniqueFieldId);
+    log.info("Fetching " + recordIds.size() + " records in batches of " + batchSize + " using " + parallelism
+      + " concurrent requests");
+
+    final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      // Only parallelism batches are in flight at any time and they are handed to the consumer in order, so the
+      // results are deterministic and memory is bounded
+      final Deque<Future<List<Row>>> inFlight = new ArrayDeque<>();
+      int count = 0;
+      int next = 0;
+      while (next < recordIds.size() || !inFlight.isEmpty()) {
+        while (next < recordIds.size() && inFlight.size() < parallelism) {
+          final List<String> batch = recordIds.subList(next, Math.min(next + batchSize, recordIds.size()));
+          final ArrayList<NameValuePair> params = getRecordParams(credentials, fieldIds);
+          for (String recordId : batch) {
+            params.add(new BasicNameValuePair("records[]", recordId));
+          }
+          inFlight.add(executor.submit(() -> {
+            List<Row> rows = new ArrayList<>();
+            streamRecords(endpoint, params, rows::add);
+            return rows;
+          }));
+          next += batch.size();
+        }
 
+        for (Row row : waitFor(inFlight.remove())) {
+          consumer.accept(row);
+          count++;
+        }
+      }
+      return count;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private List<Row> waitFor(Future<List<Row>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ClientException("Interrupted while fetching data from REDCap.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof ClientException) {
+        throw (ClientException) e.getCause();
+      }
+      throw new ClientException("There was a problem fetching data from REDCap.", e.getCause());
+    }
+  }
+
+  /**
+   * Returns the ids of all the records in the project, in the order returned by REDCap.
+   */
+  private List<String> getRecordIds(String endpoint, Credentials credentials, String uniqueFieldId) {
+    final Set<String> res = new LinkedHashSet<>();
+    ArrayList<NameValuePair> params = getRecordParams(credentials, Collections.singleton(uniqueFieldId));
+    HttpResponse resp = executeRecordRequest(endpoint, params);
+    try (JsonReader jsonReader = gson.newJsonReader(new InputStreamReader(resp.getEntity().getContent(),
+      StandardCharsets.UTF_8))) {
+      jsonReader.beginArray();
+      while (jsonReader.hasNext()) {
+        JsonObject jsonObject = gson.fromJson(jsonReader, JsonObject.class);
+        JsonElement recordId = jsonObject.get(uniqueFieldId);
+        if (recordId == null) {
+          throw new ClientException("Field " + uniqueFieldId + " was not returned by REDCap. Make sure it is the "
+            + "record id field of the project.");
+        }
+        res.add(recordId.getAsString());
+      }
+      jsonReader.endArray();
+    } catch (IOException | JsonParseException e) {
+      throw new ClientException("There was a problem reading the record ids from REDCap.", e);
+    }
+    return new ArrayList<>(res);
+  }
+
+  private int streamRecords(String endpoint, ArrayList<NameValuePair> params, Consumer<Row> consumer) {
+    HttpResponse resp = executeRecordRequest(endpoint, params);
+    try (Reader reader = new InputStreamReader(resp.getEntity().getContent(), StandardCharsets.UTF_8)) {
+      return parseData(reader, consumer);
+    } catch (IOException e) {
+      throw new ClientException("There was an I/O issue reading REDCap's response.", e);
+    }
+  }
+
+  /**
+   * Sends a request for records and checks the response. The content of successful responses is not read so that it
+   * can be streamed.
+   */
+  private HttpResponse executeRecordRequest(String endpoint, ArrayList<NameValuePair> params) {
+    HttpResponse resp = execute(endpoint, params);
+    int respCode = resp.getStatusLine().getStatusCode();
+    if (respCode < 200 || respCode >= 300) {
+      // Errors are small so we can read the whole body to report it
+      String content = readContent(resp);
+      checkContentType(resp, content);
+      handleRedcapStatus(respCode, content);
+    }
+    try {
+      checkContentType(resp, null);
+    } catch (ClientException e) {
+      EntityUtils.consumeQuietly(resp.getEntity());
+      throw e;
+    }
+    return resp;
+  }
+
+  private ArrayList<NameValuePair> getRecordParams(Credentials credentials, Set<String> fieldIds) {
+    RedcapCredentials rc = (RedcapCredentials) credentials;
 
     ArrayList<NameValuePair> params = new ArrayList<>();
     params.add(new BasicNameValuePair("token", rc.getToken()));
@@ -87,14 +274,19 @@ public class RedcapClient implements Client {
     for (String fieldId : fieldIds) {
       params.add(new BasicNameValuePair("fields[]", fieldId));
     }
-
-    final RedcapResponse resp = doPost(endpoint, params);
-    String content = resp.getContent();
-    handleRedcapStatus(resp.getStatus(), content);
-    return parseData(content);
+    return params;
   }
 
   private RedcapResponse doPost(String url, ArrayList<NameValuePair> params) {
+    HttpResponse resp = execute(url, params);
+    int respCode = resp.getStatusLine().getStatusCode();
+    final String content = readContent(resp);
+    checkContentType(resp, content);
+
+    return new RedcapResponse(respCode, content);
+  }
+
+  private HttpResponse execute(String url, ArrayList<NameValuePair> params) {
     HttpPost post = new HttpPost(url);
     post.setHeader("Content-Type", "application/x-www-form-urlencoded");
 
@@ -104,18 +296,52 @@ public class RedcapClient implements Client {
       throw new ClientException("There was a problem related to encoding.", e);
     }
 
-    StringBuilder result = new StringBuilder();
-    HttpClient client = HttpClientBuilder.create().build();
+    for (int attempt = 0; ; attempt++) {
+      try {
+        CloseableHttpResponse resp = httpClient.execute(post);
+        int respCode = resp.getStatusLine().getStatusCode();
+        if (respCode >= 500 && attempt < maxRetries) {
+          log.warn("REDCap at " + url + " returned status " + respCode + ". Retrying.");
+          // Release the connection so it can be reused by the next attempt
+          EntityUtils.consumeQuietly(resp.getEntity());
+          backOff(attempt);
+          continue;
+        }
+        return resp;
+      } catch (IOException e) {
+        if (attempt < maxRetries) {
+          log.warn("There was an I/O issue communicating with REDCap at " + url + ". Retrying.", e);
+          backOff(attempt);
+        } else {
+          throw new ClientException("There was an I/O issue communicating with REDCap at " + url + ".", e);
+        }
+      }
+    }
+  }
 
-    HttpResponse resp;
+  private void backOff(int attempt) {
     try {
-      resp = client.execute(post);
-    } catch (IOException e) {
-      throw new ClientException("There was an I/O issue communicating with REDCap at " + url + ".", e);
+      Thread.sleep(retryBackOff * (1L << attempt));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ClientException("Interrupted while waiting to retry a request to REDCap.", e);
     }
+  }
 
-    int respCode = resp.getStatusLine().getStatusCode();
+  /**
+   * Closes the underlying HTTP client and its pooled connections.
+   */
+  @Override
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      log.warn("There was a problem closing the HTTP client.", e);
+    }
+  }
 
+  private String readContent(HttpResponse resp) {
+    StringBuilder result = new StringBuilder();
     try (BufferedReader reader = new BufferedReader(
       new InputStreamReader(resp.getEntity().getContent()))) {
       String line;
@@ -126,11 +352,7 @@ public class RedcapClient implements Client {
     } catch (IOException e) {
       throw new ClientException("There was an I/O issue reading REDCap's response.", e);
     }
-
-    final String content = result.toString();
-    checkContentType(resp, content);
-
-    return new RedcapResponse(respCode, content);
+    return result.toString();
   }
 
   private void checkContentType(HttpResponse resp, String content) {
@@ -142,7 +364,7 @@ public class RedcapClient implements Client {
           log.error("Unexpected REDCap response");
         }
         throw new ClientException("Expected a response from REDCap with content type application/json but was "
-          + contentType + ". Content = '" + content + "'.");
+          + contentType + (content != null ? ". Content = '" + content + "'." : "."));
       }
     } else {
       log.warn("Content-Type header was not present in REDCap response.");
@@ -169,61 +391,140 @@ public class RedcapClient implements Client {
     }
 
     // Find name of key that represents record number
-    String uniqueKey = null;
-    JsonObject jsonObject = rows.get(0).getAsJsonObject();
-    Optional<Map.Entry<String, JsonElement>> first = jsonObject.entrySet().stream().findFirst();
-    if (first.isPresent()) {
-      uniqueKey = first.get().getKey();
-    }
-    if (uniqueKey == null) {
-      throw new RuntimeException("Could not find unique key. This should not happen!");
-    }
+    String uniqueKey = getUniqueKey(rows.get(0).getAsJsonObject());
 
     final List<Row> res = new ArrayList<>();
 
     Map<String, JsonObject> patientObjectMap = new HashMap<>();
     Map<String, List<JsonObject>> repeatableInstrumentsMap = new HashMap<>();
     for (JsonElement row : rows) {
-      jsonObject = row.getAsJsonObject();
+      JsonObject jsonObject = row.getAsJsonObject();
 
       String key = jsonObject.get(uniqueKey).getAsString();
-      JsonElement repeatableInstrumentElement = jsonObject.get("redcap_repeat_instrument");
-      if (repeatableInstrumentElement != null) {
-        String repeatableInstrumentName = repeatableInstrumentElement.getAsString();
-        if (repeatableInstrumentName == null || repeatableInstrumentName.isEmpty()) {
-          // This is a patient instrument
-          jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "Patient");
-          patientObjectMap.put(key, jsonObject);
-        } else {
-          // This is a repeatable instrument
-          jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "RepeatableInstrument");
-          List<JsonObject> patientObjects = repeatableInstrumentsMap.computeIfAbsent(key, k -> new ArrayList<>());
-          patientObjects.add(jsonObject);
-        }
-      } else {
-        // Repeatable instruments are not enabled in REDCap
-        jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "Patient");
+      if (isPatientObject(jsonObject)) {
         patientObjectMap.put(key, jsonObject);
+      } else {
+        List<JsonObject> patientObjects = repeatableInstrumentsMap.computeIfAbsent(key, k -> new ArrayList<>());
+        patientObjects.add(jsonObject);
       }
     }
 
     for (String key : patientObjectMap.keySet()) {
-      Row entry = new Row();
-      Graph<JsonElement, LabeledEdge> graph = new LabeledDirectedMultigraph<>(LabeledEdge.class);
-      JsonObject patient = patientObjectMap.get(key);
-      graph.addVertex(patient);
-      List<JsonObject> repeatableInstruments = repeatableInstrumentsMap.get(key);
-      if (repeatableInstruments != null) {
-        for (JsonObject repeatableInstrument : repeatableInstruments) {
-          graph.addVertex(repeatableInstrument);
-          String repeatableInstrumentName = repeatableInstrument.get("redcap_repeat_instrument").getAsString();
-          graph.addEdge(patient, repeatableInstrument, new LabeledEdge(repeatableInstrumentName));
+      res.add(createRow(patientObjectMap.get(key), repeatableInstrumentsMap.get(key)));
+    }
+    return res;
+  }
+
+  /**
+   * Streaming version of {@link #parseData(String)}. Reads the records one at a time and hands a {@link Row} to the
+   * consumer as soon as all the records of a patient have been read. REDCap exports all the records of a patient
+   * together, so only the data of the current patient is kept in memory.
+   *
+   * @param reader A reader over the JSON data.
+   * @param consumer The consumer that receives the rows.
+   * @return The number of rows that were handed to the consumer.
+   */
+  public int parseData(Reader reader, Consumer<Row> consumer) {
+    int count = 0;
+    try {
+      JsonReader jsonReader = gson.newJsonReader(reader);
+      jsonReader.beginArray();
+
+      String uniqueKey = null;
+      String currentKey = null;
+      JsonObject patient = null;
+      List<JsonObject> repeatableInstruments = new ArrayList<>();
+      final Set<String> processedKeys = new HashSet<>();
+      while (jsonReader.hasNext()) {
+        JsonObject jsonObject = gson.fromJson(jsonReader, JsonObject.class);
+        if (uniqueKey == null) {
+          uniqueKey = getUniqueKey(jsonObject);
+        }
+
+        String key = jsonObject.get(uniqueKey).getAsString();
+        if (!key.equals(currentKey)) {
+          // All the records of the previous patient have been read
+          count += emitRow(patient, repeatableInstruments, consumer);
+          if (!processedKeys.add(key)) {
+            throw new ClientException("The records of patient " + key + " are not contiguous in the REDCap export.");
+          }
+          currentKey = key;
+          patient = null;
+          repeatableInstruments = new ArrayList<>();
+        }
+
+        if (isPatientObject(jsonObject)) {
+          patient = jsonObject;
+        } else {
+          repeatableInstruments.add(jsonObject);
         }
       }
-      entry.setData(graph);
-      res.add(entry);
+      count += emitRow(patient, repeatableInstruments, consumer);
+      jsonReader.endArray();
+    } catch (IOException | JsonParseException e) {
+      throw new ClientException("There was a problem reading the REDCap data.", e);
     }
-    return res;
+    return count;
+  }
+
+  private int emitRow(JsonObject patient, List<JsonObject> repeatableInstruments, Consumer<Row> consumer) {
+    if (patient == null) {
+      if (!repeatableInstruments.isEmpty()) {
+        log.warn("Found repeatable instruments without a patient instrument. Ignoring.");
+      }
+      return 0;
+    }
+    consumer.accept(createRow(patient, repeatableInstruments));
+    return 1;
+  }
+
+  private String getUniqueKey(JsonObject jsonObject) {
+    Optional<Map.Entry<String, JsonElement>> first = jsonObject.entrySet().stream().findFirst();
+    if (first.isPresent()) {
+      return first.get().getKey();
+    }
+    throw new RuntimeException("Could not find unique key. This should not happen!");
+  }
+
+  /**
+   * Sets the vertex type of a REDCap record and determines if it is a patient instrument.
+   *
+   * @param jsonObject The REDCap record.
+   * @return True if this is a patient instrument, false if it is a repeatable instrument.
+   */
+  private boolean isPatientObject(JsonObject jsonObject) {
+    JsonElement repeatableInstrumentElement = jsonObject.get("redcap_repeat_instrument");
+    if (repeatableInstrumentElement != null) {
+      String repeatableInstrumentName = repeatableInstrumentElement.getAsString();
+      if (repeatableInstrumentName == null || repeatableInstrumentName.isEmpty()) {
+        // This is a patient instrument
+        jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "Patient");
+        return true;
+      } else {
+        // This is a repeatable instrument
+        jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "RepeatableInstrument");
+        return false;
+      }
+    } else {
+      // Repeatable instruments are not enabled in REDCap
+      jsonObject.addProperty(LabeledDirectedMultigraph.VERTEX_TYPE_FIELD, "Patient");
+      return true;
+    }
+  }
+
+  private Row createRow(JsonObject patient, List<JsonObject> repeatableInstruments) {
+    Row entry = new Row();
+    Graph<JsonElement, LabeledEdge> graph = new LabeledDirectedMultigraph<>(LabeledEdge.class);
+    graph.addVertex(patient);
+    if (repeatableInstruments != null) {
+      for (JsonObject repeatableInstrument : repeatableInstruments) {
+        graph.addVertex(repeatableInstrument);
+        String repeatableInstrumentName = repeatableInstrument.get("redcap_repeat_instrument").getAsString();
+        graph.addEdge(patient, repeatableInstrument, new LabeledEdge(repeatableInstrumentName));
+      }
+    }
+    entry.setData(graph);
+    return entry;
   }
 
   private static class RedcapResponse {
@@ -20,11 +20,13 @@ import org.hl7.fhir.r4.model.*;
 
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,6 +42,11 @@ public abstract class BaseVisitor {
 
   private final Pattern codePattern = Pattern.compile("[^\\s]+([\\s]?[^\\s]+)*");
 
+  /**
+   * Matches field ids of the form xx___y.
+   */
+  private static final Pattern checkboxFieldIdPattern = Pattern.compile("(?<fieldId>.*)___\\d+$");
+
   /**
    * The transformation rules document.
    */
@@ -53,6 +60,11 @@ public abstract class BaseVisitor {
   protected final HapiReflectionHelper hapiReflectionHelper;
   protected final TerminologyService terminologyService;
 
+  /**
+   * The plans used to create resources, compiled once per resource in the rules document.
+   */
+  private final Map<Resource, ResourcePlan> plans = new ConcurrentHashMap<>();
+
   public BaseVisitor(Document doc, Set<String> uniqueIds, HapiReflectionHelper hapiReflectionHelper,
                      TerminologyService terminologyService) {
     this.doc = doc;
@@ -70,16 +82,55 @@ public abstract class BaseVisitor {
    */
   protected DomainResource createResource(Resource resource, JsonObject vertex, String recordId,
                                           VersionedFhirPackage fhirPackage) {
+    final ResourcePlan plan = getPlan(resource, fhirPackage);
     final String resourceId = resource.getResourceId();
     final String fhirId = resourceId + (recordId != null ? ("-" + recordId) : "");
 
     DomainResource fhirResource;
+    try {
+      fhirResource = plan.getConstructor().newInstance();
+    } catch (IllegalAccessException | InstantiationException | IllegalArgumentException | InvocationTargetException e) {
+      throw new TransformationException("Unable to create resource " + resource.getResourceType(), e);
+    }
+    fhirResource.setId(fhirId);
+
+    if (plan.getProfileUrl() != null) {
+      fhirResource.getMeta().addProfile(plan.getProfileUrl());
+    }
+
+    for (ResourcePlan.AttributePlan attributePlan : plan.getAttributePlans()) {
+      setValue(fhirResource, attributePlan, vertex, recordId);
+    }
+
+    return fhirResource;
+  }
+
+  /**
+   * Returns the plan to create a resource, compiling it the first time it is requested.
+   *
+   * @param resource The internal resource representation.
+   * @param fhirPackage The target FHIR package.
+   * @return The plan.
+   */
+  protected ResourcePlan getPlan(Resource resource, VersionedFhirPackage fhirPackage) {
+    ResourcePlan plan = plans.get(resource);
+    if (plan == null) {
+      plan = compilePlan(resource, fhirPackage);
+      ResourcePlan existing = plans.putIfAbsent(resource, plan);
+      if (existing != null) {
+        plan = existing;
+      }
+    }
+    return plan;
+  }
+
+  private ResourcePlan compilePlan(Resource resource, VersionedFhirPackage fhirPackage) {
     String resourceType = resource.getResourceType();
     CodeInfo codeInfo;
     try {
-      //VersionedFhirPackage fhirPackage = doc.getFhirPackage() != null ? doc.getFhirPackage() : defaultFhirPackage;
       codeInfo = terminologyService.lookup(fhirPackage, resourceType);
       if (codeInfo.isProfile() && codeInfo.getBaseResource() != null) {
+        // This can be a profile name, so we need to get the base FHIR resource
         String baseResource = codeInfo.getBaseResource();
         String[] parts = baseResource.split("[/]");
         resourceType = parts[parts.length - 1];
@@ -88,29 +139,47 @@ public abstract class BaseVisitor {
       throw new TransformationException("Unable to lookup information about resource " + resourceType, e);
     }
 
-    // This can be a profile name, so we need to get the base FHIR resource
-    Object instance;
+    Constructor<? extends DomainResource> constructor;
     try {
-      instance = Class.forName(HapiReflectionHelper.FHIR_TYPES_BASE_PACKAGE + "." + resourceType)
-        .getConstructor().newInstance();
-    } catch (ClassNotFoundException | IllegalAccessException | InstantiationException
-      | IllegalArgumentException | InvocationTargetException | NoSuchMethodException
-      | SecurityException e) {
+      constructor = Class.forName(HapiReflectionHelper.FHIR_TYPES_BASE_PACKAGE + "." + resourceType)
+        .asSubclass(DomainResource.class).getConstructor();
+    } catch (ClassNotFoundException | ClassCastException | NoSuchMethodException | SecurityException e) {
       throw new TransformationException("Unable to create resource " + resource.getResourceType(), e);
     }
-    fhirResource = (DomainResource) instance;
-    fhirResource.setId(fhirId);
-
-    if (codeInfo.getProfileUrl() != null) {
-      fhirResource.getMeta().addProfile(codeInfo.getProfileUrl());
-    }
 
+    List<ResourcePlan.AttributePlan> attributePlans = new ArrayList<>();
     for (AttributeValue attVal : resource.getResourceAttributeValues()) {
-      setValue(fhirResource, attVal.getAttributes(), attVal.getValue(), vertex, recordId, fhirPackage,
-        resource.getResourceType());
+      attributePlans.add(compileAttributePlan(attVal, fhirPackage, resource.getResourceType()));
     }
+    return new ResourcePlan(resource, constructor, codeInfo.getProfileUrl(), attributePlans);
+  }
 
-    return fhirResource;
+  private ResourcePlan.AttributePlan compileAttributePlan(AttributeValue attVal, VersionedFhirPackage fhirPackage,
+                                                          String originalResourceType) {
+    final List<Attribute> attributes = attVal.getAttributes();
+    final List<Attribute> path = new ArrayList<>(attributes.subList(0, attributes.size() - 1));
+    final Attribute leafAttribute = attributes.get(attributes.size() - 1);
+    final Value value = attVal.getValue();
+
+    try {
+      List<String> extensionUrls = hapiReflectionHelper.getExtensionUrls(path, fhirPackage, originalResourceType);
+
+      String referenceType = null;
+      boolean uniqueReference = false;
+      if (value instanceof ReferenceValue) {
+        ReferenceValue rv = (ReferenceValue) value;
+        referenceType = rv.getResourceType();
+        uniqueReference = uniqueIds.contains(referenceType + "<" + rv.getResourceId() + ">");
+        CodeInfo codeInfo = terminologyService.lookup(fhirPackage, referenceType);
+        if (codeInfo.isProfile()) {
+          referenceType = StringUtils.getLastPath(codeInfo.getBaseResource());
+        }
+      }
+      return new ResourcePlan.AttributePlan(path, extensionUrls, leafAttribute, value, referenceType,
+        uniqueReference);
+    } catch (IOException e) {
+      throw new TransformationException("Unable to lookup information about attribute " + attVal, e);
+    }
   }
 
   protected void handleReflectionException(Exception e) {
@@ -140,58 +209,33 @@ public abstract class BaseVisitor {
    * might fail if the specified value is incompatible with the attribute type.
    *
    * @param resource The FHIR resource where the value is going to be set.
-   * @param attributes A list of {@link Attribute}. This represents a single attribute that might be
-   *        several levels down. The list represents the path to the attribute.
-   * @param value The value to set.
+   * @param attributePlan The plan to set the value. The attributes represent a single attribute that might be
+   *        several levels down.
    * @param vertex A vertex with patient data.
    * @param recordId The id of this record. Used to create the FHIR ids.
-   * @param originalResourceType The resource type in the rules. This can be a profile name, so it can be different from
-   *                             the actual FHIR resource type.
    */
-  private void setValue(DomainResource resource, List<Attribute> attributes, Value value, JsonObject vertex,
-                        String recordId, VersionedFhirPackage fhirPackage, String originalResourceType) {
-
-    // Get chain of attribute names
-    final List<Attribute> attributesCopy = new ArrayList<>(attributes);
-    final Attribute leafAttribute = attributesCopy.remove(attributes.size() - 1);
+  private void setValue(DomainResource resource, ResourcePlan.AttributePlan attributePlan, JsonObject vertex,
+                        String recordId) {
+    final Attribute leafAttribute = attributePlan.getLeafAttribute();
     final String leafAttributeName = leafAttribute.getName();
     final Integer index = leafAttribute.getAttributeIndex();
 
     try {
       // Now we need to find or create the object where the value is going to be set
-      final Base theElement = hapiReflectionHelper.getElementToSet(resource, attributesCopy, fhirPackage,
-        originalResourceType);
+      final Base theElement = hapiReflectionHelper.getElementToSet(resource, attributePlan.getPath(),
+        attributePlan.getExtensionUrls());
 
-      // Now we need to get the value to set
-      Base theValue;
-      final java.lang.reflect.Field f = hapiReflectionHelper.getField(theElement.getClass(), leafAttributeName);
-
-      // We use the generated annotations in the FHIR model to get the type
-      final Child hapiMetadata = f.getAnnotation(Child.class);
-      final boolean isValueX = isValueX(hapiMetadata, theElement.getClass());
-      final Class<?> fhirType = getTypeFromHapiAnnotations(hapiMetadata, f, leafAttributeName);
-
-      // Special case for codes
-      Class<?> enumFactory = null;
-      if (fhirType != null && (fhirType.equals(CodeType.class) || fhirType.equals(Enumeration.class))) {
-        Class<?> hapiType = hapiReflectionHelper.getParametrisedType(f);
-
-        // Now we need the EnumFactory for this type
-        if (hapiType != null) {
-          try {
-            enumFactory = Class.forName(hapiType.getName() + "EnumFactory");
-          } catch (ClassNotFoundException e) {
-            throw new TransformationException("Unable to get EnumFactory for class " + hapiType);
-          }
-        } else {
-          log.debug("Code does not have an EnumFactory.");
-        }
+      ResourcePlan.LeafBinding binding = attributePlan.getLeafBinding(theElement.getClass());
+      if (binding == null) {
+        binding = bindLeaf(theElement.getClass(), leafAttributeName);
+        attributePlan.setLeafBinding(binding);
       }
 
-      theValue = getValue(value, fhirType, vertex, recordId, enumFactory, fhirPackage);
+      // Now we need to get the value to set
+      Base theValue = getValue(attributePlan, binding, vertex, recordId);
       if (theValue != null) {
         hapiReflectionHelper.invokeSetter(theElement, leafAttributeName, theValue, leafAttribute.isList(), index,
-          isValueX);
+          binding.isValueX());
       }
     } catch (TransformationException e) {
       throw e;
@@ -200,6 +244,47 @@ public abstract class BaseVisitor {
     }
   }
 
+  /**
+   * Resolves the type information of a leaf attribute in an element class.
+   *
+   * @param elementClass The class of the element where the value is going to be set.
+   * @param leafAttributeName The name of the attribute.
+   * @return The binding.
+   */
+  private ResourcePlan.LeafBinding bindLeaf(Class<? extends Base> elementClass, String leafAttributeName)
+    throws NoSuchFieldException, ClassNotFoundException, NoSuchMethodException, InstantiationException,
+    IllegalAccessException, InvocationTargetException {
+    final java.lang.reflect.Field f = hapiReflectionHelper.getField(elementClass, leafAttributeName);
+
+    // We use the generated annotations in the FHIR model to get the type
+    final Child hapiMetadata = f.getAnnotation(Child.class);
+    final boolean isValueX = isValueX(hapiMetadata, elementClass);
+    final Class<?> fhirType = getTypeFromHapiAnnotations(hapiMetadata, f, leafAttributeName);
+
+    // Special case for codes
+    Object enumFactory = null;
+    Method fromType = null;
+    if (fhirType != null && (fhirType.equals(CodeType.class) || fhirType.equals(Enumeration.class))) {
+      Class<?> hapiType = hapiReflectionHelper.getParametrisedType(f);
+
+      // Now we need the EnumFactory for this type
+      if (hapiType != null) {
+        Class<?> enumFactoryClass;
+        try {
+          enumFactoryClass = Class.forName(hapiType.getName() + "EnumFactory");
+        } catch (ClassNotFoundException e) {
+          throw new TransformationException("Unable to get EnumFactory for class " + hapiType);
+        }
+        enumFactory = enumFactoryClass.getDeclaredConstructor().newInstance();
+        fromType = findMethodByName(enumFactoryClass);
+        assert fromType != null;
+      } else {
+        log.debug("Code does not have an EnumFactory.");
+      }
+    }
+    return new ResourcePlan.LeafBinding(elementClass, isValueX, fhirType, enumFactory, fromType);
+  }
+
   private Class<?> getTypeFromHapiAnnotations(final Child hapiMetadata, Field f, String leafAttributeName)
     throws ClassNotFoundException {
     final Class<?>[] types = hapiMetadata.type();
@@ -231,16 +316,16 @@ public abstract class BaseVisitor {
   /**
    * Resolves a value.
    *
-   * @param value The value specified in the transformation rules.
-   * @param fhirType The type of the FHIR attribute where this value will be set.
+   * @param attributePlan The plan that contains the value specified in the transformation rules.
+   * @param binding The type information of the FHIR attribute where this value will be set.
    * @param vertex A vertex with patient data.
    * @param recordId The id of this record. Used to create the references to FHIR ids.
-   * @param enumFactory If the type is an enumeration, this is the factory to create an instance.
-   * @param fhirPackage The target FHIR package.
    * @return The value or null if the value cannot be determined. This can also be a list.
    */
-  private Base getValue(Value value, Class<?> fhirType, JsonObject vertex, String recordId, Class<?> enumFactory,
-                        VersionedFhirPackage fhirPackage) throws IOException {
+  private Base getValue(ResourcePlan.AttributePlan attributePlan, ResourcePlan.LeafBinding binding, JsonObject vertex,
+                        String recordId) {
+    final Value value = attributePlan.getValue();
+    final Class<?> fhirType = binding.getFhirType();
     // If this is a field-based value then make sure that there is a value and if not return null
     if (value instanceof FieldBasedValue) {
       assert vertex != null && recordId != null;
@@ -250,9 +335,7 @@ public abstract class BaseVisitor {
       String fieldId = fbv.getFieldId();
       String shortFieldId = null;
 
-      String regex = "(?<fieldId>.*)___\\d+$";
-      Pattern pattern = Pattern.compile(regex);
-      Matcher matcher = pattern.matcher(fieldId);
+      Matcher matcher = checkboxFieldIdPattern.matcher(fieldId);
       if (matcher.find()) {
         shortFieldId = matcher.group("fieldId");
         log.debug("Transformed fieldId into '" + fieldId + "'");
@@ -286,7 +369,7 @@ public abstract class BaseVisitor {
       return new BooleanType(((BooleanValue) value).getValue());
     } else if (value instanceof CodeLiteralValue) {
       String code = ((CodeLiteralValue) value).getCode();
-      return getCode(code, enumFactory);
+      return getCode(code, binding);
     } else if (value instanceof ConceptLiteralValue) {
       ConceptLiteralValue clv = (ConceptLiteralValue) value;
       String system = clv.getSystem();
@@ -302,16 +385,10 @@ public abstract class BaseVisitor {
       ReferenceValue rv = (ReferenceValue) value;
       Reference ref = new Reference();
 
-      String resourceType = rv.getResourceType();
+      String resourceType = attributePlan.getReferenceType();
       String resourceId = rv.getResourceId();
-      boolean unique = uniqueIds.contains(resourceType + "<" + resourceId + ">");
 
-      CodeInfo codeInfo = terminologyService.lookup(fhirPackage, resourceType);
-      if (codeInfo.isProfile()) {
-        resourceType = StringUtils.getLastPath(codeInfo.getBaseResource());
-      }
-
-      if (unique) {
+      if (attributePlan.isUniqueReference()) {
         // This is a reference to a unique resource - no need to append row id
         ref.setReference("/" + resourceType + "/" + resourceId);
       } else {
@@ -404,17 +481,12 @@ public abstract class BaseVisitor {
     }
   }
 
-  private Base getCode(String code, Class<?> enumFactory) {
+  private Base getCode(String code, ResourcePlan.LeafBinding binding) {
 
-    if (enumFactory != null) {
+    if (binding.getEnumFactory() != null) {
       try {
-        // Create instance of factory
-        Object factory = enumFactory.getDeclaredConstructor().newInstance();
-
-        // Call the fromCode method
-        Method fromCode = findMethodByName(enumFactory);
-        assert fromCode != null;
-        return (Base) fromCode.invoke(factory, new StringType(code));
+        // Call the fromType method
+        return (Base) binding.getFromType().invoke(binding.getEnumFactory(), new StringType(code));
       } catch (Exception e) {
         handleReflectionException(e);
         return null;
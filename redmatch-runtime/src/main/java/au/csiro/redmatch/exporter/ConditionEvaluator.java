@@ -0,0 +1,465 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import au.csiro.redmatch.compiler.Condition;
+import au.csiro.redmatch.compiler.ConditionExpression;
+import au.csiro.redmatch.compiler.ConditionNode;
+import au.csiro.redmatch.model.Field;
+import au.csiro.redmatch.model.PatientData;
+import au.csiro.redmatch.model.RedcapField;
+import au.csiro.redmatch.model.Schema;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates rule conditions over a list of patients using bitsets. All the JSON objects of all the patients are
+ * numbered and, for every field referenced in a condition, an index from value to the bitset of objects that have that
+ * value is built the first time the field is used. Condition expressions are resolved by testing each distinct value
+ * once, and AND, OR and NOT become bitset operations. Results are cached, so conditions that appear in several rules
+ * are only evaluated once.
+ *
+ * <p>A patient matches a condition if any of its objects matches it. Errors, e.g., invalid values in the data, are
+ * recorded per object instead of being thrown. Operands are only evaluated for an object where the original
+ * short-circuit evaluation would have evaluated them, and the objects of each patient are then checked in order: an
+ * error is raised if an object fails before one of the patient's objects matches. Errors in the objects after the
+ * first match are ignored, as they were never evaluated originally.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class ConditionEvaluator {
+
+  private final Schema schema;
+
+  private final List<PatientData> patients;
+
+  private final List<JsonObject> objects = new ArrayList<>();
+
+  /**
+   * The index of the patient that owns each object.
+   */
+  private final int[] owners;
+
+  /**
+   * The index of the first object of each patient. Has an extra entry with the total number of objects.
+   */
+  private final int[] firstObjects;
+
+  /**
+   * Field id -> value -> objects with that value. Only contains objects where the field is present in the data.
+   */
+  private final Map<String, Map<String, BitSet>> rawIndex = new HashMap<>();
+
+  /**
+   * Field id -> value -> objects with that value. Takes into account that checkbox options can be derived from the
+   * value of the parent field. Objects with no value are not included.
+   */
+  private final Map<String, Map<String, BitSet>> valueIndex = new HashMap<>();
+
+  /**
+   * Condition expression key -> results of evaluating the expression, without negation, over all the objects.
+   */
+  private final Map<String, Result> expressionCache = new HashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param schema The schema of the data.
+   * @param patients The patients.
+   */
+  public ConditionEvaluator(Schema schema, List<PatientData> patients) {
+    this.schema = schema;
+    this.patients = patients;
+    this.firstObjects = new int[patients.size() + 1];
+    for (int i = 0; i < patients.size(); i++) {
+      firstObjects[i] = objects.size();
+      objects.addAll(patients.get(i).getObjects());
+    }
+    firstObjects[patients.size()] = objects.size();
+    this.owners = new int[objects.size()];
+    for (int i = 0; i < patients.size(); i++) {
+      Arrays.fill(owners, firstObjects[i], firstObjects[i + 1], i);
+    }
+  }
+
+  /**
+   * @return A bitset with all the patients.
+   */
+  public BitSet allPatients() {
+    BitSet res = new BitSet(patients.size());
+    res.set(0, patients.size());
+    return res;
+  }
+
+  /**
+   * @return The number of patients.
+   */
+  public int getNumPatients() {
+    return patients.size();
+  }
+
+  /**
+   * @param index The index of a patient.
+   * @return The patient.
+   */
+  public PatientData getPatient(int index) {
+    return patients.get(index);
+  }
+
+  /**
+   * Returns the patients in a set, in their original order.
+   *
+   * @param patientSet The set of patients.
+   * @return The list of patients.
+   */
+  public List<PatientData> getPatients(BitSet patientSet) {
+    List<PatientData> res = new ArrayList<>(patientSet.cardinality());
+    for (int i = patientSet.nextSetBit(0); i >= 0; i = patientSet.nextSetBit(i + 1)) {
+      res.add(patients.get(i));
+    }
+    return res;
+  }
+
+  /**
+   * Returns the patients that match a condition, i.e., the patients that have at least one object that matches it.
+   *
+   * @param condition The condition.
+   * @param patientSet The patients to consider.
+   * @return The subset of patients that match the condition.
+   */
+  public BitSet filter(Condition condition, BitSet patientSet) {
+    BitSet mask = new BitSet(objects.size());
+    for (int i = patientSet.nextSetBit(0); i >= 0; i = patientSet.nextSetBit(i + 1)) {
+      mask.set(firstObjects[i], firstObjects[i + 1]);
+    }
+    Failures failures = new Failures();
+    BitSet matches = evaluate(condition, mask, failures);
+
+    // The objects of a patient are visited in order until one matches or fails
+    BitSet visited = (BitSet) matches.clone();
+    visited.or(failures.failed);
+    BitSet res = new BitSet(patients.size());
+    for (int i = visited.nextSetBit(0); i >= 0; i = visited.nextSetBit(firstObjects[owners[i] + 1])) {
+      if (failures.failed.get(i)) {
+        throw failures.get(i);
+      }
+      res.set(owners[i]);
+    }
+    return res;
+  }
+
+  /**
+   * Evaluates a condition over a set of objects. Objects where the condition cannot be evaluated are added to the
+   * failures and are not evaluated any further.
+   *
+   * @param c The condition.
+   * @param mask The objects the condition needs to be evaluated for.
+   * @param failures The objects that have failed so far and their errors.
+   * @return The subset of objects in the mask that match the condition and have not failed.
+   */
+  private BitSet evaluate(Condition c, BitSet mask, Failures failures) {
+    if (c instanceof ConditionExpression) {
+      ConditionExpression ce = (ConditionExpression) c;
+      Result result = expressionCache.computeIfAbsent(getKey(ce), k -> doEvaluate(ce));
+      BitSet res = (BitSet) mask.clone();
+      res.andNot(failures.failed);
+      result.addFailures(res, failures);
+      res.andNot(failures.failed);
+      if (ce.isNegated()) {
+        res.andNot(result.matches);
+      } else {
+        res.and(result.matches);
+      }
+      return res;
+    } else if (c instanceof ConditionNode) {
+      ConditionNode cn = (ConditionNode) c;
+      BitSet left = evaluate(cn.getLeftCondition(), mask, failures);
+      switch (cn.getOp()) {
+        case AND:
+          // The right condition is only evaluated where the left condition is true
+          left.and(evaluate(cn.getRightCondition(), left, failures));
+          return left;
+        case OR:
+          // The right condition is only evaluated where the left condition is false
+          BitSet rest = (BitSet) mask.clone();
+          rest.andNot(left);
+          left.or(evaluate(cn.getRightCondition(), rest, failures));
+          return left;
+        default:
+          throw new RuntimeException("Unexpected condition node operator. This should never happen!");
+      }
+    } else {
+      throw new RuntimeException("Unexpected Condition: " + c + ". This should not happen!");
+    }
+  }
+
+  private String getKey(ConditionExpression ce) {
+    return ce.getConditionType() + "|" + ce.getFieldId() + "|" + ce.getOperator() + "|" + ce.getIntValue() + "|"
+      + ce.getNumericValue() + "|" + ce.getStringValue();
+  }
+
+  private Result doEvaluate(ConditionExpression ce) {
+    String fieldId = ce.getFieldId();
+    Integer intValue = ce.getIntValue();
+    Double numericValue = ce.getNumericValue();
+    String stringValue = ce.getStringValue();
+    ConditionExpression.ConditionExpressionOperator operator = ce.getOperator();
+
+    Result res = new Result();
+    switch (ce.getConditionType()) {
+      case EXPRESSION:
+        if (intValue == null && numericValue == null && stringValue == null) {
+          res.addError(allObjects(), new TransformationException("No value has been specified for this expression. ["
+            + ce + "]"));
+          return res;
+        }
+
+        Map<String, BitSet> values = getValueIndex(fieldId);
+        if (values.isEmpty()) {
+          return res;
+        }
+
+        // Get data type from schema
+        Field field = schema.getField(fieldId);
+        if (field == null) {
+          for (BitSet objectsWithValue : values.values()) {
+            res.addError(objectsWithValue, new TransformationException("No field " + fieldId
+              + " found in the schema."));
+          }
+          return res;
+        }
+
+        for (Map.Entry<String, BitSet> entry : values.entrySet()) {
+          String actualStringValue = entry.getKey();
+          if (numericValue != null) {
+            try {
+              final double fieldValue = Double.parseDouble(actualStringValue);
+              if (compare(fieldValue, numericValue, operator)) {
+                res.matches.or(entry.getValue());
+              }
+            } catch (NumberFormatException e) {
+              res.addError(entry.getValue(), new TransformationException("Could not parse value of field " + fieldId
+                + " into a number (" + actualStringValue + ") [" + ce + "]"));
+            }
+          } else if (intValue != null) {
+            try {
+              final int fieldValue = Integer.parseInt(actualStringValue);
+              if (compare(Integer.compare(fieldValue, intValue), operator)) {
+                res.matches.or(entry.getValue());
+              }
+            } catch (NumberFormatException e) {
+              res.addError(entry.getValue(), new TransformationException("Could not parse value of field " + fieldId
+                + " into an integer (" + actualStringValue + ") [" + ce + "]"));
+            }
+          } else if (compare(actualStringValue.compareTo(stringValue), operator)) {
+            // A string value
+            res.matches.or(entry.getValue());
+          }
+        }
+        return res;
+      case FALSE:
+        return res;
+      case TRUE:
+        res.matches.set(0, objects.size());
+        return res;
+      case NOTNULL:
+      case NULL:
+        if (!(schema.getField(fieldId) instanceof RedcapField)) {
+          res.addError(allObjects(), new UnsupportedOperationException("Only REDCap is supported at the moment."));
+          return res;
+        }
+        if (ce.getConditionType() == ConditionExpression.ConditionType.NULL) {
+          res.matches.set(0, objects.size());
+          res.matches.andNot(getNotNull(fieldId));
+        } else {
+          res.matches.or(getNotNull(fieldId));
+        }
+        return res;
+      default:
+        throw new RuntimeException("Unexpected condition type " + ce.getConditionType());
+    }
+  }
+
+  private BitSet allObjects() {
+    BitSet res = new BitSet(objects.size());
+    res.set(0, objects.size());
+    return res;
+  }
+
+  /**
+   * Compares two doubles using the primitive operators rather than {@link Double#compare(double, double)}, so NaN is
+   * not equal to anything and -0.0 is equal to 0.0.
+   */
+  private boolean compare(double value, double literal, ConditionExpression.ConditionExpressionOperator operator) {
+    switch (operator) {
+      case EQ:
+        return value == literal;
+      case GT:
+        return value > literal;
+      case GTE:
+        return value >= literal;
+      case LT:
+        return value < literal;
+      case LTE:
+        return value <= literal;
+      case NEQ:
+        return value != literal;
+      default:
+        throw new RuntimeException("Unexpected operator. This should never happen!");
+    }
+  }
+
+  private boolean compare(int comparison, ConditionExpression.ConditionExpressionOperator operator) {
+    switch (operator) {
+      case EQ:
+        return comparison == 0;
+      case GT:
+        return comparison > 0;
+      case GTE:
+        return comparison >= 0;
+      case LT:
+        return comparison < 0;
+      case LTE:
+        return comparison <= 0;
+      case NEQ:
+        return comparison != 0;
+      default:
+        throw new RuntimeException("Unexpected operator. This should never happen!");
+    }
+  }
+
+  /**
+   * Returns the objects where a field is not null. Checkboxes are not null if any of their options is checked.
+   */
+  private BitSet getNotNull(String fieldId) {
+    // Get the field that is referenced in this condition expression
+    Field field = schema.getField(fieldId);
+    if (field instanceof RedcapField) {
+      RedcapField rfield = (RedcapField) field;
+      RedcapField.FieldType ft = rfield.getFieldType();
+
+      BitSet res = new BitSet(objects.size());
+      // Deal with special case where field is a checkbox - in this case we need to check that any
+      // of the possible values are populated
+      if (ft.equals(RedcapField.FieldType.CHECKBOX)) {
+        for (Field f : schema.getOptions(fieldId)) {
+          addMatching(getRawIndex(f.getFieldId()), value -> !"0".equals(value), res);
+        }
+      } else {
+        addMatching(getRawIndex(fieldId), value -> !value.isEmpty(), res);
+      }
+      return res;
+    } else {
+      throw new UnsupportedOperationException("Only REDCap is supported at the moment.");
+    }
+  }
+
+  private void addMatching(Map<String, BitSet> index, Predicate<String> predicate, BitSet res) {
+    for (Map.Entry<String, BitSet> entry : index.entrySet()) {
+      if (predicate.test(entry.getKey())) {
+        res.or(entry.getValue());
+      }
+    }
+  }
+
+  private Map<String, BitSet> getRawIndex(String fieldId) {
+    return rawIndex.computeIfAbsent(fieldId, k -> {
+      Map<String, BitSet> res = new HashMap<>();
+      for (int i = 0; i < objects.size(); i++) {
+        JsonElement value = objects.get(i).get(fieldId);
+        if (value != null) {
+          res.computeIfAbsent(value.getAsString(), v -> new BitSet()).set(i);
+        }
+      }
+      return res;
+    });
+  }
+
+  private Map<String, BitSet> getValueIndex(String fieldId) {
+    Map<String, BitSet> res = valueIndex.get(fieldId);
+    if (res != null) {
+      return res;
+    }
+
+    res = new HashMap<>();
+    Map<String, BitSet> raw = getRawIndex(fieldId);
+    BitSet present = new BitSet(objects.size());
+    for (Map.Entry<String, BitSet> entry : raw.entrySet()) {
+      present.or(entry.getValue());
+      if (!entry.getKey().isEmpty()) {
+        res.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    // See if this is an option and extract the value from the name
+    if (fieldId.contains("___")) {
+      String[] parts = fieldId.split("___");
+      for (Map.Entry<String, BitSet> entry : getRawIndex(parts[0]).entrySet()) {
+        BitSet derived = (BitSet) entry.getValue().clone();
+        derived.andNot(present);
+        if (!derived.isEmpty()) {
+          String value = entry.getKey().equals(parts[1]) ? "1" : "0";
+          res.computeIfAbsent(value, v -> new BitSet()).or(derived);
+        }
+      }
+    }
+
+    valueIndex.put(fieldId, res);
+    return res;
+  }
+
+  /**
+   * The result of evaluating a condition expression over all the objects. Also keeps track of the objects where the
+   * expression could not be evaluated, so errors are only recorded if those objects need to be evaluated.
+   */
+  private static class Result {
+    private final BitSet matches = new BitSet();
+    private final List<BitSet> errorObjects = new ArrayList<>();
+    private final List<RuntimeException> errors = new ArrayList<>();
+
+    void addError(BitSet objects, RuntimeException error) {
+      errorObjects.add(objects);
+      errors.add(error);
+    }
+
+    void addFailures(BitSet mask, Failures failures) {
+      for (int i = 0; i < errorObjects.size(); i++) {
+        BitSet failed = (BitSet) errorObjects.get(i).clone();
+        failed.and(mask);
+        failed.andNot(failures.failed);
+        if (!failed.isEmpty()) {
+          failures.add(failed, errors.get(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * The objects that failed while evaluating a condition, with the first error raised for each of them.
+   */
+  private static class Failures {
+    private final BitSet failed = new BitSet();
+    private final List<BitSet> errorObjects = new ArrayList<>();
+    private final List<RuntimeException> errors = new ArrayList<>();
+
+    void add(BitSet objects, RuntimeException error) {
+      failed.or(objects);
+      errorObjects.add(objects);
+      errors.add(error);
+    }
+
+    RuntimeException get(int object) {
+      for (int i = 0; i < errorObjects.size(); i++) {
+        if (errorObjects.get(i).get(object)) {
+          return errors.get(i);
+        }
+      }
+      throw new IllegalArgumentException("Object " + object + " has not failed.");
+    }
+  }
+}
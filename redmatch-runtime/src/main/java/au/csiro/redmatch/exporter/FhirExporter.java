@@ -20,6 +20,7 @@ import org.hl7.fhir.r4.model.*;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Transforms REDCap data into FHIR resources using a transformation rules document.
@@ -49,6 +50,11 @@ public class FhirExporter {
 
 
 
+  /**
+   * The number of threads used to create the resources of the patients.
+   */
+  private int parallelism = 1;
+
   /**
    * The result of the transformation.
    */
@@ -70,6 +76,31 @@ public class FhirExporter {
     this.defaultFhirPackage = defaultFhirPackage;
   }
 
+  /**
+   * Constructor for streaming transformations. The source data is provided when calling
+   * {@link #transform(RowSource, ProgressReporter, CancelChecker)}.
+   *
+   * @param doc The transformation rules document.
+   * @param helper The HAPI transformation helper instance.
+   */
+  public FhirExporter(Document doc, HapiReflectionHelper helper, TerminologyService terminologyService,
+                      VersionedFhirPackage defaultFhirPackage) {
+    this(doc, Collections.emptyList(), helper, terminologyService, defaultFhirPackage);
+  }
+
+  /**
+   * Sets the number of threads used to create the resources of the patients. The default is 1, which means all the
+   * resources are created on the calling thread. The output does not depend on this value.
+   *
+   * @param parallelism The number of threads.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
+    this.parallelism = parallelism;
+  }
+
   /**
    * Creates FHIR resources based on data from the source. Returns a map, indexed by resource id.
    *
@@ -79,25 +110,48 @@ public class FhirExporter {
    */
   public Map<String, DomainResource> transform(ProgressReporter progressReporter, CancelChecker cancelToken)
     throws TransformationException {
-    final String uniqueField = doc.getSchema().getUniqueFieldId();
-    log.info("Transforming Redmatch project using unique field " + uniqueField);
+    GraphUtils.Results res = buildGraph();
 
-    log.debug("Building graph to determine which resources are created by patient and which are not");
-    GraphUtils.Results res = GraphUtils.buildGraph(doc);
-    if (!res.getDiagnostics().isEmpty()) {
-      boolean hasErrors = false;
-      StringBuilder sb = new StringBuilder();
-      for(Diagnostic d : res.getDiagnostics()) {
-        if (d.getSeverity().equals(DiagnosticSeverity.Error)) {
-          hasErrors = true;
-          sb.append(d.getMessage());
-          sb.append(System.lineSeparator());
-        }
+    if (cancelToken != null && cancelToken.isCanceled()) {
+      throw new TransformationException("Transformation canceled!");
+    }
+
+    try {
+      if (progressReporter != null) {
+        progressReporter.reportProgress(Progress.reportStart("Transforming into FHIR"));
       }
-      if (hasErrors) {
-        throw new TransformationException(sb.toString());
+
+      RedcapVisitor visitor = new RedcapVisitor(doc, res.getUniqueIds(), helper, terminologyService,
+        defaultFhirPackage, rows, progressReporter, cancelToken, parallelism);
+      fhirResourceMap.putAll(visitor.getFhirResourceMap());
+
+      // Prune resources to get rid of empty values in lists
+      pruneAll(fhirResourceMap.values());
+
+      if (progressReporter != null) {
+        progressReporter.reportProgress(Progress.reportProgress(100));
+      }
+
+      return fhirResourceMap;
+    } finally {
+      if (progressReporter != null) {
+        progressReporter.reportProgress(Progress.reportEnd());
       }
     }
+  }
+
+  /**
+   * Creates FHIR resources based on data that is streamed from the source. Each row is transformed as soon as it is
+   * received, so the source data is never held in memory. Returns a map, indexed by resource id.
+   *
+   * @param source The source of the data.
+   * @param progressReporter Used to report progress.
+   * @param cancelToken Used to check if the user has canceled the operation.
+   * @return The map of created resources, indexed by resource id.
+   */
+  public Map<String, DomainResource> transform(RowSource source, ProgressReporter progressReporter,
+                                               CancelChecker cancelToken) throws TransformationException {
+    GraphUtils.Results res = buildGraph();
 
     if (cancelToken != null && cancelToken.isCanceled()) {
       throw new TransformationException("Transformation canceled!");
@@ -109,13 +163,22 @@ public class FhirExporter {
       }
 
       RedcapVisitor visitor = new RedcapVisitor(doc, res.getUniqueIds(), helper, terminologyService,
-        defaultFhirPackage, rows, progressReporter, cancelToken);
+        defaultFhirPackage, progressReporter, cancelToken, parallelism);
+      try {
+        source.forEachRow(row -> {
+          if (cancelToken != null && cancelToken.isCanceled()) {
+            throw new TransformationException("Transformation canceled!");
+          }
+          visitor.visit(row);
+        });
+        visitor.finish();
+      } finally {
+        visitor.shutdown();
+      }
       fhirResourceMap.putAll(visitor.getFhirResourceMap());
 
       // Prune resources to get rid of empty values in lists
-      for (DomainResource c : fhirResourceMap.values()) {
-        prune(c);
-      }
+      pruneAll(fhirResourceMap.values());
 
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportProgress(100));
@@ -129,75 +192,85 @@ public class FhirExporter {
     }
   }
 
+  private GraphUtils.Results buildGraph() {
+    final String uniqueField = doc.getSchema().getUniqueFieldId();
+    log.info("Transforming Redmatch project using unique field " + uniqueField);
+
+    log.debug("Building graph to determine which resources are created by patient and which are not");
+    GraphUtils.Results res = GraphUtils.buildGraph(doc);
+    if (!res.getDiagnostics().isEmpty()) {
+      boolean hasErrors = false;
+      StringBuilder sb = new StringBuilder();
+      for(Diagnostic d : res.getDiagnostics()) {
+        if (d.getSeverity().equals(DiagnosticSeverity.Error)) {
+          hasErrors = true;
+          sb.append(d.getMessage());
+          sb.append(System.lineSeparator());
+        }
+      }
+      if (hasErrors) {
+        throw new TransformationException(sb.toString());
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Prunes all the resources. Resources are pruned in parallel if the parallelism is greater than one.
+   *
+   * @param resources The resources to prune.
+   */
+  private void pruneAll(Collection<DomainResource> resources) {
+    if (parallelism == 1 || resources.size() < 2) {
+      for (DomainResource c : resources) {
+        prune(c);
+      }
+      return;
+    }
 
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.submit(() -> resources.parallelStream().forEach(this::prune)).join();
+    } finally {
+      pool.shutdown();
+    }
+  }
 
   /**
-   * Removes any empty attributes that might have been created because of the rules.
+   * Removes any empty attributes that might have been created because of the rules. Uses the cached
+   * {@link AccessorTable} of each class, so classes are only introspected once.
    * 
    * @param base The resource to prune.
    */
-  @SuppressWarnings({ "unchecked", "rawtypes" })
+  @SuppressWarnings("rawtypes")
   private void prune(Base base) {
     log.trace("Pruning " + base);
-    // Find attributes where values are set
-    final Set<String> setAttrs = new HashSet<>();
-    Class<? extends Base> c = base.getClass();
-    for (Method m : c.getMethods()) {
-      try {
-        String methodName = m.getName();
-        if (!methodName.equals("hasPrimitiveValue")
-          && methodName.startsWith("has")
-          && Character.isUpperCase(methodName.charAt(3))
-          && m.getParameterCount() == 0
-          && ((Boolean) m.invoke(base, new Object[0]))) {
-          setAttrs.add(m.getName().substring(3));
+    try {
+      for (AccessorTable.Accessor accessor : AccessorTable.forClass(base.getClass()).getAccessors()) {
+        // Find attributes where values are set
+        final String name = accessor.getName();
+        if (name.isEmpty() || !Character.isUpperCase(name.charAt(0)) || name.equals("PrimitiveValue")
+          || !((Boolean) accessor.getHasMethod().invoke(base))) {
+          continue;
         }
-      } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-        throw new TransformationException("There was a reflection issue while pruning resources.", e);
-      }
-    }
-    log.trace("The following attributes are set: " + setAttrs);
 
-    // Get set attributes with multiplicity > 1
-    final Set<String> multSetAttrs = new HashSet<>();
-    for (Method m : c.getMethods()) {
-      if (m.getName().startsWith("add") && setAttrs.contains(m.getName().substring(3))) {
-        multSetAttrs.add(m.getName().substring(3));
-      }
-    }
-    log.trace("The following attributes with multiplicity > 1 are set: " + multSetAttrs);
+        final Method getMethod = accessor.getGetMethod();
+        if (getMethod == null) {
+          throw new TransformationException("There was a reflection issue while pruning resources.",
+            new NoSuchMethodException(base.getClass().getName() + ".get" + name + "()"));
+        }
+        final Object o = getMethod.invoke(base);
 
-    // Prune those attributes
-    log.trace("Pruning attributes with multiplicity > 1");
-    for (String att : multSetAttrs) {
-      try {
-        List<Base> list = (List<Base>) c.getMethod("get" + att).invoke(base,
-            new Object[0]);
-        List<Base> toDelete = new ArrayList<>();
-        for (Base b : list) {
-          if (b.isEmpty()) {
-            toDelete.add(b);
-          }
+        if (accessor.isMultiple() && o instanceof List) {
+          // Prune empty values in attributes with multiplicity > 1
+          ((List<?>) o).removeIf(b -> ((Base) b).isEmpty());
         }
-        list.removeAll(toDelete);
-      } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException
-          | NoSuchMethodException | SecurityException e) {
-        throw new TransformationException("There was a reflection issue while pruning resources.", e);
-      }
-    }
 
-    // Prune recursively - call the method for every attribute that is set and is not a primitive
-    // type
-    log.trace("Pruning recursively");
-    for (String attr : setAttrs) {
-      try {
-        log.trace("Invoking method get" + attr + " on " + base);
-        Object o = c.getMethod("get" + attr).invoke(base);
-        log.trace("Got object of type " + o.getClass());
+        // Prune recursively - every attribute that is set and is not a primitive type
         if (o instanceof Base) {
           Base b = (Base) o;
           if (!helper.isPrimitive(b.getClass())) {
-            prune((Base) o);
+            prune(b);
           }
         } else if (o instanceof List) {
           for (Object oo : (List) o) {
@@ -206,9 +279,9 @@ public class FhirExporter {
             }
           }
         }
-      } catch (NoSuchMethodException | SecurityException | IllegalAccessException | InvocationTargetException e) {
-        throw new TransformationException("There was a reflection issue while pruning resources.", e);
       }
+    } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+      throw new TransformationException("There was a reflection issue while pruning resources.", e);
     }
   }
 }
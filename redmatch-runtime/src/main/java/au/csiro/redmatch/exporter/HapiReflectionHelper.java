@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.lang.reflect.Type;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Helper class to do reflection with the FHIR HAPI API.
@@ -45,6 +46,31 @@ public class HapiReflectionHelper {
   private final VersionedFhirPackage defaultFhirPackage;
 
   private final TerminologyService terminologyService;
+
+  /**
+   * Cache of the methods returned by {@link #findMethod(String, String, int, Class)}. Values are either a
+   * {@link Method} or the exception that was thrown when looking it up.
+   */
+  private final Map<AccessorKey, Object> methodCache = new ConcurrentHashMap<>();
+
+  /**
+   * Cache of the methods returned by
+   * {@link #getSetMethod(Class, String, Class, boolean, boolean)}. Values are either a {@link Method} or the exception
+   * that was thrown when looking it up.
+   */
+  private final Map<AccessorKey, Object> setMethodCache = new ConcurrentHashMap<>();
+
+  /**
+   * Cache of the fields returned by {@link #getField(Class, String)}. Values are either a {@link Field} or the
+   * exception that was thrown when looking it up.
+   */
+  private final Map<AccessorKey, Object> fieldCache = new ConcurrentHashMap<>();
+
+  /**
+   * Cache of the FHIR type suffixes of attribute names, e.g., CodeableConcept for valueCodeableConcept. Attributes
+   * with no type suffix map to an empty string.
+   */
+  private final Map<String, String> typeSuffixCache = new ConcurrentHashMap<>();
   
   /**
    * Sets the FHIR context.
@@ -114,34 +140,53 @@ public class HapiReflectionHelper {
   }
 
   /**
-   * Finds or creates the element where we are going to set a value.
-   * 
-   * @param resource The resource that contains the element.
+   * Returns the extension urls of the attributes in a path. These are looked up in the terminology service, so this
+   * should be done once per path and not every time a value is set.
+   *
    * @param attributes The list of attributes that point at the element where a value is going to be set.
    * @param fhirPackage The FHIR package specified in the rules document. Needed to replace extension names.
    * @param originalResourceType The resource type in the rules. This can be a profile name, so it can be different from
-   *    *                        the actual FHIR resource type.
-   * @return The element.
+   *                             the actual FHIR resource type.
+   * @return A list with the extension url of each attribute, or null for attributes that are not profiled extensions.
    */
-  public Base getElementToSet(DomainResource resource, List<Attribute> attributes, VersionedFhirPackage fhirPackage,
-                              String originalResourceType)
-    throws NoSuchFieldException, NoSuchMethodException, ClassNotFoundException, IllegalAccessException,
-    IllegalArgumentException, InvocationTargetException, IOException {
-
+  public List<String> getExtensionUrls(List<Attribute> attributes, VersionedFhirPackage fhirPackage,
+                                       String originalResourceType) throws IOException {
     // Used to get information about the attributes from the terminology service
     StringBuilder sb = new StringBuilder();
     sb.append(originalResourceType);
 
-    Base theElement = resource;
+    List<String> res = new ArrayList<>(attributes.size());
     for (Attribute att : attributes) {
-      final String attName = att.getName();
-      final boolean isList = att.isList();
-
       // Check the current attribute path to see if it is an extension - we need to treat extensions differently
       sb.append(".");
-      sb.append(attName);
+      sb.append(att.getName());
       CodeInfo codeInfo = terminologyService.lookup(fhirPackage, sb.toString());
-      String extensionUrl = codeInfo.getExtensionUrl();
+      res.add(codeInfo.getExtensionUrl());
+    }
+    return res;
+  }
+
+  /**
+   * Finds or creates the element where we are going to set a value.
+   * 
+   * @param resource The resource that contains the element.
+   * @param attributes The list of attributes that point at the element where a value is going to be set.
+   * @param extensionUrls The extension urls of the attributes, as returned by
+   *                      {@link #getExtensionUrls(List, VersionedFhirPackage, String)}.
+   * @return The element.
+   */
+  public Base getElementToSet(DomainResource resource, List<Attribute> attributes, List<String> extensionUrls)
+    throws NoSuchFieldException, NoSuchMethodException, ClassNotFoundException, IllegalAccessException,
+    IllegalArgumentException, InvocationTargetException {
+
+    Base theElement = resource;
+    for (int i = 0; i < attributes.size(); i++) {
+      final Attribute att = attributes.get(i);
+      final String attName = att.getName();
+      final boolean isList = att.isList();
+
+      // Extensions are treated differently
+      String extensionUrl = extensionUrls.get(i);
       if (extensionUrl != null) {
         // This is a profiled extension, so we set the url attribute based on the information in the profile
         List<?> list = (List<?>) invokeGetter(theElement, "extension");
@@ -203,19 +248,35 @@ public class HapiReflectionHelper {
    *         value[x].
    */
   public String getGenericAttributeName(String attributeName) {
-    for (String suffix : fhirBasicTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return attributeName.substring(0, attributeName.length() - suffix.length());
-      }
+    String suffix = getTypeSuffix(attributeName);
+    if (suffix.isEmpty()) {
+      return null;
     }
+    return attributeName.substring(0, attributeName.length() - suffix.length());
+  }
 
-    for (String suffix : fhirComplexTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return attributeName.substring(0, attributeName.length() - suffix.length());
+  /**
+   * Returns the FHIR type suffix of an attribute name, e.g., CodeableConcept for valueCodeableConcept. Basic types are
+   * checked first, and longer suffixes before shorter ones.
+   *
+   * @param attributeName The attribute name.
+   * @return The suffix or an empty string if the attribute name does not end with a FHIR type.
+   */
+  private String getTypeSuffix(String attributeName) {
+    return typeSuffixCache.computeIfAbsent(attributeName, k -> {
+      for (String suffix : fhirBasicTypes) {
+        if (attributeName.endsWith(suffix)) {
+          return suffix;
+        }
       }
-    }
 
-    return null;
+      for (String suffix : fhirComplexTypes) {
+        if (attributeName.endsWith(suffix)) {
+          return suffix;
+        }
+      }
+      return "";
+    });
   }
   
   /**
@@ -324,7 +385,23 @@ public class HapiReflectionHelper {
    * @throws NoSuchFieldException If the field cannot be found.
    */
   public Field getField(Class<? extends Base> c, String att) throws NoSuchFieldException {
-    
+    AccessorKey key = new AccessorKey(c, att, "field", 0, null, false, false);
+    Object cached = fieldCache.get(key);
+    if (cached == null) {
+      try {
+        cached = doGetField(c, att);
+      } catch (NoSuchFieldException e) {
+        cached = e;
+      }
+      fieldCache.putIfAbsent(key, cached);
+    }
+    if (cached instanceof NoSuchFieldException) {
+      throw (NoSuchFieldException) cached;
+    }
+    return (Field) cached;
+  }
+
+  private Field doGetField(Class<? extends Base> c, String att) throws NoSuchFieldException {
     // Special case: attributes that are named using Java reserved words, e.g. Encounter.class
     att = handleAttributeName(att);
     
@@ -378,55 +455,23 @@ public class HapiReflectionHelper {
   @SuppressWarnings("unchecked")
   public Class<? extends Base> getValueXAttributeType(String attributeName) 
       throws ClassNotFoundException {
-    for (String suffix : fhirBasicTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return (Class<? extends Base>) Class.forName(
-            HapiReflectionHelper.FHIR_TYPES_BASE_PACKAGE + "."
-            + attributeName.substring(attributeName.length() - suffix.length()) + "Type");
-      }
-    }
-
-    for (String suffix : fhirComplexTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return (Class<? extends Base>) Class.forName(
-            HapiReflectionHelper.FHIR_TYPES_BASE_PACKAGE + "."
-            + attributeName.substring(attributeName.length() - suffix.length()));
-      }
+    String suffix = getTypeSuffix(attributeName);
+    if (suffix.isEmpty()) {
+      return null;
     }
-    return null;
+    // Basic types are implemented by classes with a Type suffix, e.g. StringType
+    return (Class<? extends Base>) Class.forName(
+        HapiReflectionHelper.FHIR_TYPES_BASE_PACKAGE + "." + suffix
+        + (fhirBasicTypes.contains(suffix) ? "Type" : ""));
   }
   
   private boolean isValueXType(String attributeName) {
-    for (String suffix : fhirBasicTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return true;
-      }
-    }
-
-    for (String suffix : fhirComplexTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return true;
-      }
-    }
-    return false;
+    return !getTypeSuffix(attributeName).isEmpty();
   }
   
   private String removeValueX(String attributeName) {
-    if (!isValueXType(attributeName)) {
-      return attributeName;
-    }
-    for (String suffix : fhirBasicTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return attributeName.substring(0, attributeName.length() - suffix.length());
-      }
-    }
-
-    for (String suffix : fhirComplexTypes) {
-      if (attributeName.endsWith(suffix)) {
-        return attributeName.substring(0, attributeName.length() - suffix.length());
-      }
-    }
-    throw new RuntimeException("Should never get here!");
+    String suffix = getTypeSuffix(attributeName);
+    return attributeName.substring(0, attributeName.length() - suffix.length());
   }
   
   /**
@@ -460,6 +505,24 @@ public class HapiReflectionHelper {
   public Method getSetMethod(Class<?extends Base> resourceClass, String attributeName, 
       Class<? extends Base> valueClass, boolean isList, boolean isValueX) 
           throws NoSuchMethodException {
+    AccessorKey key = new AccessorKey(resourceClass, attributeName, "set", 1, valueClass, isList, isValueX);
+    Object cached = setMethodCache.get(key);
+    if (cached == null) {
+      try {
+        cached = doGetSetMethod(resourceClass, attributeName, valueClass, isList, isValueX);
+      } catch (NoSuchMethodException e) {
+        cached = e;
+      }
+      setMethodCache.putIfAbsent(key, cached);
+    }
+    if (cached instanceof NoSuchMethodException) {
+      throw (NoSuchMethodException) cached;
+    }
+    return (Method) cached;
+  }
+
+  private Method doGetSetMethod(Class<?extends Base> resourceClass, String attributeName,
+      Class<? extends Base> valueClass, boolean isList, boolean isValueX) throws NoSuchMethodException {
     if (isValueX) {
       attributeName = this.removeValueX(attributeName);
     }
@@ -520,11 +583,10 @@ public class HapiReflectionHelper {
   }
   
   /**
-   * Find a method in a class.
+   * Find a method in a class. Results are cached by class, attribute, prefix and number of parameters.
    * 
    * @param prefix get or has (set is not supported).
    */
-  @SuppressWarnings("unchecked")
   private Method findMethod(String prefix, String attributeName, int numParams, Class<? extends Base> resourceClass)
           throws NoSuchMethodException, NoSuchFieldException, ClassNotFoundException {
 
@@ -533,6 +595,30 @@ public class HapiReflectionHelper {
         + "was '" + prefix + "'");
     }
 
+    AccessorKey key = new AccessorKey(resourceClass, attributeName, prefix, numParams, null, false, false);
+    Object cached = methodCache.get(key);
+    if (cached == null) {
+      try {
+        cached = doFindMethod(prefix, attributeName, numParams, resourceClass);
+      } catch (NoSuchMethodException | NoSuchFieldException | ClassNotFoundException e) {
+        cached = e;
+      }
+      methodCache.putIfAbsent(key, cached);
+    }
+    if (cached instanceof NoSuchMethodException) {
+      throw (NoSuchMethodException) cached;
+    } else if (cached instanceof NoSuchFieldException) {
+      throw (NoSuchFieldException) cached;
+    } else if (cached instanceof ClassNotFoundException) {
+      throw (ClassNotFoundException) cached;
+    }
+    return (Method) cached;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Method doFindMethod(String prefix, String attributeName, int numParams, Class<? extends Base> resourceClass)
+    throws NoSuchMethodException, NoSuchFieldException, ClassNotFoundException {
+
     // Need to get the method name - this depends on the attribute
     String methodName = prefix + attributeName;
     Class<?> c = getField(resourceClass, attributeName).getType();
@@ -607,4 +693,43 @@ public class HapiReflectionHelper {
     return PrimitiveType.class.isAssignableFrom(c);
   }
 
+  /**
+   * Key used to cache reflective lookups.
+   */
+  private static final class AccessorKey {
+    private final Class<?> type;
+    private final String attributeName;
+    private final String kind;
+    private final int numParams;
+    private final Class<?> valueClass;
+    private final boolean isList;
+    private final boolean isValueX;
+
+    AccessorKey(Class<?> type, String attributeName, String kind, int numParams, Class<?> valueClass, boolean isList,
+                boolean isValueX) {
+      this.type = type;
+      this.attributeName = attributeName;
+      this.kind = kind;
+      this.numParams = numParams;
+      this.valueClass = valueClass;
+      this.isList = isList;
+      this.isValueX = isValueX;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      AccessorKey that = (AccessorKey) o;
+      return numParams == that.numParams && isList == that.isList && isValueX == that.isValueX
+        && type.equals(that.type) && attributeName.equals(that.attributeName) && kind.equals(that.kind)
+        && Objects.equals(valueClass, that.valueClass);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(type, attributeName, kind, numParams, valueClass, isList, isValueX);
+    }
+  }
+
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import au.csiro.redmatch.util.FhirSerializer;
+import au.csiro.redmatch.util.Progress;
+import au.csiro.redmatch.util.ProgressReporter;
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.hl7.fhir.r4.model.DomainResource;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes FHIR resources to NDJSON files, one file per resource type. Resources are serialised in parallel and the
+ * files of different types are written concurrently. Files are always encoded in UTF-8 and can optionally be gzipped.
+ * Each file is first written to a temporary file in the target folder and then renamed, so readers never see partial
+ * files. Resources are written in the order they are provided.
+ * <p>
+ * The writer does not stream. It receives all the resources at once, so the whole output has to fit in the heap.
+ * This is a limitation of the exporter, which keeps every resource in a map until the end of the transformation
+ * because resources created from different records can be merged into one, e.g., unique resources.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class NdjsonWriter {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(NdjsonWriter.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FhirSerializer serializer;
+
+  private final int parallelism;
+
+  private final boolean gzip;
+
+  /**
+   * Constructor.
+   *
+   * @param ctx The FHIR context.
+   * @param parallelism The number of threads used to serialise and write resources.
+   * @param gzip If true the files are gzipped and use the .ndjson.gz extension.
+   */
+  public NdjsonWriter(FhirContext ctx, int parallelism, boolean gzip) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
+    this.serializer = FhirSerializer.forContext(ctx);
+    this.parallelism = parallelism;
+    this.gzip = gzip;
+  }
+
+  /**
+   * Writes the resources to the target folder. Existing files are replaced, and so are files of the same type with
+   * the other extension, e.g., Patient.ndjson is deleted when Patient.ndjson.gz is written. If the operation is
+   * cancelled then the files of the types that have not been completely written are left untouched.
+   *
+   * @param resources The resources to write.
+   * @param tgtDir The target folder.
+   * @param progressReporter An object used to report progress. Can be null.
+   * @param cancelToken Used to check if the user has cancelled the operation. Can be null.
+   * @return The files that were written.
+   * @throws IOException If there is a problem writing the files.
+   */
+  public List<Path> write(Collection<? extends DomainResource> resources, Path tgtDir,
+                          ProgressReporter progressReporter, CancelChecker cancelToken) throws IOException {
+    // Group resources by type, keeping the original order
+    final Map<String, List<DomainResource>> grouped = new LinkedHashMap<>();
+    for (DomainResource dr : resources) {
+      grouped.computeIfAbsent(dr.getResourceType().toString(), k -> new ArrayList<>()).add(dr);
+    }
+
+    final List<Path> res = new ArrayList<>();
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      final List<Future<Path>> futures = new ArrayList<>();
+      for (Map.Entry<String, List<DomainResource>> entry : grouped.entrySet()) {
+        futures.add(pool.submit(() -> writeType(entry.getKey(), entry.getValue(), tgtDir, cancelToken)));
+      }
+
+      double div = grouped.size() / 100.0;
+      int i = 0;
+      for (Future<Path> future : futures) {
+        Path p = waitFor(future);
+        if (p != null) {
+          res.add(p);
+        }
+        i++;
+        if (progressReporter != null) {
+          progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
+        }
+      }
+      return res;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Writes all the resources of one type.
+   *
+   * @return The written file or null if the operation was cancelled.
+   */
+  private Path writeType(String resourceType, List<DomainResource> resources, Path tgtDir, CancelChecker cancelToken)
+    throws IOException {
+    final Path target = tgtDir.resolve(resourceType + (gzip ? ".ndjson.gz" : ".ndjson"));
+    // Files.createTempFile only gives the owner access, and the renamed file would keep those permissions
+    final Path tmp = tgtDir.resolve("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    boolean committed = false;
+    try {
+      try (OutputStream os = open(tmp)) {
+        // Serialisation runs in parallel but lines are written in order
+        resources.parallelStream().map(serializer::encodeToBytes).forEachOrdered(line -> {
+          if (cancelToken != null && cancelToken.isCanceled()) {
+            throw new CancellationException();
+          }
+          try {
+            os.write(line);
+            os.write('\n');
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (CancellationException e) {
+        log.info("Writing " + resourceType + " resources was cancelled");
+        return null;
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      move(tmp, target);
+      committed = true;
+      // Otherwise the output of a previous run with a different gzip setting would be left behind
+      Files.deleteIfExists(tgtDir.resolve(resourceType + (gzip ? ".ndjson" : ".ndjson.gz")));
+      log.debug("Wrote " + resources.size() + " resources to " + target);
+      return target;
+    } finally {
+      if (!committed) {
+        Files.deleteIfExists(tmp);
+      }
+    }
+  }
+
+  private OutputStream open(Path p) throws IOException {
+    OutputStream os = Files.newOutputStream(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    if (gzip) {
+      os = new GZIPOutputStream(os, BUFFER_SIZE);
+    }
+    return new BufferedOutputStream(os, BUFFER_SIZE);
+  }
+
+  private void move(Path src, Path tgt) throws IOException {
+    try {
+      Files.move(src, tgt, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      log.debug("Atomic moves are not supported, falling back to a regular move");
+      Files.move(src, tgt, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private Path waitFor(Future<Path> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing resources.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else {
+        throw new IOException("There was a problem writing resources.", cause);
+      }
+    }
+  }
+}
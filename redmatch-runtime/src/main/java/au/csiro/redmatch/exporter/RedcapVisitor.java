@@ -5,7 +5,6 @@
 package au.csiro.redmatch.exporter;
 
 import au.csiro.redmatch.compiler.*;
-import au.csiro.redmatch.compiler.ConditionNode.ConditionNodeOperator;
 import au.csiro.redmatch.compiler.Schema;
 import au.csiro.redmatch.model.*;
 import au.csiro.redmatch.terminology.TerminologyService;
@@ -20,8 +19,12 @@ import org.eclipse.lsp4j.jsonrpc.CancelChecker;
 import org.hl7.fhir.r4.model.DomainResource;
 import org.jgrapht.Graph;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Visitor implementation for a REDCap data source. Visits {@link Rule}s and retrieves the resources that need to be
@@ -34,48 +37,106 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
   /** Logger. */
   private static final Log log = LogFactory.getLog(RedcapVisitor.class);
 
+  /**
+   * The number of rows evaluated together when streaming. The condition evaluator builds its indexes once per batch.
+   */
+  private static final int ROWS_PER_BATCH = 64;
+
   private final au.csiro.redmatch.model.Schema schema;
   private final List<PatientData> patientData = new ArrayList<>();
   private final Map<String, DomainResource> fhirResourceMap = new HashMap<>();
   private final VersionedFhirPackage defaultFhirPackage;
   private final ProgressReporter progressReporter;
   private final CancelChecker cancelToken;
+  /**
+   * Bodies whose resources do not depend on patient data and have already been created. Used to avoid creating them
+   * more than once when the rules are evaluated one patient at a time.
+   */
+  private final Set<Body> visitedDataFreeBodies = Collections.newSetFromMap(new IdentityHashMap<>());
+  /**
+   * The number of threads used to create resources that depend on patient data. If 1, resources are created on the
+   * calling thread.
+   */
+  private final int parallelism;
+  /**
+   * The pool used to create resources in parallel. Null if parallelism is 1.
+   */
+  private final ForkJoinPool pool;
+  /**
+   * Rows that have been received when streaming but have not been evaluated yet.
+   */
+  private final List<PatientData> batch = new ArrayList<>();
+  /**
+   * Batches of rows that are being processed in parallel when streaming, in the order the rows were received.
+   */
+  private final Deque<PendingBatch> inFlight = new ArrayDeque<>();
 
+  /**
+   * Creates a visitor that processes rows as they are received through {@link #visit(Row)}. {@link #finish()} must be
+   * called once all the rows have been visited.
+   */
   public RedcapVisitor(Document doc, Set<String> uniqueIds, HapiReflectionHelper hapiReflectionHelper,
-                     TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage, List<Row> rows,
+                       TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage,
                        ProgressReporter progressReporter, CancelChecker cancelToken) {
+    this(doc, uniqueIds, hapiReflectionHelper, terminologyService, defaultFhirPackage, progressReporter, cancelToken,
+      1);
+  }
+
+  /**
+   * Creates a visitor that processes rows as they are received through {@link #visit(Row)}. {@link #finish()} must be
+   * called once all the rows have been visited. If parallelism is greater than 1, {@link #shutdown()} must be called
+   * when the visitor is no longer needed.
+   *
+   * @param parallelism The number of threads used to create the resources of the patients.
+   */
+  public RedcapVisitor(Document doc, Set<String> uniqueIds, HapiReflectionHelper hapiReflectionHelper,
+                       TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage,
+                       ProgressReporter progressReporter, CancelChecker cancelToken, int parallelism) {
     super(doc, uniqueIds, hapiReflectionHelper, terminologyService);
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be greater than zero but was " + parallelism + ".");
+    }
     this.defaultFhirPackage = defaultFhirPackage;
     this.schema = doc.getSchema();
     this.progressReporter = progressReporter;
     this.cancelToken = cancelToken;
+    this.parallelism = parallelism;
+    if (parallelism > 1) {
+      warmUp();
+      this.pool = new ForkJoinPool(parallelism);
+    } else {
+      this.pool = null;
+    }
+  }
+
+  public RedcapVisitor(Document doc, Set<String> uniqueIds, HapiReflectionHelper hapiReflectionHelper,
+                     TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage, List<Row> rows,
+                       ProgressReporter progressReporter, CancelChecker cancelToken) {
+    this(doc, uniqueIds, hapiReflectionHelper, terminologyService, defaultFhirPackage, rows, progressReporter,
+      cancelToken, 1);
+  }
+
+  /**
+   * Creates a visitor and transforms all the rows.
+   *
+   * @param parallelism The number of threads used to create the resources of the patients.
+   */
+  public RedcapVisitor(Document doc, Set<String> uniqueIds, HapiReflectionHelper hapiReflectionHelper,
+                       TerminologyService terminologyService, VersionedFhirPackage defaultFhirPackage, List<Row> rows,
+                       ProgressReporter progressReporter, CancelChecker cancelToken, int parallelism) {
+    this(doc, uniqueIds, hapiReflectionHelper, terminologyService, defaultFhirPackage, progressReporter, cancelToken,
+      parallelism);
 
     // Populate patient data from rows - this will be different for other sources
     if (progressReporter != null) {
       progressReporter.reportProgress(Progress.reportStart("Populating patient data"));
     }
-    final String uniqueField = doc.getSchema().getUniqueFieldId();
 
     int totalRows = rows.size();
     double div = totalRows / 100.0;
 
     for (int i = 0; i < rows.size(); i++) {
-      Row row = rows.get(i);
-      Graph<JsonElement, LabeledEdge> data = row.getData();
-
-      // Find recordId
-      JsonObject patientVertex = findPatientVertex(data);
-      assert patientVertex != null;
-      String recordId = patientVertex.get(uniqueField).getAsString();
-      PatientData patientDatum = new PatientData(recordId);
-
-      for (JsonElement jsonElement : data.vertexSet()) {
-        if (jsonElement.isJsonObject()) {
-          JsonObject jsonObject = jsonElement.getAsJsonObject();
-          patientDatum.addObject(jsonObject);
-        }
-      }
-      patientData.add(patientDatum);
+      patientData.add(toPatientData(rows.get(i)));
 
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i / div)));
@@ -88,7 +149,122 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
       progressReporter.reportProgress(Progress.reportEnd());
     }
 
-    visit(doc);
+    try {
+      visit(doc);
+    } finally {
+      shutdown();
+    }
+  }
+
+  /**
+   * Looks up the resource types used in the document before any work is done in parallel. The terminology service
+   * opens its indexes lazily and this ensures that happens on a single thread.
+   */
+  private void warmUp() {
+    VersionedFhirPackage fhirPackage = getFhirPackage(doc);
+    for (Rule rule : doc.getRules()) {
+      for (Resource resource : rule.getResources()) {
+        // A single lookup is enough to open the index of the package
+        try {
+          terminologyService.lookup(fhirPackage, resource.getResourceType());
+        } catch (IOException e) {
+          throw new TransformationException("Unable to lookup information about resource "
+            + resource.getResourceType(), e);
+        }
+        return;
+      }
+    }
+  }
+
+  private PatientData toPatientData(Row row) {
+    final String uniqueField = schema.getUniqueFieldId();
+    Graph<JsonElement, LabeledEdge> data = row.getData();
+
+    // Find recordId
+    JsonObject patientVertex = findPatientVertex(data);
+    assert patientVertex != null;
+    String recordId = patientVertex.get(uniqueField).getAsString();
+    PatientData patientDatum = new PatientData(recordId);
+
+    for (JsonElement jsonElement : data.vertexSet()) {
+      if (jsonElement.isJsonObject()) {
+        JsonObject jsonObject = jsonElement.getAsJsonObject();
+        patientDatum.addObject(jsonObject);
+      }
+    }
+    return patientDatum;
+  }
+
+  /**
+   * Evaluates all the rules against the data of a single patient. Rows are evaluated in small batches, so only the
+   * rows of the current batch are kept in memory. The row can be discarded once this method returns.
+   *
+   * @param row The data of a patient.
+   */
+  public void visit(Row row) {
+    checkSchemaType(doc);
+    batch.add(toPatientData(row));
+    if (batch.size() >= ROWS_PER_BATCH) {
+      visitBatch();
+    }
+  }
+
+  private void visitBatch() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(schema, new ArrayList<>(batch));
+    batch.clear();
+    if (pool == null) {
+      for (Rule rule : doc.getRules()) {
+        visit(rule, evaluator, evaluator.allPatients(), null);
+      }
+    } else {
+      // Conditions are evaluated here and the resources are created in the pool. Results are merged in the order the
+      // rows were received and only a bounded number of batches are kept in flight.
+      List<PendingBody> pending = new ArrayList<>();
+      for (Rule rule : doc.getRules()) {
+        visit(rule, evaluator, evaluator.allPatients(), pending);
+      }
+      int numPatients = evaluator.getNumPatients();
+      inFlight.add(new PendingBatch(pending, pool.submit(() -> createResources(evaluator, pending, 0, numPatients))));
+      while (inFlight.size() > parallelism * 2) {
+        PendingBatch done = inFlight.remove();
+        mergeResources(done.pending, List.of(waitFor(done.resources)));
+      }
+    }
+  }
+
+  /**
+   * Completes a streaming transformation. Evaluates the rows that have not been evaluated yet and creates any resources
+   * that do not depend on patient data and that have not been created yet, e.g., because no rows were visited.
+   */
+  public void finish() {
+    checkSchemaType(doc);
+    if (!batch.isEmpty()) {
+      visitBatch();
+    }
+    while (!inFlight.isEmpty()) {
+      PendingBatch done = inFlight.remove();
+      mergeResources(done.pending, List.of(waitFor(done.resources)));
+    }
+    ConditionEvaluator evaluator = new ConditionEvaluator(schema, Collections.emptyList());
+    for (Rule rule : doc.getRules()) {
+      visit(rule, evaluator, evaluator.allPatients(), null);
+    }
+  }
+
+  /**
+   * Releases the threads used to create resources in parallel.
+   */
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  private void checkSchemaType(Document document) {
+    au.csiro.redmatch.model.Schema.SchemaType schemaType = document.getSchema().getSchemaType();
+    if (!schemaType.equals(au.csiro.redmatch.model.Schema.SchemaType.REDCAP)) {
+      throw new TransformationException("Expected a REDCap schema but got " + schemaType);
+    }
   }
 
   public Map<String, DomainResource> getFhirResourceMap() {
@@ -105,9 +281,13 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
       int totalRows = document.getRules().size();
       double div = totalRows / 100.0;
       int i = 1;
+      // The evaluator is shared by all rules so the indexes over the patient data are only built once
+      ConditionEvaluator evaluator = new ConditionEvaluator(schema, patientData);
+      // When running in parallel, resources are created once all rules are evaluated
+      List<PendingBody> pending = pool != null ? new ArrayList<>() : null;
       for (Rule rule : document.getRules()) {
         log.debug("Evaluating rule in document " + rule.toStringShort());
-        visit(rule, patientData);
+        visit(rule, evaluator, evaluator.allPatients(), pending);
         if (progressReporter != null) {
           progressReporter.reportProgress(Progress.reportProgress((int) Math.floor(i++ / div)));
         }
@@ -115,6 +295,9 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
           return;
         }
       }
+      if (pending != null) {
+        createResourcesInParallel(evaluator, pending);
+      }
       if (progressReporter != null) {
         progressReporter.reportProgress(Progress.reportEnd());
       }
@@ -123,209 +306,138 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
     }
   }
 
-  private List<PatientData> filter(List<PatientData> patientData, Condition condition) {
-    List<PatientData> res = new ArrayList<>();
-    for (PatientData patientDatum : patientData) {
-      boolean matchesAny = false;
-      for (JsonObject object : patientDatum.getObjects()) {
-        if (evaluate(condition, object)) {
-          matchesAny = true;
-          break;
+  public void visit(Rule rule, List<PatientData> patientData) {
+    ConditionEvaluator evaluator = new ConditionEvaluator(schema, patientData);
+    visit(rule, evaluator, evaluator.allPatients(), null);
+  }
+
+  /**
+   * Creates the resources of the pending bodies in parallel. The patients are split into partitions and each
+   * partition is processed by a separate task.
+   *
+   * @param evaluator The evaluator that contains all the patients.
+   * @param pending The bodies that need resources created, in the order they were visited.
+   */
+  private void createResourcesInParallel(ConditionEvaluator evaluator, List<PendingBody> pending) {
+    int numPatients = evaluator.getNumPatients();
+    // Use more partitions than threads to balance the load
+    int partitionSize = Math.max(1, (int) Math.ceil(numPatients / (parallelism * 4.0)));
+    List<Future<List<List<Map<String, DomainResource>>>>> futures = new ArrayList<>();
+    for (int start = 0; start < numPatients; start += partitionSize) {
+      final int from = start;
+      final int to = Math.min(start + partitionSize, numPatients);
+      futures.add(pool.submit(() -> createResources(evaluator, pending, from, to)));
+    }
+    List<List<List<Map<String, DomainResource>>>> partitions = new ArrayList<>();
+    for (Future<List<List<Map<String, DomainResource>>>> future : futures) {
+      partitions.add(waitFor(future));
+    }
+    mergeResources(pending, partitions);
+  }
+
+  /**
+   * Creates the resources of the pending bodies that require patient data, for a range of patients. The resources of
+   * each body and patient are kept separately so they can be merged in the same order as in a sequential run.
+   *
+   * @param evaluator The evaluator that contains the patients.
+   * @param pending The bodies that need resources created, in the order they were visited.
+   * @param from The index of the first patient, inclusive.
+   * @param to The index of the last patient, exclusive.
+   * @return For each pending body, the resources created for each of its patients in the range, in patient order.
+   */
+  private List<List<Map<String, DomainResource>>> createResources(ConditionEvaluator evaluator,
+                                                                  List<PendingBody> pending, int from, int to) {
+    List<List<Map<String, DomainResource>>> res = new ArrayList<>();
+    for (PendingBody pendingBody : pending) {
+      List<Map<String, DomainResource>> bodyResources = new ArrayList<>();
+      if (pendingBody.patients != null) {
+        BitSet patients = pendingBody.patients;
+        for (int i = patients.nextSetBit(from); i >= 0 && i < to; i = patients.nextSetBit(i + 1)) {
+          if(cancelToken != null && cancelToken.isCanceled()) {
+            throw new TransformationException("Transformation canceled!");
+          }
+          Map<String, DomainResource> patientResources = new LinkedHashMap<>();
+          createResources(pendingBody.body, evaluator.getPatient(i), patientResources);
+          bodyResources.add(patientResources);
         }
       }
-      if (matchesAny) {
-        res.add(patientDatum);
-      }
+      res.add(bodyResources);
     }
-
     return res;
   }
 
-  public void visit(Rule rule, List<PatientData> patientData) {
-    log.debug("Evaluating rule " + rule.toStringShort());
-    Condition condition = rule.getCondition();
-
-    Body body = rule.getBody();
-    List<PatientData> bodyData = filter(patientData, condition);
-    visit(body, bodyData);
-
-    List<PatientData> elseData = new ArrayList<>(patientData);
-    elseData.removeAll(bodyData);
-    Body elseBody = rule.getElseBody();
-    if (elseBody != null && !patientData.isEmpty()) {
-      visit(elseBody, elseData);
+  /**
+   * Adds the resources created in parallel to the result. This is done in the same order as in a sequential run, body
+   * by body and then patient by patient, so resources that are shared by several patients, e.g., unique resources in
+   * a body that requires patient data, are merged in the same order. The resources of the bodies that do not require
+   * patient data are created here, in their turn.
+   *
+   * @param pending The pending bodies, in the order they were visited.
+   * @param partitions The results of {@link #createResources(ConditionEvaluator, List, int, int)} for each partition,
+   *                   in patient order.
+   */
+  private void mergeResources(List<PendingBody> pending, List<List<List<Map<String, DomainResource>>>> partitions) {
+    for (int i = 0; i < pending.size(); i++) {
+      PendingBody pendingBody = pending.get(i);
+      if (pendingBody.patients == null) {
+        createDataFreeResources(pendingBody.body);
+        continue;
+      }
+      for (List<List<Map<String, DomainResource>>> partition : partitions) {
+        for (Map<String, DomainResource> patientResources : partition.get(i)) {
+          mergeResources(patientResources);
+        }
+      }
     }
   }
 
-  private boolean evaluate(Condition c, JsonObject data) {
-    if (c instanceof  ConditionExpression) {
-      ConditionExpression ce = (ConditionExpression) c;
-      if (ce.isNegated()) {
-        return !doEvaluate(ce, data);
+  private void mergeResources(Map<String, DomainResource> resources) {
+    for (Map.Entry<String, DomainResource> entry : resources.entrySet()) {
+      DomainResource existingResource = fhirResourceMap.get(entry.getKey());
+      if (existingResource != null) {
+        merge(entry.getValue(), existingResource);
       } else {
-        return doEvaluate(ce, data);
-      }
-    } else if (c instanceof  ConditionNode) {
-      ConditionNode cn = (ConditionNode) c;
-      ConditionNodeOperator op = cn.getOp();
-      Condition leftCondition = cn.getLeftCondition();
-      Condition rightCondition = cn.getRightCondition();
-      switch (op) {
-        case AND:
-          return evaluate(leftCondition, data) && evaluate(rightCondition, data);
-        case OR:
-          return evaluate(leftCondition, data) || evaluate(rightCondition, data);
-        default:
-          throw new RuntimeException("Unexpected condition node operator. This should never happen!");
+        fhirResourceMap.put(entry.getKey(), entry.getValue());
       }
-    } else {
-      throw new RuntimeException("Unexpected Condition: " + c + ". This should not happen!");
     }
   }
 
-  private boolean doEvaluate(ConditionExpression ce, JsonObject data) {
-    String fieldId = ce.getFieldId();
-    Integer intValue = ce.getIntValue();
-    Double numericValue = ce.getNumericValue();
-    String stringValue = ce.getStringValue();
-    ConditionExpression.ConditionExpressionOperator operator = ce.getOperator();
-
-    switch (ce.getConditionType()) {
-      case EXPRESSION:
-        if (intValue == null && numericValue == null && stringValue == null) {
-          throw new TransformationException("No value has been specified for this expression. [" + this + "]");
-        }
-
-        String actualStringValue = null;
-        if (!data.has(fieldId)) {
-          // See if this is an option and extract the value from the name
-          if (fieldId.contains("___")) {
-            String[] parts = fieldId.split("___");
-            if (data.has(parts[0])) {
-              String chosenVal = data.get(parts[0]).getAsString();
-              if (chosenVal != null && chosenVal.equals(parts[1])) {
-                actualStringValue = "1";
-              } else {
-                actualStringValue = "0";
-              }
-            }
-          }
-        } else {
-          actualStringValue = data.get(fieldId).getAsString();
-        }
+  private <T> T waitFor(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new TransformationException("Transformation canceled!", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TransformationException) {
+        throw (TransformationException) e.getCause();
+      }
+      throw new TransformationException("There was a problem creating the FHIR resources.", e.getCause());
+    }
+  }
 
-        if (actualStringValue == null || actualStringValue.isEmpty()) {
-          return false;
-        }
+  /**
+   * Visits a rule. The patients are represented as a set of indexes into the patients of the evaluator.
+   *
+   * @param rule The rule.
+   * @param evaluator The evaluator used to evaluate the conditions.
+   * @param patients The applicable patients.
+   * @param pending If not null, the bodies that require patient data are added to this list instead of creating their
+   *                resources straight away.
+   */
+  private void visit(Rule rule, ConditionEvaluator evaluator, BitSet patients, List<PendingBody> pending) {
+    log.debug("Evaluating rule " + rule.toStringShort());
+    Condition condition = rule.getCondition();
 
-        // Get data type from schema
-        Field field = schema.getField(fieldId);
-        if (field == null) {
-          throw new TransformationException("No field " + fieldId + " found in the schema.");
-        }
+    Body body = rule.getBody();
+    BitSet bodyPatients = evaluator.filter(condition, patients);
+    visit(body, evaluator, bodyPatients, pending);
 
-        if (numericValue != null) {
-          try {
-            final double fieldValue = Double.parseDouble(actualStringValue);
-            switch (operator) {
-              case EQ:
-                return fieldValue == numericValue;
-              case GT:
-                return fieldValue > numericValue;
-              case GTE:
-                return fieldValue >= numericValue;
-              case LT:
-                return fieldValue < numericValue;
-              case LTE:
-                return fieldValue <= numericValue;
-              case NEQ:
-                return fieldValue != numericValue;
-              default:
-                throw new RuntimeException("Unexpected operator. This should never happen!");
-            }
-          } catch (NumberFormatException e) {
-            throw new TransformationException("Could not parse value of field " + fieldId
-              + " into a number (" + data.get(fieldId) + ") [" + this + "]");
-          }
-        } else if (intValue != null) {
-          try {
-            final int fieldValue = Integer.parseInt(actualStringValue);
-            switch (operator) {
-              case EQ:
-                return fieldValue == intValue;
-              case GT:
-                return fieldValue > intValue;
-              case GTE:
-                return fieldValue >= intValue;
-              case LT:
-                return fieldValue < intValue;
-              case LTE:
-                return fieldValue <= intValue;
-              case NEQ:
-                return fieldValue != intValue;
-              default:
-                throw new RuntimeException("Unexpected operator. This should never happen!");
-            }
-          } catch (NumberFormatException e) {
-            throw new TransformationException("Could not parse value of field " + fieldId + " into an integer (" +
-              data.get(fieldId) + ") [" + this + "]");
-          }
-        } else {
-          // A string value
-          switch (operator) {
-            case EQ:
-              return actualStringValue.equals(stringValue);
-            case GT:
-              return actualStringValue.compareTo(stringValue) > 0;
-            case GTE:
-              return actualStringValue.compareTo(stringValue) >= 0;
-            case LT:
-              return actualStringValue.compareTo(stringValue) < 0;
-            case LTE:
-              return actualStringValue.compareTo(stringValue) <= 0;
-            case NEQ:
-              return !actualStringValue.equals(stringValue);
-            default:
-              throw new RuntimeException("Unexpected operator. This should never happen!");
-          }
-        }
-      case FALSE:
-        return false;
-      case TRUE:
-        return true;
-      case NOTNULL:
-        return isNotNull(fieldId, data);
-      case NULL:
-        return !isNotNull(fieldId, data);
-      default:
-        throw new RuntimeException("Unexpected condition type " + ce.getConditionType());
-    }
-  }
-
-  private boolean isNotNull(String fieldId, JsonObject data) {
-    // Get the field that is referenced in this condition expression
-    Field field = schema.getField(fieldId);
-    if (field instanceof RedcapField) {
-      RedcapField rfield = (RedcapField) field;
-      RedcapField.FieldType ft = rfield.getFieldType();
-
-      // Deal with special case where field is a checkbox - in this case we need to check that any
-      // of the possible values are populated
-      if (ft.equals(RedcapField.FieldType.CHECKBOX)) {
-        for (Field f : schema.getFields()) {
-          // The checkbox entry fields start with the name of the checkbox field
-          if (f.getFieldId().startsWith(fieldId) && !f.getFieldId().equals(fieldId)) {
-            if (data.has(f.getFieldId()) && !"0".equals(data.get(f.getFieldId()).getAsString())) {
-              return true;
-            }
-          }
-        }
-        return false;
-      } else {
-        return (data.has(fieldId) && !data.get(fieldId).getAsString().isEmpty());
-      }
-    } else {
-      throw new UnsupportedOperationException("Only REDCap is supported at the moment.");
+    Body elseBody = rule.getElseBody();
+    if (elseBody != null && !patients.isEmpty()) {
+      BitSet elsePatients = (BitSet) patients.clone();
+      elsePatients.andNot(bodyPatients);
+      visit(elseBody, evaluator, elsePatients, pending);
     }
   }
 
@@ -339,58 +451,88 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
 
 
   /**
-   * Visits the body of a rule. Patient data is only the subset that matches the condition.
+   * Visits the body of a rule. Patients are only the subset that matches the condition.
    *
    * @param body The body of a rule.
-   * @param patientData The applicable patient data.
+   * @param evaluator The evaluator used to evaluate the conditions.
+   * @param patients The applicable patients.
+   * @param pending If not null, the bodies are added to this list instead of creating their resources straight away.
    */
-  private void visit(Body body, List<PatientData> patientData) {
+  private void visit(Body body, ConditionEvaluator evaluator, BitSet patients, List<PendingBody> pending) {
 
     if (requiresData(body)) {
-      for (PatientData patientDatum : patientData) {
-        String recordId = patientDatum.getId();
-        for (JsonObject object : patientDatum.getObjects()) {
-          // Return any resources directly in the rule
-          for (Resource resource : body.getResources()) {
-            DomainResource domainResource = createResource(resource, object, recordId, getFhirPackage(doc));
-            String id = domainResource.getId();
-            if (fhirResourceMap.containsKey(id)) {
-              // Merge with existing resource if already exists
-              DomainResource existingResource = fhirResourceMap.get(id);
-              //existingResource.copyValues(domainResource);
-              try {
-                ReflectionUtils.merge(domainResource, existingResource);
-              } catch (InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
-                throw new TransformationException("There was a problem merging the generated FHIR resources.", e);
-              }
-            } else {
-              fhirResourceMap.put(id, domainResource);
-            }
-          }
+      if (pending != null) {
+        pending.add(new PendingBody(body, patients));
+      } else {
+        for (PatientData patientDatum : evaluator.getPatients(patients)) {
+          createResources(body, patientDatum, fhirResourceMap);
         }
       }
-    } else {
+    } else if (visitedDataFreeBodies.add(body)) {
+      if (pending != null) {
+        pending.add(new PendingBody(body, null));
+      } else {
+        createDataFreeResources(body);
+      }
+    }
+
+    // Recursively evaluate any nested rules
+    for (Rule rule : body.getRules()) {
+      log.debug("Evaluating rule in body " + rule.toStringShort());
+      visit(rule, evaluator, patients, pending);
+    }
+  }
+
+  /**
+   * Creates the resources in a body that does not require patient data.
+   *
+   * @param body The body of a rule.
+   */
+  private void createDataFreeResources(Body body) {
+    for (Resource resource : body.getResources()) {
+      DomainResource domainResource = createResource(resource, null, null, getFhirPackage(doc));
+      String id = domainResource.getId();
+      if (fhirResourceMap.containsKey(id)) {
+        // Merge with existing resource if already exists
+        DomainResource existingResource = fhirResourceMap.get(id);
+        //existingResource.copyValues(domainResource);
+        merge(domainResource, existingResource);
+      }
+      fhirResourceMap.put(id, domainResource);
+    }
+  }
+
+  /**
+   * Creates the resources in a body that require patient data, for a single patient.
+   *
+   * @param body The body of a rule.
+   * @param patientDatum The data of the patient.
+   * @param resourceMap The map where the resources are added, indexed by id.
+   */
+  private void createResources(Body body, PatientData patientDatum, Map<String, DomainResource> resourceMap) {
+    String recordId = patientDatum.getId();
+    for (JsonObject object : patientDatum.getObjects()) {
+      // Return any resources directly in the rule
       for (Resource resource : body.getResources()) {
-        DomainResource domainResource = createResource(resource, null, null, getFhirPackage(doc));
+        DomainResource domainResource = createResource(resource, object, recordId, getFhirPackage(doc));
         String id = domainResource.getId();
-        if (fhirResourceMap.containsKey(id)) {
+        if (resourceMap.containsKey(id)) {
           // Merge with existing resource if already exists
-          DomainResource existingResource = fhirResourceMap.get(id);
+          DomainResource existingResource = resourceMap.get(id);
           //existingResource.copyValues(domainResource);
-          try {
-            ReflectionUtils.merge(domainResource, existingResource);
-          } catch (InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
-            throw new TransformationException("There was a problem merging the generated FHIR resources.", e);
-          }
+          merge(domainResource, existingResource);
+        } else {
+          resourceMap.put(id, domainResource);
         }
-        fhirResourceMap.put(id, domainResource);
       }
     }
+  }
 
-    // Recursively evaluate any nested rules
-    for (Rule rule : body.getRules()) {
-      log.debug("Evaluating rule in body " + rule.toStringShort());
-      visit(rule, patientData);
+  private void merge(DomainResource src, DomainResource tgt) {
+    try {
+      ReflectionUtils.merge(src, tgt);
+    } catch (InvocationTargetException | IllegalAccessException | NoSuchMethodException e) {
+      throw new TransformationException("There was a problem merging the generated FHIR resources.", e);
     }
   }
 
@@ -471,4 +613,31 @@ public class RedcapVisitor extends BaseVisitor implements GrammarObjectVisitor {
     }
     return null;
   }
+
+  /**
+   * A body whose resources have not been created yet, together with the patients it applies to. The patients are null
+   * if the resources do not require patient data.
+   */
+  private static class PendingBody {
+    private final Body body;
+    private final BitSet patients;
+
+    PendingBody(Body body, BitSet patients) {
+      this.body = body;
+      this.patients = patients;
+    }
+  }
+
+  /**
+   * A batch of rows that is being processed in parallel when streaming.
+   */
+  private static class PendingBatch {
+    private final List<PendingBody> pending;
+    private final Future<List<List<Map<String, DomainResource>>>> resources;
+
+    PendingBatch(List<PendingBody> pending, Future<List<List<Map<String, DomainResource>>>> resources) {
+      this.pending = pending;
+      this.resources = resources;
+    }
+  }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import au.csiro.redmatch.compiler.Attribute;
+import au.csiro.redmatch.compiler.Resource;
+import au.csiro.redmatch.compiler.Value;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DomainResource;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An executable plan to create a FHIR resource from a {@link Resource} in the transformation rules. Everything that
+ * does not depend on patient data is resolved once, when the plan is compiled, so creating a resource for a patient
+ * only requires evaluating the values and invoking the setters. Plans are immutable, except for the lazily resolved
+ * {@link LeafBinding}s, and can be shared between threads.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+class ResourcePlan {
+
+  private final Resource resource;
+
+  private final Constructor<? extends DomainResource> constructor;
+
+  /**
+   * The url of the profile if the resource type in the rules is a profile, or null otherwise.
+   */
+  private final String profileUrl;
+
+  private final List<AttributePlan> attributePlans;
+
+  ResourcePlan(Resource resource, Constructor<? extends DomainResource> constructor, String profileUrl,
+               List<AttributePlan> attributePlans) {
+    this.resource = resource;
+    this.constructor = constructor;
+    this.profileUrl = profileUrl;
+    this.attributePlans = Collections.unmodifiableList(attributePlans);
+  }
+
+  public Resource getResource() {
+    return resource;
+  }
+
+  public Constructor<? extends DomainResource> getConstructor() {
+    return constructor;
+  }
+
+  public String getProfileUrl() {
+    return profileUrl;
+  }
+
+  public List<AttributePlan> getAttributePlans() {
+    return attributePlans;
+  }
+
+  /**
+   * The plan to set a single attribute value.
+   */
+  static class AttributePlan {
+
+    /**
+     * The path to the element where the value is set, i.e., all the attributes except the leaf.
+     */
+    private final List<Attribute> path;
+
+    /**
+     * The extension urls of each attribute in the path, or null for attributes that are not profiled extensions.
+     */
+    private final List<String> extensionUrls;
+
+    private final Attribute leafAttribute;
+
+    private final Value value;
+
+    /**
+     * The FHIR resource type of a reference value, or null if the value is not a reference.
+     */
+    private final String referenceType;
+
+    /**
+     * Indicates if a reference value points to a resource that has a single instance.
+     */
+    private final boolean uniqueReference;
+
+    private volatile LeafBinding leafBinding;
+
+    AttributePlan(List<Attribute> path, List<String> extensionUrls, Attribute leafAttribute, Value value,
+                  String referenceType, boolean uniqueReference) {
+      this.path = Collections.unmodifiableList(path);
+      this.extensionUrls = Collections.unmodifiableList(extensionUrls);
+      this.leafAttribute = leafAttribute;
+      this.value = value;
+      this.referenceType = referenceType;
+      this.uniqueReference = uniqueReference;
+    }
+
+    public List<Attribute> getPath() {
+      return path;
+    }
+
+    public List<String> getExtensionUrls() {
+      return extensionUrls;
+    }
+
+    public Attribute getLeafAttribute() {
+      return leafAttribute;
+    }
+
+    public Value getValue() {
+      return value;
+    }
+
+    public String getReferenceType() {
+      return referenceType;
+    }
+
+    public boolean isUniqueReference() {
+      return uniqueReference;
+    }
+
+    /**
+     * Returns the binding of the leaf attribute for an element class.
+     *
+     * @param elementClass The class of the element where the value is set.
+     * @return The binding or null if it has not been resolved for this class.
+     */
+    LeafBinding getLeafBinding(Class<? extends Base> elementClass) {
+      LeafBinding res = leafBinding;
+      return (res != null && res.getElementClass().equals(elementClass)) ? res : null;
+    }
+
+    void setLeafBinding(LeafBinding leafBinding) {
+      this.leafBinding = leafBinding;
+    }
+  }
+
+  /**
+   * The resolved type information of a leaf attribute in a specific element class.
+   */
+  static class LeafBinding {
+
+    private final Class<? extends Base> elementClass;
+
+    private final boolean isValueX;
+
+    private final Class<?> fhirType;
+
+    /**
+     * An instance of the enum factory for coded attributes, or null if the attribute does not have one.
+     */
+    private final Object enumFactory;
+
+    /**
+     * The fromType method of the enum factory.
+     */
+    private final Method fromType;
+
+    LeafBinding(Class<? extends Base> elementClass, boolean isValueX, Class<?> fhirType, Object enumFactory,
+                Method fromType) {
+      this.elementClass = elementClass;
+      this.isValueX = isValueX;
+      this.fhirType = fhirType;
+      this.enumFactory = enumFactory;
+      this.fromType = fromType;
+    }
+
+    public Class<? extends Base> getElementClass() {
+      return elementClass;
+    }
+
+    public boolean isValueX() {
+      return isValueX;
+    }
+
+    public Class<?> getFhirType() {
+      return fhirType;
+    }
+
+    public Object getEnumFactory() {
+      return enumFactory;
+    }
+
+    public Method getFromType() {
+      return fromType;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import au.csiro.redmatch.model.Row;
+
+import java.util.function.Consumer;
+
+/**
+ * A source of {@link Row}s that are produced incrementally, e.g., while a REDCap export is being read.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+@FunctionalInterface
+public interface RowSource {
+
+  /**
+   * Hands every row to the consumer, one at a time.
+   *
+   * @param consumer The consumer that receives the rows.
+   */
+  void forEachRow(Consumer<Row> consumer);
+}
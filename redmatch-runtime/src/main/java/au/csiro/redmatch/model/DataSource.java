@@ -15,12 +15,44 @@ public class DataSource {
   private final ServerType type;
   private final String url;
   private final String token;
+  private final int batchSize;
+  private final int parallelism;
+  private final Integer connectTimeout;
+  private final Integer socketTimeout;
+  private final Integer maxRetries;
 
   public DataSource(String name, String url, String token) {
+    this(name, url, token, 0, 1);
+  }
+
+  public DataSource(String name, String url, String token, int batchSize, int parallelism) {
+    this(name, url, token, batchSize, parallelism, null, null, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param name The name of the data source.
+   * @param url The url of the data source.
+   * @param token The token used to authenticate.
+   * @param batchSize The maximum number of records fetched in a single request, or 0 to fetch all records at once.
+   * @param parallelism The maximum number of concurrent requests when fetching in batches.
+   * @param connectTimeout The connect timeout, in milliseconds, or null to use the client's default.
+   * @param socketTimeout The socket timeout, in milliseconds, or null to use the client's default.
+   * @param maxRetries The number of times a request is retried after a server error, or null to use the client's
+   *                   default.
+   */
+  public DataSource(String name, String url, String token, int batchSize, int parallelism, Integer connectTimeout,
+                    Integer socketTimeout, Integer maxRetries) {
     this.type = ServerType.REDCAP;
     this.name = name;
     this.url = url;
     this.token = token;
+    this.batchSize = batchSize;
+    this.parallelism = parallelism;
+    this.connectTimeout = connectTimeout;
+    this.socketTimeout = socketTimeout;
+    this.maxRetries = maxRetries;
   }
 
   public String getName() {
@@ -38,4 +70,31 @@ public class DataSource {
   public String getToken() {
     return token;
   }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public Integer getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public Integer getSocketTimeout() {
+    return socketTimeout;
+  }
+
+  public Integer getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @return True if the records should be fetched in batches.
+   */
+  public boolean isBatched() {
+    return batchSize > 0;
+  }
 }
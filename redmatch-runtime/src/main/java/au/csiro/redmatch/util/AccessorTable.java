@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The attribute accessors of a HAPI class, i.e., the has, get and add methods of each attribute. Each class is
+ * introspected only once and the tables are shared between threads.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public final class AccessorTable {
+
+  private static final Map<Class<?>, AccessorTable> tables = new ConcurrentHashMap<>();
+
+  private final List<Accessor> accessors;
+
+  private AccessorTable(Class<?> c) {
+    final Set<String> addNames = new HashSet<>();
+    for (Method m : c.getMethods()) {
+      if (m.getName().startsWith("add")) {
+        addNames.add(m.getName().substring(3));
+      }
+    }
+
+    final List<Accessor> res = new ArrayList<>();
+    for (Method m : c.getMethods()) {
+      String methodName = m.getName();
+      if (methodName.startsWith("has") && m.getParameterCount() == 0 && m.getReturnType() == boolean.class) {
+        String name = methodName.substring(3);
+        Method getMethod;
+        try {
+          getMethod = c.getMethod("get" + name);
+        } catch (NoSuchMethodException e) {
+          getMethod = null;
+        }
+        res.add(new Accessor(name, m, getMethod, addNames.contains(name)));
+      }
+    }
+    this.accessors = Collections.unmodifiableList(res);
+  }
+
+  /**
+   * Returns the accessor table of a class.
+   *
+   * @param c The class.
+   * @return The accessor table.
+   */
+  public static AccessorTable forClass(Class<?> c) {
+    return tables.computeIfAbsent(c, AccessorTable::new);
+  }
+
+  /**
+   * Returns an accessor for every public, no-argument, boolean has method of the class.
+   *
+   * @return The accessors.
+   */
+  public List<Accessor> getAccessors() {
+    return accessors;
+  }
+
+  /**
+   * The methods used to access an attribute.
+   */
+  public static final class Accessor {
+    private final String name;
+    private final Method hasMethod;
+    private final Method getMethod;
+    private final boolean multiple;
+
+    Accessor(String name, Method hasMethod, Method getMethod, boolean multiple) {
+      this.name = name;
+      this.hasMethod = hasMethod;
+      this.getMethod = getMethod;
+      this.multiple = multiple;
+    }
+
+    /**
+     * @return The name of the attribute, capitalised as in the method names, e.g., ValueCodeableConcept.
+     */
+    public String getName() {
+      return name;
+    }
+
+    public Method getHasMethod() {
+      return hasMethod;
+    }
+
+    /**
+     * @return The get method or null if the class does not have one.
+     */
+    public Method getGetMethod() {
+      return getMethod;
+    }
+
+    /**
+     * @return True if the class has an add method for this attribute, i.e., it has multiplicity &gt; 1.
+     */
+    public boolean isMultiple() {
+      return multiple;
+    }
+  }
+}
@@ -6,10 +6,12 @@ package au.csiro.redmatch.util;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.javatuples.Pair;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Miscellaneous reflection utilities.
@@ -21,7 +23,21 @@ public class ReflectionUtils {
   /** Logger. */
   private static final Log log = LogFactory.getLog(ReflectionUtils.class);
 
-  @SuppressWarnings("rawtypes")
+  /**
+   * The merge steps for each pair of source and target classes.
+   */
+  private static final Map<Pair<Class<?>, Class<?>>, List<MergeStep>> mergePlans = new ConcurrentHashMap<>();
+
+  /**
+   * Copies all the attributes that are set in the source object into the target object. Values of attributes with
+   * multiplicity &gt; 1 are appended to the target's values. Other values replace the target's values. The steps
+   * required to merge each pair of classes are computed once and cached, so this method can be called concurrently as
+   * long as the targets are different.
+   *
+   * @param src The source object.
+   * @param tgt The target object.
+   */
+  @SuppressWarnings({ "rawtypes", "unchecked" })
   public static void merge(Object src, Object tgt) throws InvocationTargetException, IllegalAccessException,
     NoSuchMethodException {
     if(!src.getClass().isAssignableFrom(tgt.getClass())){
@@ -29,41 +45,67 @@ public class ReflectionUtils {
       return;
     }
 
-    for(Method hasMethod : src.getClass().getMethods()) {
-      if(hasMethod.getReturnType() == boolean.class && hasMethod.getName().startsWith("has")
-        && hasMethod.getParameterCount() == 0) {
-        // Invoke to see if the value is set
-        boolean hasThisAttribute = (boolean) hasMethod.invoke(src);
-        if (hasThisAttribute) {
+    for (MergeStep step : getMergePlan(src.getClass(), tgt.getClass())) {
+      // Invoke to see if the value is set
+      boolean hasThisAttribute = (boolean) step.hasMethod.invoke(src);
+      if (!hasThisAttribute) {
+        continue;
+      }
+
+      if (step.getMethod == null) {
+        throw new NoSuchMethodException(src.getClass().getName() + ".get" + step.name + "()");
+      }
+      Object value = step.getMethod.invoke(src);
+      if (value instanceof List) {
+        // If this is a list then append the values to the target's list - the getters return the live lists and
+        // create them if needed
+        List tgtList = (List) step.getMethod.invoke(tgt);
+        tgtList.addAll((List) value);
+      } else if (step.setMethod != null) {
+        // Otherwise, just invoke the set method
+        step.setMethod.invoke(tgt, value);
+      }
+    }
+  }
 
-          String getName = hasMethod.getName().replace("has", "get");
-          Method getMethod = src.getClass().getMethod(getName);
-          Object value = getMethod.invoke(src);
-          if (value instanceof List) {
-            List list = (List) value;
-            // If this is a list them iterate and invoke the add method
-            String addName = hasMethod.getName().replace("has", "add");
-            try {
-              Method addMethod = tgt.getClass().getMethod(addName, list.get(0).getClass());
-              for (Object elem : list) {
-                addMethod.invoke(tgt, elem);
-              }
-            } catch (NoSuchMethodException e) {
-              // This can happen with value[x]s, e.g.,
-              // Observation.setValueCodeableConcept(org.hl7.fhir.r4.model.CodeableConcept) - just ignore
-            }
-          } else {
-            // Otherwise, just invoke the set method
-            String setName = hasMethod.getName().replace("has", "set");
-            try {
-              Method setMethod = tgt.getClass().getMethod(setName, getMethod.getReturnType());
-              setMethod.invoke(tgt, value);
-            } catch (NoSuchMethodException e) {
-              // This can happen with value[x]s - just ignore
-            }
-          }
+  private static List<MergeStep> getMergePlan(Class<?> srcClass, Class<?> tgtClass) {
+    return mergePlans.computeIfAbsent(new Pair<>(srcClass, tgtClass),
+      k -> createMergePlan(srcClass, tgtClass));
+  }
+
+  private static List<MergeStep> createMergePlan(Class<?> srcClass, Class<?> tgtClass) {
+    List<MergeStep> res = new ArrayList<>();
+    for (AccessorTable.Accessor accessor : AccessorTable.forClass(srcClass).getAccessors()) {
+      Method getMethod = accessor.getGetMethod();
+      Method setMethod = null;
+      if (getMethod != null && !List.class.isAssignableFrom(getMethod.getReturnType())) {
+        try {
+          setMethod = tgtClass.getMethod("set" + accessor.getName(), getMethod.getReturnType());
+        } catch (NoSuchMethodException e) {
+          // This happens with the typed accessors of value[x]s, e.g., Observation.getValueCodeableConcept() has no
+          // matching setter - the value is copied by the generic accessor, e.g., Observation.setValue(Type)
+          log.trace("No set method for " + accessor.getName() + " in " + tgtClass);
         }
       }
+      res.add(new MergeStep(accessor.getName(), accessor.getHasMethod(), getMethod, setMethod));
+    }
+    return Collections.unmodifiableList(res);
+  }
+
+  /**
+   * The methods used to merge a single attribute.
+   */
+  private static class MergeStep {
+    private final String name;
+    private final Method hasMethod;
+    private final Method getMethod;
+    private final Method setMethod;
+
+    MergeStep(String name, Method hasMethod, Method getMethod, Method setMethod) {
+      this.name = name;
+      this.hasMethod = hasMethod;
+      this.getMethod = getMethod;
+      this.setMethod = setMethod;
     }
   }
 }
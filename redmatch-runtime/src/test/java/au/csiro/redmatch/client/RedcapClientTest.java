@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.client;
+
+import au.csiro.redmatch.model.Row;
+import au.csiro.redmatch.util.FileUtils;
+import com.google.gson.*;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link RedcapClient}. Uses a local HTTP server that emulates the REDCap record export API.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class RedcapClientTest {
+
+  /** Logger. */
+  private static final Log log = LogFactory.getLog(RedcapClientTest.class);
+
+  private static final Gson gson = new Gson();
+
+  private static final String data = FileUtils.loadTextFileFromClassPath("dataRepeatableInstruments.json");
+
+  private static HttpServer server;
+
+  private static String endpoint;
+
+  private static final AtomicInteger failedRequests = new AtomicInteger();
+
+  @BeforeAll
+  private static void init() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/", exchange -> {
+      // Requests with fail=n get n server errors before succeeding
+      String query = exchange.getRequestURI().getQuery();
+      if (query != null && query.startsWith("fail=")) {
+        int failures = Integer.parseInt(query.substring("fail=".length()));
+        if (failedRequests.getAndIncrement() % (failures + 1) < failures) {
+          exchange.getRequestBody().readAllBytes();
+          exchange.sendResponseHeaders(503, -1);
+          exchange.close();
+          return;
+        }
+      }
+      Map<String, List<String>> params = parseParams(new String(exchange.getRequestBody().readAllBytes(),
+        StandardCharsets.UTF_8));
+      byte[] body = gson.toJson(exportRecords(params)).getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.start();
+    endpoint = "http://localhost:" + server.getAddress().getPort() + "/api/";
+  }
+
+  @AfterAll
+  private static void cleanUp() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testStreaming() {
+    log.info("Running testStreaming");
+    List<Row> rows = new ArrayList<>();
+    int count;
+    try (RedcapClient client = new RedcapClient(gson)) {
+      count = client.getData(endpoint, new RedcapCredentials("xxx"), Collections.emptySet(), rows::add);
+    }
+    assertEquals(2, count);
+    assertEquals(List.of("1", "2"), getRecordIds(rows));
+    assertEquals(3, rows.get(0).getData().vertexSet().size());
+    assertEquals(2, rows.get(1).getData().vertexSet().size());
+  }
+
+  @Test
+  public void testBatched() {
+    log.info("Running testBatched");
+    List<Row> rows = new ArrayList<>();
+    int count;
+    try (RedcapClient client = new RedcapClient(gson)) {
+      count = client.getData(endpoint, new RedcapCredentials("xxx"), "stud_num", Collections.emptySet(), 1, 2,
+        rows::add);
+    }
+    assertEquals(2, count);
+    assertEquals(List.of("1", "2"), getRecordIds(rows));
+    assertEquals(3, rows.get(0).getData().vertexSet().size());
+    assertEquals(2, rows.get(1).getData().vertexSet().size());
+  }
+
+  @Test
+  public void testRetryOnServerError() {
+    log.info("Running testRetryOnServerError");
+    List<Row> rows = new ArrayList<>();
+    try (RedcapClient client = new RedcapClient(gson, 1000, 1000, 2, 10)) {
+      client.getData(endpoint + "?fail=2", new RedcapCredentials("xxx"), Collections.emptySet(), rows::add);
+    }
+    assertEquals(2, rows.size());
+
+    try (RedcapClient client = new RedcapClient(gson, 1000, 1000, 1, 10)) {
+      assertThrows(ClientException.class,
+        () -> client.getData(endpoint + "?fail=2", new RedcapCredentials("xxx"), Collections.emptySet(), row -> { }));
+    }
+  }
+
+  @Test
+  public void testNonContiguousRecords() {
+    log.info("Running testNonContiguousRecords");
+    String json = "[{\"id\": \"1\"}, {\"id\": \"2\"}, {\"id\": \"1\"}]";
+    assertThrows(ClientException.class,
+      () -> new RedcapClient(gson).parseData(new StringReader(json), row -> { }));
+  }
+
+  private List<String> getRecordIds(List<Row> rows) {
+    List<String> res = new ArrayList<>();
+    for (Row row : rows) {
+      for (JsonElement vertex : row.getData().vertexSet()) {
+        JsonObject jsonObject = vertex.getAsJsonObject();
+        if (jsonObject.get("redcap_repeat_instrument").getAsString().isEmpty()) {
+          res.add(jsonObject.get("stud_num").getAsString());
+        }
+      }
+    }
+    return res;
+  }
+
+  private static JsonArray exportRecords(Map<String, List<String>> params) {
+    List<String> records = params.getOrDefault("records[]", Collections.emptyList());
+    List<String> fields = params.getOrDefault("fields[]", Collections.emptyList());
+    JsonArray res = new JsonArray();
+    for (JsonElement element : gson.fromJson(data, JsonArray.class)) {
+      JsonObject record = element.getAsJsonObject();
+      if (!records.isEmpty() && !records.contains(record.get("stud_num").getAsString())) {
+        continue;
+      }
+      if (fields.isEmpty()) {
+        res.add(record);
+      } else {
+        JsonObject filtered = new JsonObject();
+        for (String field : List.of("stud_num", "redcap_repeat_instrument", "redcap_repeat_instance")) {
+          filtered.add(field, record.get(field));
+        }
+        for (String field : fields) {
+          filtered.add(field, record.get(field));
+        }
+        res.add(filtered);
+      }
+    }
+    return res;
+  }
+
+  private static Map<String, List<String>> parseParams(String body) {
+    Map<String, List<String>> res = new HashMap<>();
+    for (String param : body.split("&")) {
+      String[] parts = param.split("=", 2);
+      String name = URLDecoder.decode(parts[0], StandardCharsets.UTF_8);
+      String value = parts.length > 1 ? URLDecoder.decode(parts[1], StandardCharsets.UTF_8) : "";
+      res.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import au.csiro.redmatch.compiler.Condition;
+import au.csiro.redmatch.compiler.ConditionExpression;
+import au.csiro.redmatch.compiler.ConditionExpression.ConditionExpressionOperator;
+import au.csiro.redmatch.compiler.ConditionNode;
+import au.csiro.redmatch.model.PatientData;
+import au.csiro.redmatch.model.RedcapField;
+import au.csiro.redmatch.model.Schema;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ConditionEvaluator}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class ConditionEvaluatorTest {
+
+  @Test
+  public void testExpressions() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "30", "name", "Ann")),
+      patient("2", object("age", "45", "name", "Bob")),
+      // A patient matches if any of its objects matches
+      patient("3", object("age", "20"), object("age", "50", "name", "Cid")),
+      patient("4", object("age", ""))));
+
+    assertEquals(bits(1, 2), evaluator.filter(new ConditionExpression("age", ConditionExpressionOperator.GT, 40),
+      evaluator.allPatients()));
+    assertEquals(bits(0, 2), evaluator.filter(new ConditionExpression("age", ConditionExpressionOperator.LTE, 30),
+      evaluator.allPatients()));
+    assertEquals(bits(1), evaluator.filter(new ConditionExpression("name", ConditionExpressionOperator.EQ, "Bob"),
+      evaluator.allPatients()));
+
+    // Empty values never match an expression
+    ConditionExpression notBob = new ConditionExpression("name", ConditionExpressionOperator.EQ, "Bob");
+    notBob.setNegated(true);
+    assertEquals(bits(0, 2, 3), evaluator.filter(notBob, evaluator.allPatients()));
+    assertEquals(bits(0, 1, 2), evaluator.filter(new ConditionExpression("age", false), evaluator.allPatients()));
+    assertEquals(bits(3), evaluator.filter(new ConditionExpression("age", true), evaluator.allPatients()));
+
+    // Only the patients in the set are considered
+    assertEquals(bits(2), evaluator.filter(new ConditionExpression("age", ConditionExpressionOperator.GT, 40),
+      bits(0, 2)));
+  }
+
+  @Test
+  public void testConditionNodes() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "30", "name", "Ann")),
+      patient("2", object("age", "45", "name", "Bob")),
+      patient("3", object("age", "50", "name", "Cid"))));
+
+    Condition old = new ConditionExpression("age", ConditionExpressionOperator.GTE, 45);
+    Condition bob = new ConditionExpression("name", ConditionExpressionOperator.EQ, "Bob");
+    Condition ann = new ConditionExpression("name", ConditionExpressionOperator.EQ, "Ann");
+    assertEquals(bits(1), evaluator.filter(new ConditionNode(old, ConditionNode.ConditionNodeOperator.AND, bob),
+      evaluator.allPatients()));
+    assertEquals(bits(0, 1, 2), evaluator.filter(new ConditionNode(old, ConditionNode.ConditionNodeOperator.OR, ann),
+      evaluator.allPatients()));
+  }
+
+  @Test
+  public void testCheckboxes() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("colour___1", "1", "colour___2", "0")),
+      patient("2", object("colour___1", "0", "colour___2", "0")),
+      // The value of an option can be derived from the value of the parent field
+      patient("3", object("colour", "2"))));
+
+    assertEquals(bits(0), evaluator.filter(new ConditionExpression("colour", false), evaluator.allPatients()));
+    assertEquals(bits(1, 2), evaluator.filter(new ConditionExpression("colour", true), evaluator.allPatients()));
+    assertEquals(bits(2), evaluator.filter(new ConditionExpression("colour___2", ConditionExpressionOperator.EQ, 1),
+      evaluator.allPatients()));
+  }
+
+  @Test
+  public void testNumericComparison() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("weight", "-0.0")),
+      patient("2", object("weight", "NaN")),
+      patient("3", object("weight", "72.5"))));
+
+    // -0.0 is equal to 0.0 and NaN is not equal to anything
+    assertEquals(bits(0), evaluator.filter(new ConditionExpression("weight", ConditionExpressionOperator.EQ, 0.0),
+      evaluator.allPatients()));
+    assertEquals(bits(1, 2), evaluator.filter(new ConditionExpression("weight", ConditionExpressionOperator.NEQ, 0.0),
+      evaluator.allPatients()));
+    assertEquals(bits(0), evaluator.filter(new ConditionExpression("weight", ConditionExpressionOperator.LTE, 0.0),
+      evaluator.allPatients()));
+    assertEquals(bits(2), evaluator.filter(new ConditionExpression("weight", ConditionExpressionOperator.GT, 0.0),
+      evaluator.allPatients()));
+  }
+
+  @Test
+  public void testErrors() {
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "30")),
+      patient("2", object("age", "thirty"))));
+
+    // Errors are only raised if the objects that cause them are evaluated
+    Condition young = new ConditionExpression("age", ConditionExpressionOperator.LT, 40);
+    assertEquals(bits(0), evaluator.filter(young, bits(0)));
+    assertThrows(TransformationException.class, () -> evaluator.filter(young, evaluator.allPatients()));
+
+    Condition noValue = new ConditionExpression("age", ConditionExpressionOperator.EQ, (String) null);
+    assertEquals(new BitSet(), evaluator.filter(noValue, new BitSet()));
+    assertThrows(TransformationException.class, () -> evaluator.filter(noValue, bits(0)));
+
+    // The right condition of an AND is only evaluated where the left condition is true
+    Condition never = new ConditionNode(new ConditionExpression(false), ConditionNode.ConditionNodeOperator.AND, young);
+    assertEquals(new BitSet(), evaluator.filter(never, evaluator.allPatients()));
+  }
+
+  @Test
+  public void testErrorsAfterFirstMatch() {
+    Condition young = new ConditionExpression("age", ConditionExpressionOperator.LT, 40);
+
+    // Objects after the first match of a patient are never evaluated
+    ConditionEvaluator evaluator = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "30"), object("age", "thirty")),
+      patient("2", object("age", "50"), object("age", "20"), object("age", "twenty"))));
+    assertEquals(bits(0, 1), evaluator.filter(young, evaluator.allPatients()));
+
+    // Errors before the first match, or in a patient that does not match, are raised
+    ConditionEvaluator before = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "thirty"), object("age", "30"))));
+    assertThrows(TransformationException.class, () -> before.filter(young, before.allPatients()));
+    ConditionEvaluator noMatch = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "50"), object("age", "fifty"))));
+    assertThrows(TransformationException.class, () -> noMatch.filter(young, noMatch.allPatients()));
+
+    // An object that fails in the left condition of an OR is not rescued by the right condition
+    Condition youngOrBob = new ConditionNode(young, ConditionNode.ConditionNodeOperator.OR,
+      new ConditionExpression("name", ConditionExpressionOperator.EQ, "Bob"));
+    ConditionEvaluator or = new ConditionEvaluator(createSchema(), List.of(
+      patient("1", object("age", "thirty", "name", "Bob"))));
+    assertThrows(TransformationException.class, () -> or.filter(youngOrBob, or.allPatients()));
+  }
+
+  private Schema createSchema() {
+    Schema schema = new Schema(Schema.SchemaType.REDCAP);
+    schema.addField(new RedcapField("record_id", "Record id", RedcapField.FieldType.TEXT));
+    schema.addField(new RedcapField("age", "Age", RedcapField.FieldType.TEXT));
+    schema.addField(new RedcapField("weight", "Weight", RedcapField.FieldType.TEXT));
+    schema.addField(new RedcapField("name", "Name", RedcapField.FieldType.TEXT));
+    RedcapField colour = new RedcapField("colour", "Colour", RedcapField.FieldType.CHECKBOX);
+    schema.addField(colour);
+    schema.addOption(colour, new RedcapField("colour___1", "Red", RedcapField.FieldType.CHECKBOX_OPTION));
+    schema.addOption(colour, new RedcapField("colour___2", "Blue", RedcapField.FieldType.CHECKBOX_OPTION));
+    return schema;
+  }
+
+  private PatientData patient(String id, JsonObject... objects) {
+    PatientData res = new PatientData(id);
+    for (JsonObject object : objects) {
+      object.addProperty("record_id", id);
+      res.addObject(object);
+    }
+    return res;
+  }
+
+  private JsonObject object(String... keysAndValues) {
+    JsonObject res = new JsonObject();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      res.addProperty(keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return res;
+  }
+
+  private BitSet bits(int... indexes) {
+    BitSet res = new BitSet();
+    for (int i : indexes) {
+      res.set(i);
+    }
+    return res;
+  }
+}
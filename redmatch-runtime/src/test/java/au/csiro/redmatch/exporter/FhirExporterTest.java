@@ -12,6 +12,7 @@ import au.csiro.redmatch.model.VersionedFhirPackage;
 import au.csiro.redmatch.terminology.TerminologyService;
 import au.csiro.redmatch.util.FileUtils;
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
 import com.google.gson.Gson;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -21,6 +22,7 @@ import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.io.StringReader;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 
@@ -283,6 +285,90 @@ public class FhirExporterTest {
     assertFalse(res.isEmpty());
   }
 
+  @Test
+  public void testStreaming() {
+    log.info("Running testStreaming");
+    String document = FileUtils.loadTextFileFromClassPath("testRepeatableInstruments.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertTrue(errors.isEmpty());
+
+    String json = FileUtils.loadTextFileFromClassPath("dataRepeatableInstruments.json");
+    Map<String, DomainResource> expected = new FhirExporter(doc, parseData(json), helper, terminologyService,
+      defaultFhirPackage).transform(null, null);
+
+    FhirExporter exporter = new FhirExporter(doc, helper, terminologyService, defaultFhirPackage);
+    Map<String, DomainResource> res = exporter.transform(
+      consumer -> new RedcapClient(gson).parseData(new StringReader(json), consumer), null, null);
+
+    assertSameResources(expected, res);
+  }
+
+  @Test
+  public void testParallel() {
+    log.info("Running testParallel");
+    String document = FileUtils.loadTextFileFromClassPath("testRepeatableInstruments.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertTrue(errors.isEmpty());
+
+    String json = FileUtils.loadTextFileFromClassPath("dataRepeatableInstruments.json");
+    Map<String, DomainResource> expected = new FhirExporter(doc, parseData(json), helper, terminologyService,
+      defaultFhirPackage).transform(null, null);
+
+    FhirExporter exporter = new FhirExporter(doc, parseData(json), helper, terminologyService, defaultFhirPackage);
+    exporter.setParallelism(4);
+    assertSameResources(expected, exporter.transform(null, null));
+
+    exporter = new FhirExporter(doc, helper, terminologyService, defaultFhirPackage);
+    exporter.setParallelism(4);
+    assertSameResources(expected, exporter.transform(
+      consumer -> new RedcapClient(gson).parseData(new StringReader(json), consumer), null, null));
+  }
+
+  @Test
+  public void testParallelUniqueResources() {
+    log.info("Running testParallelUniqueResources");
+    String document = FileUtils.loadTextFileFromClassPath("testUniqueResources.rdm");
+
+    RedmatchCompiler compiler = new RedmatchCompiler(gson, terminologyService, defaultFhirPackage);
+    Document doc = compiler.compile(document);
+    List<Diagnostic> errors = doc.getDiagnostics();
+    printErrors(errors);
+    assertTrue(errors.isEmpty());
+
+    // The organisation created by the second rule has the same id as the one the other rules create for the first
+    // patient, so the result depends on the order the resources are merged in
+    String json = FileUtils.loadTextFileFromClassPath("dataRepeatableInstruments.json");
+    Map<String, DomainResource> expected = new FhirExporter(doc, parseData(json), helper, terminologyService,
+      defaultFhirPackage).transform(null, null);
+    FhirExporter exporter = new FhirExporter(doc, parseData(json), helper, terminologyService, defaultFhirPackage);
+    exporter.setParallelism(4);
+    assertSameResources(expected, exporter.transform(null, null));
+
+    Map<String, DomainResource> expectedStreaming = new FhirExporter(doc, helper, terminologyService,
+      defaultFhirPackage).transform(consumer -> new RedcapClient(gson).parseData(new StringReader(json), consumer),
+      null, null);
+    exporter = new FhirExporter(doc, helper, terminologyService, defaultFhirPackage);
+    exporter.setParallelism(4);
+    assertSameResources(expectedStreaming, exporter.transform(
+      consumer -> new RedcapClient(gson).parseData(new StringReader(json), consumer), null, null));
+  }
+
+  private void assertSameResources(Map<String, DomainResource> expected, Map<String, DomainResource> actual) {
+    assertEquals(expected.keySet(), actual.keySet());
+    IParser parser = ctx.newJsonParser();
+    for (String id : expected.keySet()) {
+      assertEquals(parser.encodeResourceToString(expected.get(id)), parser.encodeResourceToString(actual.get(id)));
+    }
+  }
+
   private List<Row> parseData(String data) {
     return new RedcapClient(gson).parseData(data);
   }
@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.exporter;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.eclipse.lsp4j.jsonrpc.CancelChecker;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests for {@link NdjsonWriter}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class NdjsonWriterTest {
+
+  private static final FhirContext ctx = FhirContext.forR4();
+
+  @TempDir
+  Path tempDir;
+
+  @Test
+  public void testWrite() throws IOException {
+    List<DomainResource> resources = createResources();
+    List<Path> files = new NdjsonWriter(ctx, 4, false).write(resources, tempDir, null, null);
+    assertEquals(2, files.size());
+
+    List<String> patients = Files.readAllLines(tempDir.resolve("Patient.ndjson"), StandardCharsets.UTF_8);
+    assertLines(patients, "p", 100);
+    List<String> observations = Files.readAllLines(tempDir.resolve("Observation.ndjson"), StandardCharsets.UTF_8);
+    assertLines(observations, "o", 100);
+    assertTrue(patients.get(1).contains("Ñandú"));
+
+    // No temporary files should be left behind
+    try (var stream = Files.list(tempDir)) {
+      assertEquals(2, stream.count());
+    }
+  }
+
+  @Test
+  public void testWriteGzip() throws IOException {
+    List<DomainResource> resources = createResources();
+    new NdjsonWriter(ctx, 2, true).write(resources, tempDir, null, null);
+
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(
+      new GZIPInputStream(Files.newInputStream(tempDir.resolve("Patient.ndjson.gz"))), StandardCharsets.UTF_8))) {
+      assertLines(br.lines().collect(Collectors.toList()), "p", 100);
+    }
+  }
+
+  @Test
+  public void testReplaceOtherVariant() throws IOException {
+    List<DomainResource> resources = createResources();
+    new NdjsonWriter(ctx, 2, false).write(resources, tempDir, null, null);
+    new NdjsonWriter(ctx, 2, true).write(resources, tempDir, null, null);
+    assertFalse(Files.exists(tempDir.resolve("Patient.ndjson")));
+    assertTrue(Files.exists(tempDir.resolve("Patient.ndjson.gz")));
+
+    new NdjsonWriter(ctx, 2, false).write(resources, tempDir, null, null);
+    assertTrue(Files.exists(tempDir.resolve("Patient.ndjson")));
+    assertFalse(Files.exists(tempDir.resolve("Patient.ndjson.gz")));
+  }
+
+  @Test
+  public void testPermissions() throws IOException {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    Path out = Files.createDirectory(tempDir.resolve("out"));
+    new NdjsonWriter(ctx, 2, false).write(createResources(), out, null, null);
+
+    // The files get the same permissions as any other new file
+    Path reference = Files.createFile(tempDir.resolve("reference"));
+    assertEquals(Files.getPosixFilePermissions(reference),
+      Files.getPosixFilePermissions(out.resolve("Patient.ndjson")));
+  }
+
+  @Test
+  public void testCancel() throws IOException {
+    List<DomainResource> resources = createResources();
+    CancelChecker cancelled = () -> {
+      throw new CancellationException();
+    };
+    List<Path> files = new NdjsonWriter(ctx, 2, false).write(resources, tempDir, null, cancelled);
+    assertTrue(files.isEmpty());
+    try (var stream = Files.list(tempDir)) {
+      assertEquals(0, stream.count());
+    }
+  }
+
+  private List<DomainResource> createResources() {
+    List<DomainResource> res = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Patient p = new Patient();
+      p.setId("p" + i);
+      p.addName().setFamily(i == 1 ? "Ñandú" : "Smith");
+      res.add(p);
+      Observation o = new Observation();
+      o.setId("o" + i);
+      o.setStatus(Observation.ObservationStatus.FINAL);
+      res.add(o);
+    }
+    return res;
+  }
+
+  private void assertLines(List<String> lines, String prefix, int num) {
+    assertEquals(num, lines.size());
+    for (int i = 0; i < num; i++) {
+      assertTrue(lines.get(i).contains("\"id\":\"" + prefix + i + "\""), lines.get(i));
+    }
+  }
+}
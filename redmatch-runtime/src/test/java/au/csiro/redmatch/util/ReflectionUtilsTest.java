@@ -0,0 +1,56 @@
+/*
+ * Copyright © 2018-2021, Commonwealth Scientific and Industrial Research Organisation (CSIRO) ABN 41 687 119 230.
+ * Licensed under the CSIRO Open Source Software Licence Agreement.
+ */
+package au.csiro.redmatch.util;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link ReflectionUtils}.
+ *
+ * @author Alejandro Metke Jimenez
+ */
+public class ReflectionUtilsTest {
+
+  @Test
+  public void testMerge() throws Exception {
+    Patient src = new Patient();
+    src.setGender(Enumerations.AdministrativeGender.FEMALE);
+    src.addName().setFamily("Smith");
+    src.addIdentifier().setValue("1");
+
+    Patient tgt = new Patient();
+    tgt.addIdentifier().setValue("2");
+    tgt.setBirthDateElement(new DateType("2000-01-01"));
+
+    ReflectionUtils.merge(src, tgt);
+    assertEquals(Enumerations.AdministrativeGender.FEMALE, tgt.getGender());
+    assertEquals("Smith", tgt.getNameFirstRep().getFamily());
+    assertEquals(2, tgt.getIdentifier().size());
+    assertEquals("2", tgt.getIdentifier().get(0).getValue());
+    assertEquals("1", tgt.getIdentifier().get(1).getValue());
+    assertEquals("2000-01-01", tgt.getBirthDateElement().getValueAsString());
+  }
+
+  @Test
+  public void testMergeValueX() throws Exception {
+    Observation src = new Observation();
+    src.setValue(new CodeableConcept().addCoding(new Coding("http://snomed.info/sct", "123", null)));
+    src.addComponent().setValue(new StringType("a"));
+    src.getContained().add(new Patient().setId("p1"));
+
+    Observation tgt = new Observation();
+    tgt.setStatus(Observation.ObservationStatus.FINAL);
+
+    ReflectionUtils.merge(src, tgt);
+    assertTrue(tgt.hasValueCodeableConcept());
+    assertEquals("123", tgt.getValueCodeableConcept().getCodingFirstRep().getCode());
+    assertEquals(Observation.ObservationStatus.FINAL, tgt.getStatus());
+    assertEquals(1, tgt.getComponent().size());
+    assertEquals(1, tgt.getContained().size());
+  }
+}